@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Coalesces lookups of single users and streams into Helix requests for up to 100 logins or ids, e.g. for a bot that looks up the user of every chat message.
+ * <li>The first lookup of a kind opens a window. Every lookup of that kind within the window joins the batch, which is sent when the window ends or when it is full.
+ * <li>A key that is looked up more than once within a window is sent once, all of its callers get the same result. Logins are compared ignoring case.
+ * <li>The futures complete with null if Helix did not return the key: the user does not exist or the stream is offline.
+ *     If the request failed, every future of the batch completes exceptionally.
+ */
+public final class HelixBatcher implements AutoCloseable {
+    public static final long DEFAULT_WINDOW_MILLIS = 10;
+    public static final int MAX_BATCH_SIZE = 100;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchAPI-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final Lookup<TwitchAPIClient.User> usersByLogin;
+    private final Lookup<TwitchAPIClient.User> usersById;
+    private final Lookup<TwitchAPIClient.Stream> streamsByLogin;
+    private final Lookup<TwitchAPIClient.Stream> streamsById;
+
+    public HelixBatcher(TwitchAPIClient client) {
+        this(client, DEFAULT_WINDOW_MILLIS, MAX_BATCH_SIZE);
+    }
+
+    /**
+     * {@code windowMillis}is how long a batch waits for more lookups, 0 only coalesces lookups that arrive while the batch is being sent.{@code maxBatchSize}is at most 100.
+     */
+    public HelixBatcher(TwitchAPIClient client, long windowMillis, int maxBatchSize) {
+        if(maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("maxBatchSize has to be between 1 and " + MAX_BATCH_SIZE);
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxBatchSize = maxBatchSize;
+        usersByLogin = new Lookup<>(client::getUsersAsync, user -> normalizeLogin(user.login()), true);
+        usersById = new Lookup<>(client::getUsersByIdAsync, TwitchAPIClient.User::id, false);
+        streamsByLogin = new Lookup<>(client::getStreamsAsync, stream -> normalizeLogin(stream.userLogin()), true);
+        streamsById = new Lookup<>(client::getStreamsByIdAsync, TwitchAPIClient.Stream::userId, false);
+    }
+
+    public CompletableFuture<TwitchAPIClient.User> getUser(String login) {
+        return usersByLogin.get(login);
+    }
+
+    public CompletableFuture<TwitchAPIClient.User> getUserById(String id) {
+        return usersById.get(id);
+    }
+
+    /**
+     * Completes with null if the channel is offline.
+     */
+    public CompletableFuture<TwitchAPIClient.Stream> getStream(String login) {
+        return streamsByLogin.get(login);
+    }
+
+    public CompletableFuture<TwitchAPIClient.Stream> getStreamById(String userId) {
+        return streamsById.get(userId);
+    }
+
+    /**
+     * Returns the number of lookups, every call of a get method counts.
+     */
+    public long getLookupCount() {
+        return lookups.sum();
+    }
+
+    /**
+     * Returns the number of Helix requests that were sent for the lookups.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * Sends the batches that are waiting for their window to end.
+     */
+    @Override
+    public void close() {
+        usersByLogin.flush(null);
+        usersById.flush(null);
+        streamsByLogin.flush(null);
+        streamsById.flush(null);
+    }
+
+    private static String normalizeLogin(String login) {
+        return login == null ? null : login.toLowerCase(Locale.ROOT);
+    }
+
+    // the batches of one endpoint and parameter
+    private final class Lookup<T> {
+        private final Function<Collection<String>, CompletableFuture<HelixResponse<T>>> fetch;
+        private final Function<T, String> keyOf;
+        private final boolean isLogin;
+        // key -> the future all callers of the key share, guarded by this
+        private Map<String, CompletableFuture<T>> pending = new LinkedHashMap<>();
+
+        Lookup(Function<Collection<String>, CompletableFuture<HelixResponse<T>>> fetch, Function<T, String> keyOf, boolean isLogin) {
+            this.fetch = fetch;
+            this.keyOf = keyOf;
+            this.isLogin = isLogin;
+        }
+
+        CompletableFuture<T> get(String key) {
+            lookups.increment();
+            if(isLogin)
+                key = normalizeLogin(key);
+            CompletableFuture<T> future;
+            Map<String, CompletableFuture<T>> full = null;
+            synchronized(this) {
+                future = pending.get(key);
+                if(future == null) {
+                    future = new CompletableFuture<>();
+                    pending.put(key, future);
+                    if(pending.size() == 1) {
+                        Map<String, CompletableFuture<T>> batch = pending;
+                        scheduler.schedule(() -> flush(batch), windowMillis, TimeUnit.MILLISECONDS);
+                    }
+                    if(pending.size() >= maxBatchSize) {
+                        full = pending;
+                        pending = new LinkedHashMap<>();
+                    }
+                }
+            }
+            if(full != null)
+                send(full);
+            // a copy, so a caller that completes or cancels its future does not change the one of the others
+            return future.copy();
+        }
+
+        // sends the batch if it is still the pending one, null sends whatever is pending
+        void flush(Map<String, CompletableFuture<T>> batch) {
+            synchronized(this) {
+                if(pending.isEmpty() || (batch != null && batch != pending))
+                    return;
+                batch = pending;
+                pending = new LinkedHashMap<>();
+            }
+            send(batch);
+        }
+
+        private void send(Map<String, CompletableFuture<T>> batch) {
+            requests.increment();
+            CompletableFuture<HelixResponse<T>> response;
+            try {
+                response = fetch.apply(new ArrayList<>(batch.keySet()));
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((helix, error) -> {
+                if(error == null && !helix.isSuccess())
+                    error = new IOException("Helix answered " + helix.statusCode() + ": " + helix.errorMessage());
+                if(error != null) {
+                    for (CompletableFuture<T> future : batch.values())
+                        future.completeExceptionally(error);
+                    return;
+                }
+                List<T> data = helix.data();
+                Map<String, T> byKey = new HashMap<>(data.size() * 2);
+                for (T entry : data)
+                    byKey.put(keyOf.apply(entry), entry);
+                for (Map.Entry<String, CompletableFuture<T>> entry : batch.entrySet())
+                    entry.getValue().complete(byKey.get(entry.getKey()));
+            });
+        }
+    }
+}
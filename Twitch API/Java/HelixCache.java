@@ -0,0 +1,432 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A bounded cache for users and VODs, which rarely change, so that bursts of the same lookups do not use up the rate limit.
+ * <li>Entries expire after a TTL per endpoint. Lookups that found nothing, e.g. a login that does not exist, are cached too, with a shorter TTL.
+ * <li>Concurrent misses of the same key share one request.
+ * <li>An expired entry is still returned for a while after it expired, while it is refreshed in the background. The refresh sends the ETag of the entry if Helix sent one, a 304 answer only renews the TTL.
+ * <li>When the cache is full, W-TinyLFU decides which entry is dropped: new entries go to a small LRU window, and leave it for the main cache only if they were used more often than
+ *     the entry they would replace. The counts are kept in a small count-min sketch that is halved from time to time, so keys that were popular once are forgotten.
+ *     A burst of one-off lookups therefore does not flush the users that are looked up all the time.
+ * <li>{@code getStats()}returns the hits, misses and evictions.
+ */
+public final class HelixCache {
+    public static final Duration DEFAULT_USER_TTL = Duration.ofMinutes(30);
+    public static final Duration DEFAULT_VIDEO_TTL = Duration.ofMinutes(10);
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes(1);
+    public static final Duration DEFAULT_STALE_TIME = Duration.ofMinutes(5);
+
+    private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<>();
+    private final int maximumSize;
+    private final Lookup<TwitchAPIClient.User> usersByLogin;
+    private final Lookup<TwitchAPIClient.User> usersById;
+    private final Lookup<TwitchAPIClient.Video> videos;
+    private volatile long staleNanos = DEFAULT_STALE_TIME.toNanos();
+
+    // the eviction policy, an access that finds the lock taken is not recorded instead of waiting for it
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final int windowMaximum;
+    private final int protectedMaximum;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * {@code maximumSize}is the number of entries of all endpoints together, e.g. 10000 for a few thousand chatters.
+     */
+    public HelixCache(TwitchAPIClient client, int maximumSize) {
+        if(maximumSize < 2)
+            throw new IllegalArgumentException("maximumSize has to be at least 2");
+        this.maximumSize = maximumSize;
+        // 1% window and 80% of the main cache protected, the split that works well for most workloads
+        windowMaximum = Math.max(1, maximumSize / 100);
+        protectedMaximum = (maximumSize - windowMaximum) * 4 / 5;
+        sketch = new FrequencySketch(maximumSize);
+        usersByLogin = new Lookup<>(client, "login:", login -> "users" + TwitchAPIClient.query("login", List.of(login)), TwitchAPIClient.User::decode, DEFAULT_USER_TTL);
+        usersById = new Lookup<>(client, "user:", id -> "users" + TwitchAPIClient.query("id", List.of(id)), TwitchAPIClient.User::decode, DEFAULT_USER_TTL);
+        videos = new Lookup<>(client, "video:", id -> "videos" + TwitchAPIClient.query("id", List.of(id)), TwitchAPIClient.Video::decode, DEFAULT_VIDEO_TTL);
+    }
+
+    /**
+     * Completes with null if there is no user with the login.
+     */
+    public CompletableFuture<TwitchAPIClient.User> getUser(String login) {
+        return usersByLogin.get(login.toLowerCase(Locale.ROOT));
+    }
+
+    public CompletableFuture<TwitchAPIClient.User> getUserById(String id) {
+        return usersById.get(id);
+    }
+
+    /**
+     * Completes with null if there is no VOD with the id.
+     */
+    public CompletableFuture<TwitchAPIClient.Video> getVideo(String id) {
+        return videos.get(id);
+    }
+
+    public void setUserTtl(Duration ttl, Duration negativeTtl) {
+        usersByLogin.setTtl(ttl, negativeTtl);
+        usersById.setTtl(ttl, negativeTtl);
+    }
+
+    public void setVideoTtl(Duration ttl, Duration negativeTtl) {
+        videos.setTtl(ttl, negativeTtl);
+    }
+
+    /**
+     * Sets how long an expired entry is still returned while it is refreshed. With zero, a lookup of an expired entry waits for the refresh.
+     */
+    public void setStaleTime(Duration staleTime) {
+        staleNanos = staleTime.toNanos();
+    }
+
+    /**
+     * Drops all entries, e.g. after the token was replaced with one of another user.
+     */
+    public void invalidateAll() {
+        policyLock.lock();
+        try {
+            for (Node node : data.values())
+                removeFromPolicy(node);
+            data.clear();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), staleHits.sum(), misses.sum(), loads.sum(), notModified.sum(), loadFailures.sum(), evictions.sum(), data.size());
+    }
+
+    /**
+     * <li>{@code hits}were fresh,{@code staleHits}were expired and returned while they were refreshed.
+     * <li>{@code misses}waited for a request, concurrent misses of the same key share one.
+     * <li>{@code loads}and{@code notModified}are the answers to the requests, with data or with 304 Not Modified.
+     */
+    public record Stats(long hits, long staleHits, long misses, long loads, long notModified, long loadFailures, long evictions, int size) {
+        public double hitRate() {
+            long lookups = hits + staleHits + misses;
+            return lookups == 0 ? 1 : (double) (hits + staleHits) / lookups;
+        }
+    }
+
+    // the entries of one endpoint, the keys of all endpoints are in the same map with a different prefix
+    private final class Lookup<T> {
+        private final TwitchAPIClient client;
+        private final String prefix;
+        private final Function<String, String> pathOf;
+        private final Function<JsonObject, T> decoder;
+        private volatile long ttlNanos;
+        private volatile long negativeTtlNanos = DEFAULT_NEGATIVE_TTL.toNanos();
+
+        Lookup(TwitchAPIClient client, String prefix, Function<String, String> pathOf, Function<JsonObject, T> decoder, Duration ttl) {
+            this.client = client;
+            this.prefix = prefix;
+            this.pathOf = pathOf;
+            this.decoder = decoder;
+            this.ttlNanos = ttl.toNanos();
+        }
+
+        void setTtl(Duration ttl, Duration negativeTtl) {
+            ttlNanos = ttl.toNanos();
+            negativeTtlNanos = negativeTtl.toNanos();
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> get(String key) {
+            String cacheKey = prefix + key;
+            Node node = data.get(cacheKey);
+            if(node == null) {
+                Node created = new Node(cacheKey, key);
+                node = data.putIfAbsent(cacheKey, created);
+                if(node == null) {
+                    misses.increment();
+                    addToPolicy(created);
+                    return (CompletableFuture<T>) load(created);
+                }
+            }
+            recordAccess(node);
+            Entry entry = node.entry;
+            if(entry != null) {
+                long expiredFor = System.nanoTime() - entry.expiresAt;
+                if(expiredFor < 0) {
+                    hits.increment();
+                    return CompletableFuture.completedFuture((T) entry.value);
+                }
+                if(expiredFor < staleNanos) {
+                    staleHits.increment();
+                    load(node);
+                    return CompletableFuture.completedFuture((T) entry.value);
+                }
+            }
+            misses.increment();
+            return (CompletableFuture<T>) load(node);
+        }
+
+        // returns the load that is in flight for the node, or starts one
+        private CompletableFuture<Object> load(Node node) {
+            CompletableFuture<Object> loading;
+            Entry previous;
+            synchronized(node) {
+                previous = node.entry;
+                if(previous != null && System.nanoTime() - previous.expiresAt < 0)
+                    return CompletableFuture.completedFuture(previous.value);
+                if(node.loading != null)
+                    return node.loading.copy();
+                loading = node.loading = new CompletableFuture<>();
+            }
+            CompletableFuture<HelixResponse<T>> response;
+            try {
+                response = client.get(pathOf.apply(node.lookupKey), decoder, previous == null ? null : previous.etag);
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            response.whenComplete((helix, error) -> {
+                Entry loaded = null;
+                if(error == null && helix.statusCode() == 304 && previous != null) {
+                    notModified.increment();
+                    loaded = new Entry(previous.value, previous.etag, System.nanoTime() + ttl(previous.value));
+                } else if(error == null && (helix.isSuccess() || helix.statusCode() == 404)) {
+                    // helix answers unknown logins with empty data and unknown videos with 404, both are cached as null
+                    loads.increment();
+                    T value = helix.first();
+                    loaded = new Entry(value, helix.etag(), System.nanoTime() + ttl(value));
+                } else {
+                    loadFailures.increment();
+                    if(error == null)
+                        error = new IOException("Helix answered " + helix.statusCode() + ": " + helix.errorMessage());
+                }
+                synchronized(node) {
+                    if(loaded != null)
+                        node.entry = loaded;
+                    node.loading = null;
+                }
+                if(loaded != null) {
+                    loading.complete(loaded.value);
+                } else {
+                    // a failed refresh keeps the old entry, a failed first load is not cached so the next lookup tries again
+                    if(previous == null)
+                        remove(node);
+                    loading.completeExceptionally(error);
+                }
+            });
+            return loading.copy();
+        }
+
+        private long ttl(Object value) {
+            return value == null ? negativeTtlNanos : ttlNanos;
+        }
+    }
+
+    private void addToPolicy(Node node) {
+        policyLock.lock();
+        try {
+            // invalidateAll may have dropped the node before it got here
+            if(data.get(node.key) != node)
+                return;
+            sketch.increment(node.hash);
+            window.addLast(node);
+            if(window.size <= windowMaximum)
+                return;
+            // the oldest entry of the window competes with the next victim of the main cache
+            Node candidate = window.removeFirst();
+            if(probation.size + protectedQueue.size < maximumSize - windowMaximum) {
+                probation.addLast(candidate);
+                return;
+            }
+            Node victim = probation.size > 0 ? probation.first() : protectedQueue.first();
+            if(sketch.frequency(candidate.hash) > sketch.frequency(victim.hash)) {
+                victim.queue.remove(victim);
+                evict(victim);
+                probation.addLast(candidate);
+            } else {
+                evict(candidate);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void recordAccess(Node node) {
+        if(!policyLock.tryLock())
+            return;
+        try {
+            if(node.queue == null)
+                return;
+            sketch.increment(node.hash);
+            if(node.queue == probation) {
+                // a second hit in the main cache protects the entry
+                probation.remove(node);
+                protectedQueue.addLast(node);
+                if(protectedQueue.size > protectedMaximum)
+                    probation.addLast(protectedQueue.removeFirst());
+            } else {
+                node.queue.moveToEnd(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void remove(Node node) {
+        policyLock.lock();
+        try {
+            removeFromPolicy(node);
+            data.remove(node.key, node);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private void removeFromPolicy(Node node) {
+        if(node.queue != null)
+            node.queue.remove(node);
+    }
+
+    private void evict(Node node) {
+        data.remove(node.key, node);
+        evictions.increment();
+    }
+
+    private record Entry(Object value, String etag, long expiresAt) {}
+
+    private static final class Node {
+        final String key;
+        final String lookupKey;
+        final int hash;
+        // null until the first load completed, guarded by this for writes
+        volatile Entry entry;
+        CompletableFuture<Object> loading;
+        // guarded by policyLock
+        AccessQueue queue;
+        Node previous;
+        Node next;
+
+        Node(String key, String lookupKey) {
+            this.key = key;
+            this.lookupKey = lookupKey;
+            int h = key.hashCode() * 0x9E3779B9;
+            this.hash = h ^ (h >>> 16);
+        }
+    }
+
+    // an LRU list that links the nodes themselves, the first node is the least recently used
+    private static final class AccessQueue {
+        private Node head;
+        private Node tail;
+        private int size;
+
+        Node first() {
+            return head;
+        }
+
+        void addLast(Node node) {
+            node.queue = this;
+            node.previous = tail;
+            node.next = null;
+            if(tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            size++;
+        }
+
+        Node removeFirst() {
+            Node node = head;
+            remove(node);
+            return node;
+        }
+
+        void remove(Node node) {
+            if(node.previous == null)
+                head = node.next;
+            else
+                node.previous.next = node.next;
+            if(node.next == null)
+                tail = node.previous;
+            else
+                node.next.previous = node.previous;
+            node.previous = node.next = null;
+            node.queue = null;
+            size--;
+        }
+
+        void moveToEnd(Node node) {
+            if(node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    // a count-min sketch with 4-bit counters, 16 per long, that estimates how often a key was used recently
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            table = new long[Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1];
+            // all counters are halved after 10 additions per entry, so the counts follow what is popular now
+            sampleSize = 10 * Math.max(maximumSize, 16);
+        }
+
+        int frequency(int hash) {
+            int start = (hash & 3) << 2;
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int offset = (start + i) << 2;
+                frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> offset) & 15));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            int start = (hash & 3) << 2;
+            boolean isAdded = false;
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                int offset = (start + i) << 2;
+                if(((table[index] >>> offset) & 15) != 15) {
+                    table[index] += 1L << offset;
+                    isAdded = true;
+                }
+            }
+            if(isAdded && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++)
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                additions /= 2;
+            }
+        }
+
+        private int index(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+    }
+}
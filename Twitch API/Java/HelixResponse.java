@@ -0,0 +1,131 @@
+import java.net.http.HttpHeaders;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The response of a{@code TwitchAPIClient}request. The body is kept as it was received and is only parsed when it is read.
+ * <li>{@code data()}decodes the entries of the "data" array into records, e.g.{@code TwitchAPIClient.User}. Nothing is decoded if only the status is checked.
+ * <li>The Ratelimit headers of Helix can be read with{@code rateLimitRemaining()}and{@code rateLimitReset()}.
+ * <li>An instance is safe to read from several threads.
+ */
+public final class HelixResponse<T> {
+    private final int statusCode;
+    private final String body;
+    private final HttpHeaders headers;
+    private final Function<JsonObject, T> decoder;
+    // validate answers with a single object instead of a "data" array
+    private final boolean isDataArray;
+    private JsonObject json;
+    private List<T> data;
+
+    HelixResponse(int statusCode, String body, HttpHeaders headers, Function<JsonObject, T> decoder, boolean isDataArray) {
+        this.statusCode = statusCode;
+        this.body = body;
+        this.headers = headers;
+        this.decoder = decoder;
+        this.isDataArray = isDataArray;
+    }
+
+    public int statusCode() {
+        return statusCode;
+    }
+
+    public boolean isSuccess() {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    /**
+     * Returns the body as it was received.
+     */
+    public String body() {
+        return body;
+    }
+
+    public HttpHeaders headers() {
+        return headers;
+    }
+
+    /**
+     * Returns the body as a{@code JsonObject}, e.g. for fields the records do not have.
+     */
+    public synchronized JsonObject json() {
+        if(json == null)
+            json = JsonObject.of(body == null ? "{}" : body);
+        return json;
+    }
+
+    /**
+     * Returns the decoded entries. The list is empty if the request failed or nothing was found, e.g. for a login that does not exist.
+     */
+    public synchronized List<T> data() {
+        if(data != null)
+            return data;
+        if(!isSuccess()) {
+            data = Collections.emptyList();
+        } else if(!isDataArray) {
+            data = Collections.singletonList(decoder.apply(json()));
+        } else {
+            List<JsonObject> entries = json().getObjects("data");
+            List<T> decoded = new ArrayList<>(entries.size());
+            for (JsonObject entry : entries)
+                decoded.add(decoder.apply(entry));
+            data = Collections.unmodifiableList(decoded);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the first entry, or null if there is none.
+     */
+    public T first() {
+        List<T> data = data();
+        return data.isEmpty() ? null : data.get(0);
+    }
+
+    /**
+     * Returns the cursor of the next page, or null if this is the last one.
+     */
+    public String cursor() {
+        JsonObject pagination = json().getObject("pagination");
+        return pagination == null ? null : pagination.getString("cursor");
+    }
+
+    /**
+     * Returns the message of an error response, e.g. "Invalid OAuth token", or null.
+     */
+    public String errorMessage() {
+        return isSuccess() ? null : json().getString("message");
+    }
+
+    /**
+     * Returns the ETag header, or null if Helix did not send one.
+     */
+    public String etag() {
+        return headers.firstValue("ETag").orElse(null);
+    }
+
+    /**
+     * Returns the points left in the current rate limit window, or -1 if the header is missing.
+     */
+    public int rateLimitRemaining() {
+        return (int) headers.firstValueAsLong("Ratelimit-Remaining").orElse(-1);
+    }
+
+    public int rateLimitLimit() {
+        return (int) headers.firstValueAsLong("Ratelimit-Limit").orElse(-1);
+    }
+
+    /**
+     * Returns the time the rate limit window is refilled in seconds since the epoch, or -1 if the header is missing.
+     */
+    public long rateLimitReset() {
+        return headers.firstValueAsLong("Ratelimit-Reset").orElse(-1);
+    }
+
+    @Override
+    public String toString() {
+        return statusCode + " " + body;
+    }
+}
@@ -0,0 +1,281 @@
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends Helix requests in the order of their priority, paced so that the rate limit is not used up.
+ * <li>Helix counts points in a token bucket per client id, or per client id and user for user tokens. The scheduler keeps a bucket per client id and token.
+ *     A bucket without queued or unanswered requests is dropped once it is full again, a new one starts full as well, so many short lived user tokens do not pile up.
+ *     Its points are taken from the Ratelimit headers of every response and refilled at Ratelimit-Limit points per minute in between, like Twitch refills them.
+ *     Once the bucket is empty, requests are sent at the refill rate instead of running into 429s.
+ * <li>Requests wait in the queue of their{@code Priority}.{@code CRITICAL}ones go first, and the other classes stop when the bucket is down to a reserve, 10% by default.
+ *     So subscriptions and moderation still find points while background lookups use up the rest.
+ * <li>A 429, e.g. because another program used the same bucket, empties it. The request is sent again first in its class once a point was refilled.
+ * <li>Any request with Client-Id and Authorization headers can be sent, e.g.{@code TwitchAPIClient.setScheduler}, {@code TwitchAPI.setScheduler}
+ *     or the subscriptions of the EventSub folder with{@code SubscriptionClient.setRequestSender(request -> scheduler.send(request, Priority.CRITICAL))}.
+ * <li>Twitch docs: https://dev.twitch.tv/docs/api/guide/#twitch-rate-limits
+ */
+public final class HelixScheduler {
+    public enum Priority {
+        // e.g. creating subscriptions, bans and deleting messages
+        CRITICAL,
+        NORMAL,
+        // e.g. user lookups and polling, which can wait
+        BACKGROUND
+    }
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 32;
+    public static final double DEFAULT_RESERVE = 0.1;
+    public static final int MAX_ATTEMPTS = 3;
+    // helix refills the whole bucket in a minute, 800 points for most apps
+    private static final long REFILL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int DEFAULT_LIMIT = 800;
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchAPI-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient httpClient;
+    // client id and token -> bucket, guarded by this like everything below
+    private final Map<String, Bucket> buckets = new HashMap<>();
+    private int inFlight;
+    private long drainAt;
+    private volatile int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private volatile double reserve = DEFAULT_RESERVE;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder[] waitNanos = new LongAdder[PRIORITIES.length];
+    private final LongAdder[] waited = new LongAdder[PRIORITIES.length];
+
+    public HelixScheduler() {
+        this(TwitchAPIClient.HTTP_CLIENT);
+    }
+
+    HelixScheduler(HttpClient httpClient) {
+        this.httpClient = httpClient;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            waitNanos[i] = new LongAdder();
+            waited[i] = new LongAdder();
+        }
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        if(maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency has to be at least 1");
+        this.maxConcurrency = maxConcurrency;
+        drain();
+    }
+
+    /**
+     * Sets the part of the bucket that only{@code CRITICAL}requests may use, between 0 and 1.
+     */
+    public void setReserve(double reserve) {
+        if(reserve < 0 || reserve >= 1)
+            throw new IllegalArgumentException("reserve has to be at least 0 and less than 1");
+        this.reserve = reserve;
+        drain();
+    }
+
+    /**
+     * Queues the request and sends it when the bucket of its client id and token has points for it. The future completes with the last response, a 429 only after{@code MAX_ATTEMPTS}.
+     */
+    public CompletableFuture<HttpResponse<String>> send(HttpRequest request, Priority priority) {
+        Task task = new Task(request, priority);
+        HttpHeaders headers = request.headers();
+        String key = headers.firstValue("Client-Id").orElse("") + ' ' + headers.firstValue("Authorization").orElse("");
+        synchronized(this) {
+            task.bucket = buckets.computeIfAbsent(key, ignored -> new Bucket());
+            task.bucket.queues.get(priority.ordinal()).add(task);
+        }
+        drain();
+        return task.future;
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    /**
+     * Returns the number of 429 responses, with a working bucket it stays at 0 unless other programs use the same client id.
+     */
+    public long getRateLimitedCount() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * Returns how long the requests of the priority waited in the queue on average.
+     */
+    public double getAverageWaitMillis(Priority priority) {
+        long count = waited[priority.ordinal()].sum();
+        return count == 0 ? 0 : waitNanos[priority.ordinal()].sum() / 1e6 / count;
+    }
+
+    public synchronized int getQueuedCount() {
+        int queued = 0;
+        for (Bucket bucket : buckets.values()) {
+            for (ArrayDeque<Task> queue : bucket.queues)
+                queued += queue.size();
+        }
+        return queued;
+    }
+
+    // sends as many queued requests as the concurrency and the buckets allow, in the order of their priority
+    private void drain() {
+        List<Task> ready = new ArrayList<>();
+        synchronized(this) {
+            long now = System.nanoTime();
+            long wakeUp = Long.MAX_VALUE;
+            for (Iterator<Bucket> iterator = buckets.values().iterator(); iterator.hasNext();) {
+                Bucket bucket = iterator.next();
+                bucket.refill(now);
+                for (ArrayDeque<Task> queue : bucket.queues) {
+                    while (!queue.isEmpty() && inFlight < maxConcurrency) {
+                        long waitNanos = bucket.waitNanos(queue.peek().priority, now);
+                        if(waitNanos > 0) {
+                            wakeUp = Math.min(wakeUp, waitNanos);
+                            break;
+                        }
+                        bucket.points--;
+                        bucket.inFlight++;
+                        inFlight++;
+                        ready.add(queue.poll());
+                    }
+                    // a class only goes when the ones before it are empty, the lower classes need even more points
+                    if(!queue.isEmpty())
+                        break;
+                }
+                if(bucket.isIdle())
+                    iterator.remove();
+            }
+            if(wakeUp != Long.MAX_VALUE && (drainAt == 0 || now + wakeUp - drainAt < 0)) {
+                drainAt = now + wakeUp;
+                scheduler.schedule(() -> {
+                    synchronized(this) {
+                        drainAt = 0;
+                    }
+                    drain();
+                }, wakeUp, TimeUnit.NANOSECONDS);
+            }
+        }
+        // sending happens outside of the lock, sendAsync can call back on this thread
+        for (Task task : ready)
+            send(task);
+    }
+
+    private void send(Task task) {
+        task.attempts++;
+        if(task.attempts == 1) {
+            waitNanos[task.priority.ordinal()].add(System.nanoTime() - task.queuedAt);
+            waited[task.priority.ordinal()].increment();
+        }
+        sent.increment();
+        httpClient.sendAsync(task.request, BodyHandlers.ofString()).whenComplete((response, error) -> {
+            boolean isRetry = false;
+            synchronized(this) {
+                inFlight--;
+                task.bucket.inFlight--;
+                if(response != null) {
+                    task.bucket.update(response.headers(), response.statusCode() == 429);
+                    if(response.statusCode() == 429 && task.attempts < MAX_ATTEMPTS) {
+                        task.bucket.queues.get(task.priority.ordinal()).addFirst(task);
+                        isRetry = true;
+                    }
+                }
+            }
+            if(response != null && response.statusCode() == 429)
+                rateLimited.increment();
+            if(!isRetry) {
+                if(error != null)
+                    task.future.completeExceptionally(error);
+                else
+                    task.future.complete(response);
+            }
+            drain();
+        });
+    }
+
+    private static final class Task {
+        final HttpRequest request;
+        final Priority priority;
+        final CompletableFuture<HttpResponse<String>> future = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+        Bucket bucket;
+        int attempts;
+
+        Task(HttpRequest request, Priority priority) {
+            this.request = request;
+            this.priority = priority;
+        }
+    }
+
+    // the points of one client id and token as far as they are known here, guarded by the scheduler
+    private final class Bucket {
+        // one queue per priority
+        final List<ArrayDeque<Task>> queues = new ArrayList<>(PRIORITIES.length);
+        int limit = DEFAULT_LIMIT;
+        // the points left, less the requests that were sent since the last response
+        double points = DEFAULT_LIMIT;
+        long refilledAt = System.nanoTime();
+        // requests that were sent and not answered yet, their response still updates this bucket
+        int inFlight;
+
+        Bucket() {
+            for (int i = 0; i < PRIORITIES.length; i++)
+                queues.add(new ArrayDeque<>());
+        }
+
+        void refill(long now) {
+            points = Math.min(limit, points + (double) (now - refilledAt) * limit / REFILL_NANOS);
+            refilledAt = now;
+        }
+
+        // 0 if a request of the priority may be sent now, otherwise the nanos until the bucket has the points for it
+        long waitNanos(Priority priority, long now) {
+            double needed = priority == Priority.CRITICAL ? 1 : 1 + reserve * limit;
+            if(points >= needed)
+                return 0;
+            return Math.max(1, (long) ((needed - points) * REFILL_NANOS / limit));
+        }
+
+        // a bucket created again for the key starts full as well, only the limit is learned again from the first response. Call refill first
+        boolean isIdle() {
+            if(inFlight > 0 || points < limit)
+                return false;
+            for (ArrayDeque<Task> queue : queues) {
+                if(!queue.isEmpty())
+                    return false;
+            }
+            return true;
+        }
+
+        void update(HttpHeaders headers, boolean isRateLimited) {
+            long remaining = headers.firstValueAsLong("Ratelimit-Remaining").orElse(-1);
+            long headerLimit = headers.firstValueAsLong("Ratelimit-Limit").orElse(-1);
+            if(headerLimit > 0)
+                limit = (int) headerLimit;
+            refill(System.nanoTime());
+            // the header does not count the requests that are still in flight, the local count already does. The lower one is closer to the truth
+            if(remaining >= 0)
+                points = Math.min(points, remaining);
+            if(isRateLimited)
+                points = Math.min(points, 0);
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only view over one JSON object, e.g. a Helix response or one entry of its "data" array.
+ * <li>The members are found on the first lookup. Only their offsets are kept, a value becomes a String when it is read.
+ * <li>Nested objects are returned as their own{@code JsonObject}. Arrays of objects and of strings can be read with{@code getObjects}and{@code getStrings}.
+ * <li>An instance is safe to read from several threads once it was created, finding the members is synchronized.
+ */
+public final class JsonObject {
+    private final String json;
+    private final int start;
+    private final int end;
+    // key -> offsets of the value, found on the first lookup
+    private Map<String, int[]> members;
+
+    private JsonObject(String json, int start, int end) {
+        this.json = json;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns a view over the given JSON object. Nothing is parsed until the first lookup.
+     */
+    public static JsonObject of(String json) {
+        return new JsonObject(json, 0, json.length());
+    }
+
+    public boolean has(String key) {
+        return members().containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return members().keySet();
+    }
+
+    /**
+     * Returns the value of a string member with all escapes resolved, the raw value of a number or boolean, or null if the member is missing or null.
+     */
+    public String getString(String key) {
+        int[] value = members().get(key);
+        if(value == null || json.startsWith("null", value[0]))
+            return null;
+        if(json.charAt(value[0]) != '"')
+            return json.substring(value[0], value[1]);
+        return unescape(value[0] + 1, value[1] - 1);
+    }
+
+    /**
+     * Returns the value of a number member, or of a string member that holds a number, e.g. the user ids. Returns the default if it is missing or not a number.
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = getString(key);
+        if(value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public int getInt(String key, int defaultValue) {
+        long value = getLong(key, defaultValue);
+        return value == (int) value ? (int) value : defaultValue;
+    }
+
+    public boolean getBoolean(String key) {
+        int[] value = members().get(key);
+        return value != null && json.startsWith("true", value[0]);
+    }
+
+    /**
+     * Returns the nested object or null if the member is missing or not an object.
+     */
+    public JsonObject getObject(String key) {
+        int[] value = members().get(key);
+        if(value == null || json.charAt(value[0]) != '{')
+            return null;
+        return new JsonObject(json, value[0], value[1]);
+    }
+
+    /**
+     * Returns the objects of an array member, e.g. "data" of a Helix response. Returns an empty list if the member is missing or not an array, elements that are not objects are skipped.
+     */
+    public List<JsonObject> getObjects(String key) {
+        List<JsonObject> objects = new ArrayList<>();
+        for (int[] element : elements(key)) {
+            if(json.charAt(element[0]) == '{')
+                objects.add(new JsonObject(json, element[0], element[1]));
+        }
+        return objects;
+    }
+
+    /**
+     * Returns the strings of an array member, e.g. the tags of a stream. Returns an empty list if the member is missing or not an array.
+     */
+    public List<String> getStrings(String key) {
+        List<String> strings = new ArrayList<>();
+        for (int[] element : elements(key)) {
+            if(json.charAt(element[0]) == '"')
+                strings.add(unescape(element[0] + 1, element[1] - 1));
+        }
+        return strings;
+    }
+
+    private List<int[]> elements(String key) {
+        List<int[]> elements = new ArrayList<>();
+        int[] value = members().get(key);
+        if(value == null || json.charAt(value[0]) != '[')
+            return elements;
+        int pos = skipWhitespace(value[0] + 1);
+        while (pos < value[1] && json.charAt(pos) != ']') {
+            int elementEnd = skipValue(pos);
+            elements.add(new int[] { pos, elementEnd });
+            pos = skipWhitespace(elementEnd);
+            if(pos >= value[1] || json.charAt(pos) != ',')
+                break;
+            pos = skipWhitespace(pos + 1);
+        }
+        return elements;
+    }
+
+    /**
+     * Returns the value as it was sent, e.g. an array.
+     */
+    public String getRaw(String key) {
+        int[] value = members().get(key);
+        return value == null ? null : json.substring(value[0], value[1]);
+    }
+
+    private synchronized Map<String, int[]> members() {
+        if(members != null)
+            return members;
+        Map<String, int[]> found = new HashMap<>();
+        try {
+            int pos = skipWhitespace(start);
+            if(json.charAt(pos) == '{') {
+                pos = skipWhitespace(pos + 1);
+                while (pos < end && json.charAt(pos) == '"') {
+                    int keyEnd = stringEnd(pos + 1);
+                    String key = unescape(pos + 1, keyEnd);
+                    pos = skipWhitespace(keyEnd + 1);
+                    if(json.charAt(pos) != ':')
+                        break;
+                    pos = skipWhitespace(pos + 1);
+                    int valueEnd = skipValue(pos);
+                    found.put(key, new int[] { pos, valueEnd });
+                    pos = skipWhitespace(valueEnd);
+                    if(json.charAt(pos) != ',')
+                        break;
+                    pos = skipWhitespace(pos + 1);
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // the members before the end of a cut off object are kept
+        }
+        members = found;
+        return members;
+    }
+
+    // returns the index of the '"' that ends the string starting at from
+    private int stringEnd(int from) {
+        int i = from;
+        while (true) {
+            i = json.indexOf('"', i);
+            if(i < 0 || i >= end)
+                throw new StringIndexOutOfBoundsException("unterminated string");
+            int backslashes = 0;
+            while (json.charAt(i - 1 - backslashes) == '\\')
+                backslashes++;
+            if((backslashes & 1) == 0)
+                return i;
+            i++;
+        }
+    }
+
+    // returns the index after the value starting at from
+    private int skipValue(int from) {
+        char c = json.charAt(from);
+        if(c == '"')
+            return stringEnd(from + 1) + 1;
+        if(c != '{' && c != '[') {
+            int i = from;
+            while (i < end) {
+                c = json.charAt(i);
+                if(c == ',' || c == '}' || c == ']' || c <= ' ')
+                    return i;
+                i++;
+            }
+            return i;
+        }
+
+        int depth = 0;
+        for (int i = from; i < end; i++) {
+            c = json.charAt(i);
+            if(c == '"') {
+                i = stringEnd(i + 1);
+            } else if(c == '{' || c == '[') {
+                depth++;
+            } else if((c == '}' || c == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+        throw new StringIndexOutOfBoundsException("unterminated value");
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < end && json.charAt(i) <= ' ')
+            i++;
+        return i;
+    }
+
+    private String unescape(int from, int to) {
+        int backslash = from;
+        while (backslash < to && json.charAt(backslash) != '\\')
+            backslash++;
+        if(backslash == to)
+            return json.substring(from, to);
+        StringBuilder sb = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            char c = json.charAt(i);
+            if(c != '\\' || i + 1 >= to) {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if(i + 4 < to) {
+                        sb.append((char) Integer.parseInt(json, i + 1, i + 5, 16));
+                        i += 4;
+                    }
+                    break;
+                default: sb.append(c); // \" \\ \/
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return json.substring(start, end);
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Watches a large list of channels for streams that go live, go offline or change their title or game, e.g. 20000 channels with one request per 100 of them.
+ * <li>The channels are split into batches of 100 logins, one "Get Streams" request each. If Helix returns a cursor, the next page is requested before the current one is diffed.
+ * <li>The batches of a round are spread evenly over the interval instead of being sent at once. 20000 channels every minute are 200 requests per minute, a quarter of the usual 800 points.
+ *     With{@code TwitchAPIClient.setScheduler}and{@code BACKGROUND}priority the polls also wait for other requests of the app.
+ * <li>Every response is diffed against a snapshot of the last round, and only the changes reach the listeners. The first round of a batch only fills the snapshot.
+ * <li>The snapshot is a few primitive arrays indexed by channel, and a map from user id to channel with primitive keys, about 50 bytes per channel besides the logins.
+ *     A round allocates nothing per channel but the records of the live streams.
+ */
+public final class LiveStatusPoller implements AutoCloseable {
+    public static final Duration DEFAULT_INTERVAL = Duration.ofMinutes(1);
+    public static final int BATCH_SIZE = 100;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchAPI-poller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives the changes of a round. The methods are called on the executor of the client, one batch at a time.
+     */
+    public interface Listener {
+        default void onLive(TwitchAPIClient.Stream stream) {}
+
+        default void onOffline(String login, long userId) {}
+
+        default void onChange(TwitchAPIClient.Stream stream, boolean isTitleChanged, boolean isGameChanged) {}
+    }
+
+    private final TwitchAPIClient client;
+    private final String[] logins;
+    private final Batch[] batches;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<ScheduledFuture<?>> polls = new ArrayList<>();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    // the snapshot, indexed by channel and guarded by this
+    private final long[] userIds;
+    private final long[] streamIds;
+    private final long[] gameIds;
+    private final int[] titleHashes;
+    private final BitSet live;
+    private final LongIntMap channelsByUserId;
+
+    /**
+     * Duplicates are dropped, logins are compared ignoring case.
+     */
+    public LiveStatusPoller(TwitchAPIClient client, Collection<String> logins) {
+        this.client = client;
+        LinkedHashSet<String> unique = new LinkedHashSet<>();
+        for (String login : logins)
+            unique.add(login.toLowerCase(Locale.ROOT));
+        this.logins = unique.toArray(new String[0]);
+        int channels = this.logins.length;
+        userIds = new long[channels];
+        streamIds = new long[channels];
+        gameIds = new long[channels];
+        titleHashes = new int[channels];
+        live = new BitSet(channels);
+        channelsByUserId = new LongIntMap(channels);
+        batches = new Batch[(channels + BATCH_SIZE - 1) / BATCH_SIZE];
+        for (int i = 0; i < batches.length; i++)
+            batches[i] = new Batch(i * BATCH_SIZE, Math.min(channels, (i + 1) * BATCH_SIZE));
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Polls every channel once per interval. A batch whose last poll has not finished yet skips its turn.
+     */
+    public synchronized void start(Duration interval) {
+        if(!polls.isEmpty())
+            throw new IllegalStateException("The poller was already started");
+        long intervalNanos = interval.toNanos();
+        for (int i = 0; i < batches.length; i++) {
+            Batch batch = batches[i];
+            polls.add(scheduler.scheduleAtFixedRate(() -> poll(batch), intervalNanos * i / batches.length, intervalNanos, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    public void start() {
+        start(DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Polls every batch now and completes when all of them were diffed, e.g. to fill the snapshot before{@code start}.
+     */
+    public CompletableFuture<Void> pollAll() {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[batches.length];
+        for (int i = 0; i < batches.length; i++)
+            futures[i] = poll(batches[i]);
+        return CompletableFuture.allOf(futures);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ScheduledFuture<?> poll : polls)
+            poll.cancel(false);
+        polls.clear();
+    }
+
+    public synchronized boolean isLive(long userId) {
+        int channel = channelsByUserId.get(userId);
+        return channel >= 0 && live.get(channel);
+    }
+
+    public synchronized int getLiveCount() {
+        return live.cardinality();
+    }
+
+    public int getChannelCount() {
+        return logins.length;
+    }
+
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private CompletableFuture<Void> poll(Batch batch) {
+        if(!batch.isPolling.compareAndSet(false, true))
+            return CompletableFuture.completedFuture(null);
+        return poll(batch, null).handle((ignored, error) -> {
+            if(error == null) {
+                finish(batch);
+            } else {
+                // without all pages it is unknown which channels went offline, the next round tries again
+                failures.increment();
+                error.printStackTrace();
+            }
+            batch.seen.clear();
+            batch.isPolling.set(false);
+            return null;
+        });
+    }
+
+    // completes when this page and all that follow it were diffed
+    private CompletableFuture<Void> poll(Batch batch, String cursor) {
+        requests.increment();
+        String path = cursor == null ? batch.path : batch.path + "&after=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8);
+        return client.get(path, TwitchAPIClient.Stream::decode).thenCompose(response -> {
+            if(!response.isSuccess())
+                throw new CompletionException(new IOException("Helix answered " + response.statusCode() + ": " + response.errorMessage()));
+            List<TwitchAPIClient.Stream> streams = response.data();
+            String next = response.cursor();
+            // the next page is on its way while this one is diffed
+            CompletableFuture<Void> rest = next == null || streams.isEmpty() ? CompletableFuture.completedFuture(null) : poll(batch, next);
+            diff(batch, streams);
+            return rest;
+        });
+    }
+
+    private void diff(Batch batch, List<TwitchAPIClient.Stream> streams) {
+        List<Runnable> events = new ArrayList<>();
+        synchronized(this) {
+            for (TwitchAPIClient.Stream stream : streams) {
+                long userId = parseId(stream.userId());
+                int channel = channelsByUserId.get(userId);
+                if(channel < 0) {
+                    channel = batch.channel(stream.userLogin());
+                    if(channel < 0)
+                        continue;
+                    channelsByUserId.put(userId, channel);
+                    userIds[channel] = userId;
+                }
+                batch.seen.set(channel - batch.from);
+
+                long streamId = parseId(stream.id());
+                long gameId = parseId(stream.gameId());
+                int titleHash = stream.title() == null ? 0 : stream.title().hashCode();
+                if(batch.isPolled) {
+                    if(!live.get(channel)) {
+                        events.add(() -> live(stream));
+                    } else if(streamIds[channel] != streamId) {
+                        // the stream ended and a new one started between two rounds
+                        String login = logins[channel];
+                        events.add(() -> offline(login, userId));
+                        events.add(() -> live(stream));
+                    } else if(titleHashes[channel] != titleHash || gameIds[channel] != gameId) {
+                        boolean isTitleChanged = titleHashes[channel] != titleHash;
+                        boolean isGameChanged = gameIds[channel] != gameId;
+                        events.add(() -> changed(stream, isTitleChanged, isGameChanged));
+                    }
+                }
+                live.set(channel);
+                streamIds[channel] = streamId;
+                gameIds[channel] = gameId;
+                titleHashes[channel] = titleHash;
+            }
+        }
+        for (Runnable event : events)
+            event.run();
+    }
+
+    // the channels of the batch that were live and are missing from all pages went offline
+    private void finish(Batch batch) {
+        List<Runnable> events = new ArrayList<>();
+        synchronized(this) {
+            for (int channel = live.nextSetBit(batch.from); channel >= 0 && channel < batch.to; channel = live.nextSetBit(channel + 1)) {
+                if(batch.seen.get(channel - batch.from))
+                    continue;
+                live.clear(channel);
+                if(batch.isPolled) {
+                    String login = logins[channel];
+                    long userId = userIds[channel];
+                    events.add(() -> offline(login, userId));
+                }
+            }
+            batch.isPolled = true;
+        }
+        for (Runnable event : events)
+            event.run();
+    }
+
+    private void live(TwitchAPIClient.Stream stream) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onLive(stream);
+            } catch (Exception e) { e.printStackTrace(); }
+        }
+    }
+
+    private void offline(String login, long userId) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onOffline(login, userId);
+            } catch (Exception e) { e.printStackTrace(); }
+        }
+    }
+
+    private void changed(TwitchAPIClient.Stream stream, boolean isTitleChanged, boolean isGameChanged) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onChange(stream, isTitleChanged, isGameChanged);
+            } catch (Exception e) { e.printStackTrace(); }
+        }
+    }
+
+    // helix ids are numbers in strings, anything else is hashed so a change is still noticed
+    private static long parseId(String id) {
+        if(id == null || id.isEmpty())
+            return 0;
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return id.hashCode();
+        }
+    }
+
+    // up to 100 channels that are polled with one request
+    private final class Batch {
+        final int from;
+        final int to;
+        final String path;
+        // the logins of the batch in sorted order and their channels, to find a stream whose user id is not known yet
+        final String[] sortedLogins;
+        final int[] sortedChannels;
+        // the channels that were returned by the current poll, guarded by the poller
+        final BitSet seen;
+        final AtomicBoolean isPolling = new AtomicBoolean();
+        boolean isPolled;
+
+        Batch(int from, int to) {
+            this.from = from;
+            this.to = to;
+            path = "streams" + TwitchAPIClient.query("user_login", Arrays.asList(logins).subList(from, to)) + "&first=" + BATCH_SIZE;
+            Integer[] order = new Integer[to - from];
+            for (int i = 0; i < order.length; i++)
+                order[i] = from + i;
+            Arrays.sort(order, (a, b) -> logins[a].compareTo(logins[b]));
+            sortedLogins = new String[order.length];
+            sortedChannels = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedLogins[i] = logins[order[i]];
+                sortedChannels[i] = order[i];
+            }
+            seen = new BitSet(to - from);
+        }
+
+        int channel(String login) {
+            if(login == null)
+                return -1;
+            int index = Arrays.binarySearch(sortedLogins, login.toLowerCase(Locale.ROOT));
+            return index < 0 ? -1 : sortedChannels[index];
+        }
+    }
+
+    // an open addressing map from user id to channel without boxing, user ids are never 0
+    private static final class LongIntMap {
+        private final long[] keys;
+        private final int[] values;
+        private final int mask;
+
+        LongIntMap(int expectedSize) {
+            // at most half full, the set of channels does not grow
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int get(long key) {
+            if(key == 0)
+                return -1;
+            for (int index = index(key); ; index = (index + 1) & mask) {
+                if(keys[index] == key)
+                    return values[index];
+                if(keys[index] == 0)
+                    return -1;
+            }
+        }
+
+        void put(long key, int value) {
+            if(key == 0)
+                return;
+            int index = index(key);
+            while (keys[index] != 0 && keys[index] != key)
+                index = (index + 1) & mask;
+            keys[index] = key;
+            values[index] = value;
+        }
+
+        private int index(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
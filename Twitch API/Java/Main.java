@@ -13,5 +13,13 @@ public class Main {
         response = TwitchAPI.getUserData(channelName, clientID, oauthToken);
         if (response != null)
             System.out.println(response.body());
+
+        // the same with a client that keeps its connection, the response is parsed into a record
+        TwitchAPIClient client = new TwitchAPIClient(clientID, oauthToken);
+        client.getUsersAsync(java.util.List.of(channelName)).thenAccept(users -> System.out.println(users.first())).join();
+
+        // lookups of single channels from many threads, the batcher sends them together with up to 100 logins per request
+        HelixBatcher batcher = new HelixBatcher(client);
+        batcher.getStream(channelName).thenAccept(stream -> System.out.println(stream == null ? channelName + " is offline" : stream.title())).join();
     }
 }
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the validation of every token of the app and validates them again in the background, like Twitch asks apps to do every hour.
+ * <li>{@code validate(token)}only goes to id.twitch.tv the first time, after that it returns the cached login, user id, scopes and expiry.
+ * <li>Every token is validated again after about an hour, with 10% jitter. The first revalidation of a new token is anywhere in the second half of the interval,
+ *     so thousands of tokens that were added at once are spread over the hour instead of all coming back at the same time.
+ * <li>The listeners are told when a token expires within a few minutes, so a new one can be handed to the clients before their connections fail,
+ *     and when Twitch answered 401, e.g. because the token was revoked.
+ * <li><b>Example:</b>
+ * <pre> {@code
+ * tokens.addListener(new TokenManager.Listener() {
+ *     public void onExpiring(String token, TwitchAPIClient.Validation validation, Duration left) {
+ *         String refreshed = refresh(token);
+ *         irc.setOauthToken(refreshed);
+ *         eventSub.replaceAccessToken(token, refreshed);
+ *         tokens.replace(token, refreshed);
+ *     }
+ * });
+ * }</pre>
+ * <li>Twitch docs: https://dev.twitch.tv/docs/authentication/validate-tokens/
+ */
+public final class TokenManager implements AutoCloseable {
+    public static final Duration DEFAULT_REVALIDATE_INTERVAL = Duration.ofHours(1);
+    public static final Duration DEFAULT_EXPIRY_WARNING = Duration.ofMinutes(5);
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchAPI-tokens");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The methods are called on the executor of the client.
+     */
+    public interface Listener {
+        /**
+         * The token expires in{@code left}. Called once per token, at the expiry warning time or right after the validation if it is already closer.
+         */
+        default void onExpiring(String token, TwitchAPIClient.Validation validation, Duration left) {}
+
+        /**
+         * Twitch answered 401, the token expired or was revoked. It is not validated again.
+         */
+        default void onInvalid(String token) {}
+    }
+
+    private final TwitchAPIClient client;
+    private final Map<String, Entry> tokens = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final long intervalMillis;
+    private final long warningMillis;
+    private volatile boolean isClosed;
+
+    public TokenManager(TwitchAPIClient client) {
+        this(client, DEFAULT_REVALIDATE_INTERVAL, DEFAULT_EXPIRY_WARNING);
+    }
+
+    public TokenManager(TwitchAPIClient client, Duration revalidateInterval, Duration expiryWarning) {
+        this.client = client;
+        this.intervalMillis = revalidateInterval.toMillis();
+        this.warningMillis = expiryWarning.toMillis();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns the validation of the token, and keeps validating it from now on. The future completes with null if the token is invalid.
+     * <li>Concurrent calls for a new token share one request. If id.twitch.tv could not be reached, the future completes exceptionally and the token is not kept.
+     */
+    public CompletableFuture<TwitchAPIClient.Validation> validate(String token) {
+        Entry entry = tokens.computeIfAbsent(token, Entry::new);
+        TwitchAPIClient.Validation last = entry.last;
+        if(last != null)
+            return CompletableFuture.completedFuture(last);
+        synchronized(entry) {
+            if(entry.first == null)
+                entry.first = validate(entry, true);
+            return entry.first;
+        }
+    }
+
+    /**
+     * Returns the cached validation, or null if the token was not validated yet or is invalid.
+     */
+    public TwitchAPIClient.Validation getValidation(String token) {
+        Entry entry = tokens.get(token);
+        return entry == null ? null : entry.last;
+    }
+
+    /**
+     * Stops validating the old token and starts with the new one, e.g. after it was refreshed.
+     */
+    public CompletableFuture<TwitchAPIClient.Validation> replace(String oldToken, String newToken) {
+        remove(oldToken);
+        return validate(newToken);
+    }
+
+    public void remove(String token) {
+        Entry entry = tokens.remove(token);
+        if(entry != null)
+            entry.cancel();
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        for (Entry entry : tokens.values())
+            entry.cancel();
+        tokens.clear();
+    }
+
+    private CompletableFuture<TwitchAPIClient.Validation> validate(Entry entry, boolean isFirst) {
+        return client.validateAsync(entry.token).handle((response, error) -> {
+            if(tokens.get(entry.token) != entry)
+                return null; // removed in the meantime
+            if(error == null && response.statusCode() == 401) {
+                tokens.remove(entry.token, entry);
+                entry.cancel();
+                entry.last = null;
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onInvalid(entry.token);
+                    } catch (Exception e) { e.printStackTrace(); }
+                }
+                return null;
+            }
+            if(error != null || !response.isSuccess()) {
+                if(error == null)
+                    error = new IOException("Validation answered " + response.statusCode() + ": " + response.errorMessage());
+                if(isFirst) {
+                    tokens.remove(entry.token, entry);
+                    entry.cancel();
+                    throw new CompletionException(error);
+                }
+                // id.twitch.tv could not be reached, the last validation stays until the next try
+                error.printStackTrace();
+                schedule(entry, jitter(RETRY_MILLIS, 0.5));
+                return entry.last;
+            }
+
+            TwitchAPIClient.Validation validation = response.first();
+            long now = System.currentTimeMillis();
+            entry.last = validation;
+            // expires_in is 0 for tokens that do not expire
+            long expiresAt = validation.expiresIn() > 0 ? now + TimeUnit.SECONDS.toMillis(validation.expiresIn()) : 0;
+            long next = isFirst ? jitter(intervalMillis * 3 / 4, 1.0 / 3) : jitter(intervalMillis, 0.1);
+            if(expiresAt != 0)
+                next = Math.min(next, expiresAt - now + 1000);
+            schedule(entry, next);
+            if(expiresAt != 0)
+                warn(entry, validation, expiresAt, now);
+            return validation;
+        });
+    }
+
+    // warns once per token, a validation does not extend its expiry. Now if the token is already within the warning time
+    private void warn(Entry entry, TwitchAPIClient.Validation validation, long expiresAt, long now) {
+        long delay = Math.max(0, expiresAt - warningMillis - now);
+        Runnable warning = () -> {
+            synchronized(entry) {
+                if(entry.isWarned || entry.isCancelled)
+                    return;
+                entry.isWarned = true;
+            }
+            Duration left = Duration.ofMillis(Math.max(0, expiresAt - System.currentTimeMillis()));
+            for (Listener listener : listeners) {
+                try {
+                    listener.onExpiring(entry.token, validation, left);
+                } catch (Exception e) { e.printStackTrace(); }
+            }
+        };
+        if(delay == 0) {
+            warning.run();
+            return;
+        }
+        synchronized(entry) {
+            if(entry.warning != null)
+                entry.warning.cancel(false);
+            entry.warning = schedule(warning, delay);
+        }
+    }
+
+    private void schedule(Entry entry, long delayMillis) {
+        synchronized(entry) {
+            if(entry.next != null)
+                entry.next.cancel(false);
+            entry.next = schedule(() -> validate(entry, false), delayMillis);
+        }
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        if(isClosed)
+            return null;
+        try {
+            return scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    // a random time between (1 - spread) and (1 + spread) times the base
+    private static long jitter(long baseMillis, double spread) {
+        return (long) (baseMillis * (1 - spread + ThreadLocalRandom.current().nextDouble() * 2 * spread));
+    }
+
+    private static final class Entry {
+        final String token;
+        // the last validation that completed, null until the first one
+        volatile TwitchAPIClient.Validation last;
+        // guarded by this, the first validation that callers wait for
+        CompletableFuture<TwitchAPIClient.Validation> first;
+        ScheduledFuture<?> next;
+        ScheduledFuture<?> warning;
+        boolean isWarned;
+        boolean isCancelled;
+
+        Entry(String token) {
+            this.token = token;
+        }
+
+        synchronized void cancel() {
+            isCancelled = true;
+            if(next != null)
+                next.cancel(false);
+            if(warning != null)
+                warning.cancel(false);
+        }
+    }
+}
@@ -1,21 +1,33 @@
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 
+/**
+ * Blocking calls to the Twitch API that return the raw response, or null if the request could not be sent.
+ * <li>The requests share the connections of{@code TwitchAPIClient}. For futures and typed responses use a{@code TwitchAPIClient}.
+ * <li>With{@code setScheduler}the Helix requests wait for the rate limit instead of running into 429s.
+ */
 public final class TwitchAPI {
+    private static volatile HelixScheduler scheduler;
+
     private TwitchAPI() {}
 
+    /**
+     * Sends the following Helix requests through the scheduler with{@code NORMAL}priority. With null they are sent directly again.
+     */
+    public static void setScheduler(HelixScheduler scheduler) {
+        TwitchAPI.scheduler = scheduler;
+    }
+
     public static HttpResponse<String> validateOuath(String oauthToken) {
         HttpResponse<String> response = null;
         HttpRequest request = HttpRequest.newBuilder()
                 .uri(URI.create("https://id.twitch.tv/oauth2/validate"))
                 .header("Authorization", "OAuth " + oauthToken)
                 .build();
-        HttpClient client = HttpClient.newHttpClient();
         try {
-            response = client.send(request, BodyHandlers.ofString());
+            response = TwitchAPIClient.HTTP_CLIENT.send(request, BodyHandlers.ofString());
         } catch (Exception e) { e.printStackTrace(); }
         return response;
     }
@@ -51,9 +63,12 @@ public final class TwitchAPI {
                 .header("Authorization", "Bearer " + oauthToken)
                 .header("Client-Id", clientId)
                 .build();
-        HttpClient client = HttpClient.newHttpClient();
+        HelixScheduler scheduler = TwitchAPI.scheduler;
         try {
-            response = client.send(request, BodyHandlers.ofString());
+            if(scheduler != null)
+                response = scheduler.send(request, HelixScheduler.Priority.NORMAL).join();
+            else
+                response = TwitchAPIClient.HTTP_CLIENT.send(request, BodyHandlers.ofString());
         } catch (Exception e) { e.printStackTrace(); }
         return response;
     }
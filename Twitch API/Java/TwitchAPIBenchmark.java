@@ -0,0 +1,125 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Compares a new{@code HttpClient}per request, like{@code TwitchAPI}did before, with the shared client of{@code TwitchAPIClient}, blocking and with futures.
+ * <li>The requests go to a local server that answers "Get Users" like Helix. There is no network in between and no TLS, so the handshake a new client pays against
+ *     api.twitch.tv (several round trips) is not measured. The gap to Twitch is larger than the one shown here.
+ * <li>Run with:{@code java TwitchAPIBenchmark [requests] [concurrent futures]}
+ */
+public class TwitchAPIBenchmark {
+    private static final String USER = "{\"data\":[{\"id\":\"141981764\",\"login\":\"twitchdev\",\"display_name\":\"TwitchDev\",\"type\":\"\",\"broadcaster_type\":\"partner\","
+            + "\"description\":\"Supporting third-party developers building Twitch integrations from chatbots to game integrations.\",\"profile_image_url\":\"https://static-cdn.jtvnw.net/jtv_user_pictures/8a6381c7-d0c0-4576-b179-38bd5ce1d6af-profile_image-300x300.png\","
+            + "\"offline_image_url\":\"https://static-cdn.jtvnw.net/jtv_user_pictures/3f13ab61-ec78-4fe6-8481-8682cb3b0ac2-channel_offline_image-1920x1080.png\",\"view_count\":5980557,\"created_at\":\"2016-12-14T20:32:28Z\"}]}";
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        byte[] body = USER.getBytes(StandardCharsets.UTF_8);
+        server.createContext("/helix/users", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Ratelimit-Remaining", "799");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8, runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        URI helix = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/helix/");
+        TwitchAPIClient client = new TwitchAPIClient("client", "token", null, TwitchAPIClient.HTTP_CLIENT, helix, helix);
+
+        // warm up all paths
+        perCallClient(helix, 200);
+        sharedClient(client, 200);
+        futures(client, 200, concurrency);
+
+        System.out.printf("%-24s %10s %10s %10s %10s%n", "", "requests/s", "p50", "p99", "max");
+        for (int round = 0; round < 3; round++) {
+            print("new client per request", perCallClient(helix, requests));
+            print("shared client, blocking", sharedClient(client, requests));
+            print("shared client, futures", futures(client, requests, concurrency));
+        }
+        server.stop(0);
+    }
+
+    // the old getConnectionResponse: a new HttpClient, and with it a new connection, for every request
+    private static long[] perCallClient(URI helix, int requests) throws Exception {
+        long[] nanos = new long[requests + 1];
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long before = System.nanoTime();
+            HttpRequest request = HttpRequest.newBuilder(helix.resolve("users?login=twitchdev")).header("Authorization", "Bearer token").header("Client-Id", "client").build();
+            HttpClient httpClient = HttpClient.newHttpClient();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if(response.statusCode() != 200)
+                throw new IllegalStateException(response.toString());
+            nanos[i] = System.nanoTime() - before;
+        }
+        nanos[requests] = System.nanoTime() - start;
+        return nanos;
+    }
+
+    private static long[] sharedClient(TwitchAPIClient client, int requests) {
+        long[] nanos = new long[requests + 1];
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            long before = System.nanoTime();
+            if(client.getUser("twitchdev").first() == null)
+                throw new IllegalStateException();
+            nanos[i] = System.nanoTime() - before;
+        }
+        nanos[requests] = System.nanoTime() - start;
+        return nanos;
+    }
+
+    private static long[] futures(TwitchAPIClient client, int requests, int concurrency) throws InterruptedException {
+        long[] nanos = new long[requests + 1];
+        Semaphore inFlight = new Semaphore(concurrency);
+        List<CompletableFuture<?>> futures = new ArrayList<>(requests);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            int index = i;
+            long before = System.nanoTime();
+            futures.add(client.getUsersAsync(List.of("twitchdev")).whenComplete((response, error) -> {
+                nanos[index] = System.nanoTime() - before;
+                inFlight.release();
+                if(error != null || response.first() == null)
+                    throw new IllegalStateException(error);
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        nanos[requests] = System.nanoTime() - start;
+        return nanos;
+    }
+
+    private static void print(String name, long[] nanos) {
+        int requests = nanos.length - 1;
+        long total = nanos[requests];
+        long[] sorted = Arrays.copyOf(nanos, requests);
+        Arrays.sort(sorted);
+        System.out.printf("%-24s %10.0f %7.0f us %7.0f us %7.0f us%n", name, requests * 1e9 / total,
+                sorted[requests / 2] / 1e3, sorted[(int) (requests * 0.99)] / 1e3, sorted[requests - 1] / 1e3);
+    }
+}
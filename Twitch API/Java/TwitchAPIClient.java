@@ -0,0 +1,246 @@
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A client for the Twitch Helix API that keeps its connections. Unlike the static methods of{@code TwitchAPI}it does not open a new connection for every request.
+ * <li>All instances share one{@code HttpClient}: requests go over a pooled HTTP/2 connection to api.twitch.tv, so only the first request pays the TCP and TLS handshake.
+ * <li>Every endpoint has a variant that returns a{@code CompletableFuture}. The futures are completed on the executor of the client, e.g.{@code Executors.newVirtualThreadPerTaskExecutor()}on Java 21 and newer.
+ *     No thread waits for the network in the meantime.
+ * <li>The responses are{@code HelixResponse}s, their body is only parsed into the records below when{@code data()}is called.
+ * <li>The blocking variants return null and print the stack trace if the request could not be sent, like{@code TwitchAPI}.
+ * <li>Twitch docs: https://dev.twitch.tv/docs/api/reference/
+ */
+public final class TwitchAPIClient {
+    static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    static final URI HELIX_URI = URI.create("https://api.twitch.tv/helix/");
+    static final URI ID_URI = URI.create("https://id.twitch.tv/oauth2/");
+
+    // used by clients that were not given an executor, the futures only parse on it
+    private static final ExecutorService DEFAULT_EXECUTOR;
+    static {
+        AtomicInteger threadNumber = new AtomicInteger();
+        DEFAULT_EXECUTOR = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "TwitchAPI-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private final String clientId;
+    private volatile String oauthToken;
+    private final Executor executor;
+    private final HttpClient httpClient;
+    private final URI helixUri;
+    private final URI idUri;
+    private volatile HelixScheduler scheduler;
+    private volatile HelixScheduler.Priority priority;
+
+    public TwitchAPIClient(String clientId, String oauthToken) {
+        this(clientId, oauthToken, null);
+    }
+
+    /**
+     * Completes the futures on the given executor. With null they are completed on a small shared pool of daemon threads.
+     */
+    public TwitchAPIClient(String clientId, String oauthToken, Executor executor) {
+        this(clientId, oauthToken, executor, HTTP_CLIENT, HELIX_URI, ID_URI);
+    }
+
+    // the uris can point to a local server, e.g. for the benchmark
+    TwitchAPIClient(String clientId, String oauthToken, Executor executor, HttpClient httpClient, URI helixUri, URI idUri) {
+        this.clientId = clientId;
+        this.oauthToken = oauthToken;
+        this.executor = executor == null ? DEFAULT_EXECUTOR : executor;
+        this.httpClient = httpClient;
+        this.helixUri = helixUri;
+        this.idUri = idUri;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    /**
+     * Replaces the token for all following requests, e.g. after it was refreshed.
+     */
+    public void setOauthToken(String oauthToken) {
+        this.oauthToken = oauthToken;
+    }
+
+    /**
+     * Sends all following requests through the scheduler with the priority, e.g. one client with{@code BACKGROUND}for lookups and one with{@code CRITICAL}for moderation.
+     * With null they are sent directly again.
+     */
+    public void setScheduler(HelixScheduler scheduler, HelixScheduler.Priority priority) {
+        this.priority = priority;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Validates the token, Twitch asks apps to do that on start and every hour.
+     * <li>See https://dev.twitch.tv/docs/authentication/validate-tokens/
+     */
+    public HelixResponse<Validation> validate() {
+        return join(validateAsync());
+    }
+
+    public CompletableFuture<HelixResponse<Validation>> validateAsync() {
+        return validateAsync(oauthToken);
+    }
+
+    // any token, e.g. the ones of a TokenManager
+    CompletableFuture<HelixResponse<Validation>> validateAsync(String oauthToken) {
+        HttpRequest request = HttpRequest.newBuilder(idUri.resolve("validate"))
+                .header("Authorization", "OAuth " + oauthToken)
+                .build();
+        return send(request, Validation::decode, false);
+    }
+
+    /**
+     * Uses Twitch's "Get Users" API to get the data of a channel.
+     * <li>See https://dev.twitch.tv/docs/api/reference/#get-users
+     */
+    public HelixResponse<User> getUser(String login) {
+        return join(getUsersAsync(List.of(login)));
+    }
+
+    /**
+     * Gets up to 100 users by login in one request.
+     */
+    public CompletableFuture<HelixResponse<User>> getUsersAsync(Collection<String> logins) {
+        return get("users", "login", logins, User::decode);
+    }
+
+    /**
+     * Gets up to 100 users by id in one request.
+     */
+    public CompletableFuture<HelixResponse<User>> getUsersByIdAsync(Collection<String> ids) {
+        return get("users", "id", ids, User::decode);
+    }
+
+    /**
+     * Uses Twitch's "Get Streams" API to get the data of a current live stream. The data is empty if the channel is offline.
+     * <li>See https://dev.twitch.tv/docs/api/reference/#get-streams
+     */
+    public HelixResponse<Stream> getStream(String login) {
+        return join(getStreamsAsync(List.of(login)));
+    }
+
+    /**
+     * Gets the live streams of up to 100 logins in one request. Offline channels are missing from the data.
+     */
+    public CompletableFuture<HelixResponse<Stream>> getStreamsAsync(Collection<String> logins) {
+        return get("streams", "user_login", logins, Stream::decode);
+    }
+
+    public CompletableFuture<HelixResponse<Stream>> getStreamsByIdAsync(Collection<String> userIds) {
+        return get("streams", "user_id", userIds, Stream::decode);
+    }
+
+    /**
+     * Uses Twitch's "Get Videos" API to get the data of a VOD.
+     * <li>See https://dev.twitch.tv/docs/api/reference/#get-videos
+     */
+    public HelixResponse<Video> getVideo(String id) {
+        return join(getVideosAsync(List.of(id)));
+    }
+
+    public CompletableFuture<HelixResponse<Video>> getVideosAsync(Collection<String> ids) {
+        return get("videos", "id", ids, Video::decode);
+    }
+
+    /**
+     * Sends a GET request to any Helix endpoint, e.g.{@code get("channels?broadcaster_id=123", entry -> entry)}for the raw entries.
+     */
+    public <T> CompletableFuture<HelixResponse<T>> get(String pathAndQuery, Function<JsonObject, T> decoder) {
+        return get(pathAndQuery, decoder, null);
+    }
+
+    // with an etag Helix can answer 304 Not Modified instead of sending the data again
+    <T> CompletableFuture<HelixResponse<T>> get(String pathAndQuery, Function<JsonObject, T> decoder, String etag) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(helixUri.resolve(pathAndQuery))
+                .header("Authorization", "Bearer " + oauthToken)
+                .header("Client-Id", clientId);
+        if(etag != null)
+            request.header("If-None-Match", etag);
+        return send(request.build(), decoder, true);
+    }
+
+    private <T> CompletableFuture<HelixResponse<T>> get(String path, String parameter, Collection<String> values, Function<JsonObject, T> decoder) {
+        return get(path + query(parameter, values), decoder);
+    }
+
+    // e.g. ?login=a&login=b, helix takes up to 100 of them
+    static String query(String parameter, Collection<String> values) {
+        if(values.size() > 100)
+            throw new IllegalArgumentException("Helix takes at most 100 values per request, got " + values.size());
+        StringBuilder query = new StringBuilder(values.size() * (parameter.length() + 16));
+        for (String value : values)
+            query.append(query.length() == 0 ? '?' : '&').append(parameter).append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+        return query.toString();
+    }
+
+    private <T> CompletableFuture<HelixResponse<T>> send(HttpRequest request, Function<JsonObject, T> decoder, boolean isDataArray) {
+        HelixScheduler scheduler = this.scheduler;
+        CompletableFuture<HttpResponse<String>> sent = scheduler == null ? httpClient.sendAsync(request, BodyHandlers.ofString()) : scheduler.send(request, priority);
+        return sent.thenApplyAsync(response -> new HelixResponse<>(response.statusCode(), response.body(), response.headers(), decoder, isDataArray), executor);
+    }
+
+    private static <T> HelixResponse<T> join(CompletableFuture<HelixResponse<T>> future) {
+        try {
+            return future.join();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public record Validation(String clientId, String login, String userId, List<String> scopes, long expiresIn) {
+        static Validation decode(JsonObject e) {
+            return new Validation(e.getString("client_id"), e.getString("login"), e.getString("user_id"), e.getStrings("scopes"), e.getLong("expires_in", 0));
+        }
+    }
+
+    public record User(String id, String login, String displayName, String type, String broadcasterType, String description,
+                       String profileImageUrl, String offlineImageUrl, String createdAt) {
+        static User decode(JsonObject e) {
+            return new User(e.getString("id"), e.getString("login"), e.getString("display_name"), e.getString("type"), e.getString("broadcaster_type"), e.getString("description"),
+                    e.getString("profile_image_url"), e.getString("offline_image_url"), e.getString("created_at"));
+        }
+    }
+
+    public record Stream(String id, String userId, String userLogin, String userName, String gameId, String gameName, String type, String title,
+                         int viewerCount, String startedAt, String language, String thumbnailUrl, List<String> tags, boolean isMature) {
+        static Stream decode(JsonObject e) {
+            return new Stream(e.getString("id"), e.getString("user_id"), e.getString("user_login"), e.getString("user_name"), e.getString("game_id"), e.getString("game_name"),
+                    e.getString("type"), e.getString("title"), e.getInt("viewer_count", 0), e.getString("started_at"), e.getString("language"), e.getString("thumbnail_url"),
+                    e.getStrings("tags"), e.getBoolean("is_mature"));
+        }
+    }
+
+    public record Video(String id, String streamId, String userId, String userLogin, String userName, String title, String description, String createdAt,
+                        String publishedAt, String url, String thumbnailUrl, String viewable, int viewCount, String language, String type, String duration) {
+        static Video decode(JsonObject e) {
+            return new Video(e.getString("id"), e.getString("stream_id"), e.getString("user_id"), e.getString("user_login"), e.getString("user_name"), e.getString("title"),
+                    e.getString("description"), e.getString("created_at"), e.getString("published_at"), e.getString("url"), e.getString("thumbnail_url"), e.getString("viewable"),
+                    e.getInt("view_count", 0), e.getString("language"), e.getString("type"), e.getString("duration"));
+        }
+    }
+}
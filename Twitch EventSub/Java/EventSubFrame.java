@@ -0,0 +1,491 @@
+/**
+ * A reusable, single pass view over one message of the Twitch EventSub WebSocket.
+ * <li>One scan over the JSON finds every field the client needs: metadata.message_type, message_id, message_timestamp, the subscription type and version,
+ *     the broadcaster of the subscription condition, the span of payload.event and payload.session (id, reconnect_url, keepalive_timeout_seconds).
+ * <li>{@code parse}stops after the metadata, which Twitch sends first. The payload is scanned on the first call of a getter that needs it, continuing where{@code parse}stopped.
+ * <li>The getters of the subscription stop again once subscription.condition was read. The rest of the payload, most of all payload.event, is only scanned
+ *     by the getters that need it, so routing a notification by its subscription type and broadcaster never reads the event.
+ * <li>Parsing only records offsets. Strings are created when a getter is called, the known message types are returned as constants without creating a String.
+ * <li>An instance is not thread-safe and is meant to be reused by the thread that reads from the WebSocket.
+ * <li>Message format: https://dev.twitch.tv/docs/eventsub/websocket-reference/
+ */
+public final class EventSubFrame {
+    public static final String SESSION_WELCOME = "session_welcome";
+    public static final String SESSION_KEEPALIVE = "session_keepalive";
+    public static final String SESSION_RECONNECT = "session_reconnect";
+    public static final String NOTIFICATION = "notification";
+    public static final String REVOCATION = "revocation";
+    private static final String[] MESSAGE_TYPES = { SESSION_WELCOME, SESSION_KEEPALIVE, SESSION_RECONNECT, NOTIFICATION, REVOCATION };
+
+    // the objects whose keys are looked at, every other object is skipped as a whole
+    private static final int ROOT = 0, METADATA = 1, PAYLOAD = 2, SUBSCRIPTION = 3, SESSION = 4, CONDITION = 5, OTHER = -1;
+
+    // the string fields, their offsets are kept in the arrays below
+    private static final int MESSAGE_ID = 0, MESSAGE_TYPE = 1, MESSAGE_TIMESTAMP = 2, SUBSCRIPTION_TYPE = 3, SUBSCRIPTION_VERSION = 4,
+                             SESSION_ID = 5, RECONNECT_URL = 6, CONDITION_BROADCASTER = 7, FIELD_COUNT = 8;
+
+    private String json = "";
+    private int pos;
+    private final int[] fieldStart = new int[FIELD_COUNT];
+    private final int[] fieldEnd = new int[FIELD_COUNT];
+    private final boolean[] fieldEscaped = new boolean[FIELD_COUNT];
+    private int eventStart, eventEnd;
+    private int keepaliveTimeoutSeconds;
+    // where the scan of the payload continues: the first member of the payload, the member after the condition in the subscription, or -1 once it was scanned
+    private int pendingPayload;
+    private boolean isPendingInSubscription;
+    private boolean isEventNeeded;
+    private boolean isStopped;
+
+    /**
+     * Parses the given message. Returns false if it is not a JSON object.
+     * <li>All offsets of the previous message are overwritten, so Strings that are needed later have to be taken before calling this again.
+     */
+    public boolean parse(String json) {
+        this.json = json;
+        for (int i = 0; i < FIELD_COUNT; i++)
+            fieldStart[i] = fieldEnd[i] = -1;
+        eventStart = eventEnd = -1;
+        keepaliveTimeoutSeconds = -1;
+        pendingPayload = -1;
+        isPendingInSubscription = false;
+        isStopped = false;
+
+        try {
+            pos = skipWhitespace(0);
+            if(pos >= json.length() || json.charAt(pos) != '{')
+                return false;
+            return parseObject(ROOT);
+        } catch (IndexOutOfBoundsException e) {
+            // a message that was cut off ends inside a value
+            return false;
+        }
+    }
+
+    // scans the payload. Without isEventNeeded, it stops again after the condition of the subscription
+    private void parsePayload(boolean isEventNeeded) {
+        if(pendingPayload < 0)
+            return;
+        this.isEventNeeded = isEventNeeded;
+        isStopped = false;
+        pos = pendingPayload;
+        pendingPayload = -1;
+        try {
+            if(isPendingInSubscription) {
+                isPendingInSubscription = false;
+                // the rest of the subscription, then the members of the payload after it
+                if(!parseMembers(SUBSCRIPTION) || !parseSeparator())
+                    return;
+            }
+            parseMembers(PAYLOAD);
+        } catch (IndexOutOfBoundsException e) {
+            // the fields that were found before the message ended are kept
+        }
+    }
+
+    /**
+     * Returns metadata.message_type. The types Twitch documents are returned as the constants of this class, so they can be compared with ==.
+     */
+    public String messageType() {
+        int start = fieldStart[MESSAGE_TYPE];
+        if(start < 0)
+            return null;
+        int length = fieldEnd[MESSAGE_TYPE] - start;
+        for (String type : MESSAGE_TYPES) {
+            if(type.length() == length && json.startsWith(type, start))
+                return type;
+        }
+        return field(MESSAGE_TYPE);
+    }
+
+    public String messageId() {
+        return field(MESSAGE_ID);
+    }
+
+    /**
+     * Returns metadata.message_timestamp, e.g. 2023-07-19T14:56:51.634234626Z.
+     */
+    public String messageTimestamp() {
+        return field(MESSAGE_TIMESTAMP);
+    }
+
+    /**
+     * Returns a 64 bit hash of metadata.message_id without creating a String, or 0 if there is none.
+     */
+    public long messageIdHash() {
+        int start = fieldStart[MESSAGE_ID];
+        if(start < 0)
+            return 0;
+        // FNV-1a and a final mix, so all bits depend on every char
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start, end = fieldEnd[MESSAGE_ID]; i < end; i++)
+            hash = (hash ^ json.charAt(i)) * 0x100000001b3L;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Returns metadata.message_timestamp in milliseconds since the epoch, or{@code Long.MIN_VALUE}if it is missing or not in the format Twitch uses.
+     * <li>The timestamp is read in place, without creating a String or going through{@code java.time}.
+     */
+    public long messageTimestampMillis() {
+        int start = fieldStart[MESSAGE_TIMESTAMP];
+        int end = fieldEnd[MESSAGE_TIMESTAMP];
+        // yyyy-MM-ddTHH:mm:ss followed by an optional fraction and Z
+        if(start < 0 || end - start < 19 || json.charAt(start + 4) != '-' || json.charAt(start + 7) != '-' || json.charAt(start + 10) != 'T'
+                || json.charAt(start + 13) != ':' || json.charAt(start + 16) != ':')
+            return Long.MIN_VALUE;
+        int year = digits(start, 4), month = digits(start + 5, 2), day = digits(start + 8, 2);
+        int hour = digits(start + 11, 2), minute = digits(start + 14, 2), second = digits(start + 17, 2);
+        if(year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60)
+            return Long.MIN_VALUE;
+        int millis = 0;
+        int i = start + 19;
+        if(i < end && json.charAt(i) == '.') {
+            for (int scale = 100; ++i < end && json.charAt(i) >= '0' && json.charAt(i) <= '9'; scale /= 10)
+                millis += (json.charAt(i) - '0') * scale;
+        }
+
+        // days since 1970-01-01 of a date in the proleptic gregorian calendar, counted from march so the leap day is last
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + millis;
+    }
+
+    // returns -1 if one of the chars is not a digit
+    private int digits(int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = json.charAt(i);
+            if(c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Returns payload.subscription.type, or metadata.subscription_type if the subscription object is missing.
+     */
+    public String subscriptionType() {
+        if(fieldStart[SUBSCRIPTION_TYPE] < 0)
+            parsePayload(false);
+        return field(SUBSCRIPTION_TYPE);
+    }
+
+    public String subscriptionVersion() {
+        if(fieldStart[SUBSCRIPTION_VERSION] < 0)
+            parsePayload(false);
+        return field(SUBSCRIPTION_VERSION);
+    }
+
+    /**
+     * Returns the broadcaster the subscription is for: the first of broadcaster_user_id, to_broadcaster_user_id and from_broadcaster_user_id in payload.subscription.condition.
+     * <li>Returns null for subscription types whose condition has no broadcaster, e.g. user.update.
+     */
+    public String conditionBroadcasterId() {
+        parsePayload(false);
+        return field(CONDITION_BROADCASTER);
+    }
+
+    /**
+     * Returns payload.session.id of a welcome or reconnect message.
+     */
+    public String sessionId() {
+        parsePayload(false);
+        return field(SESSION_ID);
+    }
+
+    /**
+     * Returns payload.session.reconnect_url with all JSON escapes resolved, Twitch sends the & of the query as a unicode escape.
+     */
+    public String reconnectUrl() {
+        parsePayload(false);
+        return field(RECONNECT_URL);
+    }
+
+    /**
+     * Returns payload.session.keepalive_timeout_seconds or -1 if it is missing.
+     */
+    public int keepaliveTimeoutSeconds() {
+        parsePayload(false);
+        return keepaliveTimeoutSeconds;
+    }
+
+    public boolean hasEvent() {
+        parsePayload(true);
+        return eventStart >= 0;
+    }
+
+    /**
+     * Returns the JSON object payload.event as it was sent, or null if there is none.
+     */
+    public String event() {
+        parsePayload(true);
+        return eventStart < 0 ? null : json.substring(eventStart, eventEnd);
+    }
+
+    /**
+     * Returns the whole message that was parsed last.
+     */
+    public String json() {
+        return json;
+    }
+
+    // raw views for callers that want to avoid creating Strings, only valid until the next call to parse
+    int eventStart() { parsePayload(true); return eventStart; }
+    int eventEnd() { parsePayload(true); return eventEnd; }
+
+    private String field(int field) {
+        int start = fieldStart[field];
+        if(start < 0)
+            return null;
+        return fieldEscaped[field] ? unescape(start, fieldEnd[field]) : json.substring(start, fieldEnd[field]);
+    }
+
+    // pos is at the '{' of the object
+    private boolean parseObject(int context) {
+        pos++;
+        return parseMembers(context);
+    }
+
+    // pos is at the first member of an object, or after the ',' of the previous one
+    private boolean parseMembers(int context) {
+        while (true) {
+            pos = skipWhitespace(pos);
+            char c = json.charAt(pos);
+            if(c == '}') {
+                pos++;
+                return true;
+            }
+            if(c != '"')
+                return false;
+
+            int keyStart = pos + 1;
+            int keyEnd = stringEnd(keyStart);
+            pos = skipWhitespace(keyEnd + 1);
+            if(json.charAt(pos) != ':')
+                return false;
+            pos = skipWhitespace(pos + 1);
+
+            c = json.charAt(pos);
+            int child = c == '{' ? childContext(context, keyStart, keyEnd) : OTHER;
+            if(child == PAYLOAD && fieldStart[MESSAGE_TYPE] >= 0) {
+                // the metadata was read, the rest waits until a getter needs it
+                pendingPayload = pos + 1;
+                return true;
+            } else if(child == PAYLOAD) {
+                // the payload came first, it is scanned later like above
+                pendingPayload = pos + 1;
+                pos = skipValue(pos);
+            } else if(child != OTHER) {
+                if(!parseObject(child))
+                    return false;
+                if(isStopped)
+                    return true;
+            } else if(c == '{' && context == PAYLOAD && isKey("event", keyStart, keyEnd)) {
+                eventStart = pos;
+                pos = skipValue(pos);
+                eventEnd = pos;
+            } else if(c == '"') {
+                int valueEnd = stringEnd(pos + 1);
+                int field = field(context, keyStart, keyEnd);
+                // payload.subscription.type wins over metadata.subscription_type, they are the same in practice
+                if(field >= 0 && (fieldStart[field] < 0 || context == SUBSCRIPTION)) {
+                    fieldStart[field] = pos + 1;
+                    fieldEnd[field] = valueEnd;
+                    fieldEscaped[field] = hasEscape(pos + 1, valueEnd);
+                }
+                pos = valueEnd + 1;
+            } else if(context == SESSION && isKey("keepalive_timeout_seconds", keyStart, keyEnd) && c >= '0' && c <= '9') {
+                int value = 0;
+                while (json.charAt(pos) >= '0' && json.charAt(pos) <= '9')
+                    value = value * 10 + (json.charAt(pos++) - '0');
+                keepaliveTimeoutSeconds = value;
+            } else {
+                pos = skipValue(pos);
+            }
+
+            if(!parseSeparator())
+                return false;
+            if(child == CONDITION && !isEventNeeded && fieldStart[SUBSCRIPTION_TYPE] >= 0 && fieldStart[SUBSCRIPTION_VERSION] >= 0) {
+                // everything a notification is routed by was read, the rest waits until a getter needs it
+                pendingPayload = pos;
+                isPendingInSubscription = true;
+                isStopped = true;
+                return true;
+            }
+        }
+    }
+
+    // steps over the ',' after a member, pos stays at the '}' of the object
+    private boolean parseSeparator() {
+        pos = skipWhitespace(pos);
+        char c = json.charAt(pos);
+        if(c == ',')
+            pos++;
+        else if(c != '}')
+            return false;
+        return true;
+    }
+
+    private int childContext(int context, int keyStart, int keyEnd) {
+        switch (context) {
+            case ROOT:
+                if(isKey("metadata", keyStart, keyEnd))
+                    return METADATA;
+                if(isKey("payload", keyStart, keyEnd))
+                    return PAYLOAD;
+                return OTHER;
+            case PAYLOAD:
+                if(isKey("subscription", keyStart, keyEnd))
+                    return SUBSCRIPTION;
+                if(isKey("session", keyStart, keyEnd))
+                    return SESSION;
+                return OTHER;
+            case SUBSCRIPTION:
+                return isKey("condition", keyStart, keyEnd) ? CONDITION : OTHER;
+            default:
+                return OTHER;
+        }
+    }
+
+    private int field(int context, int keyStart, int keyEnd) {
+        switch (context) {
+            case METADATA:
+                if(isKey("message_type", keyStart, keyEnd))
+                    return MESSAGE_TYPE;
+                if(isKey("message_id", keyStart, keyEnd))
+                    return MESSAGE_ID;
+                if(isKey("message_timestamp", keyStart, keyEnd))
+                    return MESSAGE_TIMESTAMP;
+                if(isKey("subscription_type", keyStart, keyEnd))
+                    return SUBSCRIPTION_TYPE;
+                if(isKey("subscription_version", keyStart, keyEnd))
+                    return SUBSCRIPTION_VERSION;
+                return -1;
+            case SUBSCRIPTION:
+                if(isKey("type", keyStart, keyEnd))
+                    return SUBSCRIPTION_TYPE;
+                if(isKey("version", keyStart, keyEnd))
+                    return SUBSCRIPTION_VERSION;
+                return -1;
+            case SESSION:
+                if(isKey("id", keyStart, keyEnd))
+                    return SESSION_ID;
+                if(isKey("reconnect_url", keyStart, keyEnd))
+                    return RECONNECT_URL;
+                return -1;
+            case CONDITION:
+                if(isKey("broadcaster_user_id", keyStart, keyEnd) || isKey("to_broadcaster_user_id", keyStart, keyEnd) || isKey("from_broadcaster_user_id", keyStart, keyEnd))
+                    return CONDITION_BROADCASTER;
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    private boolean isKey(String key, int keyStart, int keyEnd) {
+        return keyEnd - keyStart == key.length() && json.startsWith(key, keyStart);
+    }
+
+    // returns the index of the '"' that ends the string starting at from
+    private int stringEnd(int from) {
+        int i = from;
+        while (true) {
+            // String.indexOf(char) is an intrinsic, escaped quotes are rare
+            i = json.indexOf('"', i);
+            if(i < 0)
+                throw new StringIndexOutOfBoundsException("unterminated string");
+            int backslashes = 0;
+            while (json.charAt(i - 1 - backslashes) == '\\')
+                backslashes++;
+            if((backslashes & 1) == 0)
+                return i;
+            i++;
+        }
+    }
+
+    // returns the index after the value starting at from
+    private int skipValue(int from) {
+        char c = json.charAt(from);
+        if(c == '"')
+            return stringEnd(from + 1) + 1;
+        if(c != '{' && c != '[') {
+            int i = from;
+            while (true) {
+                c = json.charAt(i);
+                if(c == ',' || c == '}' || c == ']' || c <= ' ')
+                    return i;
+                i++;
+            }
+        }
+
+        int depth = 0;
+        int i = from;
+        while (true) {
+            c = json.charAt(i);
+            if(c == '"') {
+                i = stringEnd(i + 1);
+            } else if(c == '{' || c == '[') {
+                depth++;
+            } else if(c == '}' || c == ']') {
+                if(--depth == 0)
+                    return i + 1;
+            }
+            i++;
+        }
+    }
+
+    private boolean hasEscape(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if(json.charAt(i) == '\\')
+                return true;
+        }
+        return false;
+    }
+
+    private int skipWhitespace(int i) {
+        while (i < json.length() && json.charAt(i) <= ' ')
+            i++;
+        return i;
+    }
+
+    private String unescape(int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = json.charAt(i);
+            if(c != '\\' || i + 1 >= end) {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if(i + 4 < end) {
+                        sb.append((char) Integer.parseInt(json, i + 1, i + 5, 16));
+                        i += 4;
+                    }
+                    break;
+                default: sb.append(c); // \" \\ \/
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
@@ -0,0 +1,384 @@
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens several EventSub WebSocket sessions for one user token and spreads the subscriptions over them.
+ * <li>Twitch allows a limited number of enabled subscriptions per session and a limited number of sessions per user token. A subscription is placed on the
+ *     connected session with the most room left, a new session is opened when all of them are full.
+ * <li>When a session is lost, Twitch disables its subscriptions. They are placed on the sessions that are left and on a replacement session, which is opened with backoff.
+ *     A session that is reconnected by a session_reconnect message keeps its subscriptions.
+ * <li>Subscriptions are only placed while the total_cost of the token stays within its max_total_cost. The cost of a subscription is known once it was created,
+ *     until then the last cost of its type is assumed, or 1 for a type that was not created yet. The rest waits unplaced until a lost session frees its cost.
+ * <li>All sessions share one{@code NotificationDispatcher}and one set of handlers, so every notification ends up in one stream: the handlers of{@code addHandler}
+ *     and{@code onNotificationMessage}of this class.
+ * <li>Twitch docs: https://dev.twitch.tv/docs/eventsub/handling-websocket-events/#subscription-limits
+ */
+public class EventSubManager implements AutoCloseable {
+    public static final int DEFAULT_MAX_SESSIONS = 3;
+    public static final int DEFAULT_MAX_SUBSCRIPTIONS_PER_SESSION = 300;
+    private static final long MAX_REOPEN_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private volatile String accessToken;
+    private final String clientId;
+    private final URI uri;
+    private final SubscriptionClient subscriptionClient;
+    private final int maxSessions;
+    private final int maxSubscriptionsPerSession;
+    private final EventSubMetrics metrics = new EventSubMetrics();
+    private final NotificationDispatcher dispatcher = new NotificationDispatcher(metrics);
+    private final HandlerRegistry handlers = new HandlerRegistry();
+    private final ScheduledExecutorService scheduler;
+
+    // everything below is guarded by this
+    private final List<Session> sessions = new ArrayList<>();
+    // every subscription that should exist -> the session it was placed on, null while it waits for room
+    private final Map<SubscriptionClient.Request, Session> placements = new LinkedHashMap<>();
+    private final Map<SubscriptionClient.Request, SubscriptionClient.Result> failures = new LinkedHashMap<>();
+    // the cost twitch reported for a subscription and the last cost of its type, which is the estimate for new subscriptions of the type
+    private final Map<SubscriptionClient.Request, Integer> costs = new HashMap<>();
+    private final Map<String, Integer> typeCosts = new HashMap<>();
+    // placed subscriptions that twitch did not answer yet -> their estimated cost, total_cost does not contain them yet
+    private final Map<SubscriptionClient.Request, Integer> pendingCosts = new HashMap<>();
+    private boolean isOpening;
+    private int failedOpens;
+    private int totalCost;
+    private int maxTotalCost = -1;
+    private boolean isClosed;
+
+    /**
+     * The state of one session.{@code sessionId}is null until the welcome message was received.
+     */
+    public record SessionInfo(String sessionId, int subscriptions, int cost, boolean isConnected) {}
+
+    public EventSubManager(String accessToken, String clientId) {
+        this(accessToken, clientId, 10, DEFAULT_MAX_SESSIONS, DEFAULT_MAX_SUBSCRIPTIONS_PER_SESSION);
+    }
+
+    public EventSubManager(String accessToken, String clientId, int keepaliveSeconds, int maxSessions, int maxSubscriptionsPerSession) {
+        this(accessToken, clientId, TwitchEventSub.websocketUri(keepaliveSeconds), SubscriptionClient.SHARED, maxSessions, maxSubscriptionsPerSession);
+    }
+
+    EventSubManager(String accessToken, String clientId, URI uri, SubscriptionClient subscriptionClient, int maxSessions, int maxSubscriptionsPerSession) {
+        if(maxSessions < 1 || maxSubscriptionsPerSession < 1)
+            throw new IllegalArgumentException("maxSessions and maxSubscriptionsPerSession have to be at least 1");
+        this.accessToken = accessToken;
+        this.clientId = clientId;
+        this.uri = uri;
+        this.subscriptionClient = subscriptionClient;
+        this.maxSessions = maxSessions;
+        this.maxSubscriptionsPerSession = maxSubscriptionsPerSession;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TwitchEventSub-manager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.register();
+    }
+
+    /**
+     * Adds a subscription. It is created on a session with room left, the first session is opened by the first subscription.
+     */
+    public void subscribe(String event, String version, TwitchEventSub.Condition condition) {
+        subscribeAll(List.of(TwitchEventSub.newSubscription(event, version, condition)));
+    }
+
+    public void subscribeAll(List<SubscriptionClient.Request> requests) {
+        synchronized(this) {
+            for (SubscriptionClient.Request request : requests) {
+                if(!placements.containsKey(request)) {
+                    placements.put(request, null);
+                    failures.remove(request);
+                }
+            }
+        }
+        scheduleRebalance(0);
+    }
+
+    /**
+     * See{@code TwitchEventSub.addHandler}. The handlers receive the notifications of all sessions.
+     */
+    public final <T> void addHandler(SubscriptionType<T> type, TwitchEventSub.NotificationHandler<? super T> handler) {
+        handlers.add(type, handler);
+    }
+
+    public final void removeHandler(SubscriptionType<?> type, TwitchEventSub.NotificationHandler<?> handler) {
+        handlers.remove(type, handler);
+    }
+
+    /**
+     * Called with the full message of every notification of every session, see{@code TwitchEventSub.onNotificationMessage}.
+     */
+    public void onNotificationMessage(String message) {}
+
+    /**
+     * Called with the events of every session, see{@code TwitchEventSub.event}.
+     */
+    public void event(TwitchEventSub.Event event, String infolog, Throwable error) {
+        System.out.println(infolog);
+        if(error != null)
+            error.printStackTrace();
+    }
+
+    public final NotificationDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Returns the dispatch metrics of the shared dispatcher. Every session also has metrics of its own for its frames.
+     */
+    public final EventSubMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized List<SessionInfo> getSessions() {
+        List<SessionInfo> infos = new ArrayList<>(sessions.size());
+        for (Session session : sessions)
+            infos.add(new SessionInfo(session.getSessionId(), session.subscriptions.size(), session.cost, session.isReady));
+        return infos;
+    }
+
+    /**
+     * Returns the number of subscriptions that wait for a session with room, e.g. because every session is full, a session is being replaced
+     * or max_total_cost of the token is reached.
+     */
+    public synchronized int getUnplacedCount() {
+        int unplaced = 0;
+        for (Session session : placements.values()) {
+            if(session == null)
+                unplaced++;
+        }
+        return unplaced;
+    }
+
+    /**
+     * Replaces the token for the following subscriptions, e.g. after it was refreshed. Sessions that are opened again after a lost connection use it too.
+     */
+    public void setAccessToken(String accessToken) {
+        List<Session> open;
+        String oldToken;
+        synchronized(this) {
+            oldToken = this.accessToken;
+            this.accessToken = accessToken;
+            open = new ArrayList<>(sessions);
+        }
+        for (Session session : open)
+            session.replaceAccessToken(oldToken, accessToken);
+    }
+
+    /**
+     * Returns the subscriptions Twitch refused, with the last response. They are not tried again unless they are subscribed again.
+     */
+    public synchronized Map<SubscriptionClient.Request, SubscriptionClient.Result> getFailures() {
+        return new LinkedHashMap<>(failures);
+    }
+
+    /**
+     * Returns total_cost and max_total_cost of the user token as the last created subscription reported them, max_total_cost is -1 before that.
+     */
+    public synchronized int getTotalCost() {
+        return totalCost;
+    }
+
+    public synchronized int getMaxTotalCost() {
+        return maxTotalCost;
+    }
+
+    @Override
+    public void close() {
+        List<Session> open;
+        synchronized(this) {
+            isClosed = true;
+            open = new ArrayList<>(sessions);
+            sessions.clear();
+        }
+        scheduler.shutdownNow();
+        for (Session session : open)
+            session.close();
+        dispatcher.close();
+        metrics.unregister();
+    }
+
+    private void scheduleRebalance(long delayMillis) {
+        try {
+            scheduler.schedule(this::rebalance, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the manager was closed
+        }
+    }
+
+    // runs on the scheduler thread only, so two rebalances never overlap
+    private void rebalance() {
+        Map<Session, List<SubscriptionClient.Request>> batches = new HashMap<>();
+        boolean open = false;
+        synchronized(this) {
+            if(isClosed)
+                return;
+            int plannedCost = totalCost;
+            for (int cost : pendingCosts.values())
+                plannedCost += cost;
+            for (Map.Entry<SubscriptionClient.Request, Session> placement : placements.entrySet()) {
+                if(placement.getValue() != null)
+                    continue;
+                int cost = estimateCost(placement.getKey());
+                if(maxTotalCost >= 0 && plannedCost + cost > maxTotalCost)
+                    continue;
+                Session session = sessionWithMostRoom();
+                if(session == null) {
+                    // a session that waits for its welcome message gets the rest once it is ready
+                    open = !isOpening && sessions.size() < maxSessions && sessions.stream().allMatch(s -> s.isReady);
+                    break;
+                }
+                plannedCost += cost;
+                pendingCosts.put(placement.getKey(), cost);
+                placement.setValue(session);
+                session.subscriptions.add(placement.getKey());
+                batches.computeIfAbsent(session, key -> new ArrayList<>()).add(placement.getKey());
+            }
+            isOpening |= open;
+        }
+
+        for (Map.Entry<Session, List<SubscriptionClient.Request>> batch : batches.entrySet()) {
+            Session session = batch.getKey();
+            session.subscribeAll(batch.getValue(), accessToken, clientId).thenAccept(report -> created(session, report));
+        }
+        if(open)
+            openSession();
+    }
+
+    // subscriptions of a user that authorized the token cost 0, the others 1, which one it is is only known once twitch created it
+    private int estimateCost(SubscriptionClient.Request request) {
+        Integer cost = costs.get(request);
+        if(cost == null)
+            cost = typeCosts.get(request.type());
+        return cost == null ? 1 : cost;
+    }
+
+    private Session sessionWithMostRoom() {
+        Session best = null;
+        for (Session session : sessions) {
+            if(session.isReady && session.subscriptions.size() < maxSubscriptionsPerSession && (best == null || session.subscriptions.size() < best.subscriptions.size()))
+                best = session;
+        }
+        return best;
+    }
+
+    private void openSession() {
+        Session session = null;
+        try {
+            session = new Session();
+        } catch (Exception e) {
+            event(TwitchEventSub.Event.WEBSOCKET_ERROR, String.format("%s[ERROR]%s Could not open an EventSub session", TwitchEventSub.ANSI_RED_BOLD, TwitchEventSub.ANSI_RESET), e);
+        }
+
+        long retryIn = -1;
+        boolean isTooLate = false;
+        synchronized(this) {
+            isOpening = false;
+            if(isClosed) {
+                isTooLate = session != null;
+            } else if(session != null) {
+                failedOpens = 0;
+                sessions.add(session);
+            } else {
+                retryIn = Math.min(MAX_REOPEN_DELAY_MILLIS, 1000L << Math.min(failedOpens++, 16));
+            }
+        }
+        if(isTooLate)
+            session.close();
+        if(retryIn >= 0)
+            scheduleRebalance(retryIn);
+    }
+
+    private void created(Session session, SubscriptionClient.Report report) {
+        synchronized(this) {
+            for (SubscriptionClient.Result result : report.results()) {
+                pendingCosts.remove(result.request());
+                if(result.isSuccess()) {
+                    int[] cost = cost(result.body());
+                    session.cost += cost[0];
+                    costs.put(result.request(), cost[0]);
+                    typeCosts.put(result.request().type(), cost[0]);
+                    if(cost[1] >= 0) {
+                        totalCost = cost[1];
+                        maxTotalCost = cost[2];
+                    }
+                } else if(!result.isAlreadySubscribed() && placements.get(result.request()) == session) {
+                    // twitch refused it, trying again on another session would not help
+                    placements.remove(result.request());
+                    session.subscriptions.remove(result.request());
+                    failures.put(result.request(), result);
+                }
+            }
+        }
+    }
+
+    // {"data":[{..., "cost":1, ...}], "total":1, "total_cost":1, "max_total_cost":10} -> cost, total_cost, max_total_cost
+    private static int[] cost(String body) {
+        JsonObject response = JsonObject.of(body);
+        int data = body.indexOf('{', Math.max(0, body.indexOf("\"data\"")));
+        int cost = data < 0 ? 0 : JsonObject.of(body.substring(data)).getInt("cost", 0);
+        return new int[] { cost, response.getInt("total_cost", -1), response.getInt("max_total_cost", -1) };
+    }
+
+    private void lost(Session session) {
+        synchronized(this) {
+            if(!sessions.remove(session) || isClosed)
+                return;
+            // twitch disabled the subscriptions of the session, they have to be created again and no longer count toward total_cost
+            totalCost = Math.max(0, totalCost - session.cost);
+            session.cost = 0;
+            for (SubscriptionClient.Request request : session.subscriptions) {
+                if(placements.containsKey(request))
+                    placements.put(request, null);
+            }
+            session.subscriptions.clear();
+        }
+        event(TwitchEventSub.Event.TWITCH_WEBSOCKET_RECONNECTING, String.format("%s[NOTICE]%s EventSub session lost, its subscriptions are placed again", TwitchEventSub.ANSI_BLUE_BOLD, TwitchEventSub.ANSI_RESET), null);
+        scheduleRebalance(0);
+    }
+
+    // one websocket session, its subscriptions are guarded by the manager
+    private final class Session extends TwitchEventSub {
+        final Set<SubscriptionClient.Request> subscriptions = new LinkedHashSet<>();
+        int cost;
+        volatile boolean isReady;
+
+        Session() {
+            super(uri, dispatcher, handlers, subscriptionClient);
+        }
+
+        @Override
+        public void onWelcomeMessage() {
+            isReady = true;
+            scheduleRebalance(0);
+        }
+
+        @Override
+        public void onNotificationMessage(String message) {
+            EventSubManager.this.onNotificationMessage(message);
+        }
+
+        @Override
+        public void event(Event event, String infolog, Throwable error) {
+            EventSubManager.this.event(event, infolog, error);
+        }
+
+        // called for a closed connection, an error and a revocation, and by the manager itself
+        @Override
+        public void close() {
+            isReady = false;
+            super.close();
+            lost(this);
+        }
+    }
+}
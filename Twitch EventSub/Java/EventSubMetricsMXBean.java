@@ -0,0 +1,30 @@
+/**
+ * The JMX view of{@code EventSubMetrics}.
+ * <li>Rates are measured between two reads that are at least a second apart, the first read returns 0.
+ */
+public interface EventSubMetricsMXBean {
+    long getFramesReceived();
+    double getFramesPerSecond();
+    long getNotifications();
+    double getNotificationsPerSecond();
+    long getKeepalives();
+    long getReconnects();
+    long getRevocations();
+    long getSubscriptionSuccesses();
+    long getSubscriptionFailures();
+    long getSubscriptionRetries();
+    long getDuplicateNotifications();
+    long getExpiredNotifications();
+    long getFrameNanosP50();
+    long getFrameNanosP99();
+    long getDispatchLatencyMicrosP50();
+    long getDispatchLatencyMicrosP99();
+    long getDispatchLatencyMicrosMax();
+    long getHandlerMicrosP99();
+    long getSubscribeMillisP50();
+    long getSubscribeMillisP99();
+    // a gap close to keepalive_timeout_seconds means the connection is about to be considered dead
+    long getKeepaliveGapMillisMax();
+    long getMillisSinceLastMessage();
+    int getNotificationQueueDepth();
+}
@@ -0,0 +1,142 @@
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Compares the old{@code indexOf}based field lookup with{@code EventSubFrame}on messages that look like real EventSub traffic.
+ * <li>Both read message_type, message_id, message_timestamp, the subscription type and the broadcaster of the condition, which is what routing a notification needs.
+ *     "frame" stops in front of the event. "frame + event" also finds the span of the event like a registered handler does, which scans the rest of the payload.
+ * <li>Reports ns per message and allocated bytes per message of the calling thread.
+ * <li>Run with:{@code java EventSubParserBenchmark [messages] [rounds]}
+ */
+public class EventSubParserBenchmark {
+    private static long sink;
+
+    public static void main(String[] args) {
+        int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String[] messages = createMessages(messageCount, new Random(42));
+
+        long totalChars = 0;
+        for (String message : messages)
+            totalChars += message.length();
+        System.out.printf("%d messages, average %d chars per message%n", messageCount, totalChars / messageCount);
+
+        // warm up both paths so that the JIT compiled them before measuring
+        for (int i = 0; i < 10; i++) {
+            runIndexOf(messages);
+            runFrame(messages, new EventSubFrame(), false);
+            runFrame(messages, new EventSubFrame(), true);
+        }
+
+        EventSubFrame frame = new EventSubFrame();
+        for (int round = 0; round < rounds; round++) {
+            measure("indexOf", messages, () -> runIndexOf(messages));
+            measure("frame", messages, () -> runFrame(messages, frame, false));
+            measure("frame + event", messages, () -> runFrame(messages, frame, true));
+        }
+        System.out.println(sink == 42 ? "" : " ");
+    }
+
+    private static void measure(String name, String[] messages, Runnable run) {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        run.run();
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - bytesBefore;
+        System.out.printf("%-14s %8.1f ns/message %7.1f bytes/message%n", name, (double) nanos / messages.length, (double) bytes / messages.length);
+    }
+
+    // the lookup EventSubListener used before EventSubFrame existed, one scan from the start for every field
+    private static void runIndexOf(String[] messages) {
+        for (String message : messages) {
+            String type = getJsonValue(message, "\"message_type\":");
+            sink += type.length();
+            if(type.equals("notification")) {
+                sink += getJsonValue(message, "\"message_id\":").length();
+                sink += getJsonValue(message, "\"message_timestamp\":").length();
+                sink += getJsonValue(message, "\"subscription_type\":").length();
+                // the condition comes before the event, so the first one is the broadcaster of the subscription
+                sink += getJsonValue(message, "\"broadcaster_user_id\":").length();
+            }
+        }
+    }
+
+    private static void runFrame(String[] messages, EventSubFrame frame, boolean readEvent) {
+        for (String message : messages) {
+            if(!frame.parse(message))
+                continue;
+            String type = frame.messageType();
+            sink += type.length();
+            if(type == EventSubFrame.NOTIFICATION) {
+                sink += frame.messageId().length();
+                sink += frame.messageTimestamp().length();
+                sink += frame.subscriptionType().length();
+                sink += frame.conditionBroadcasterId().length();
+                if(readEvent)
+                    sink += frame.eventEnd() - frame.eventStart();
+            }
+        }
+    }
+
+    private static String getJsonValue(String data, String key) {
+        int index = data.indexOf(key);
+        int startindex = data.indexOf("\"", index + key.length());
+        int endindex = data.indexOf("\"", startindex+1);
+        return data.substring(startindex+1, endindex);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    // mostly notifications (follows, redemptions, subs, chat messages) with a keepalive now and then, formatted like twitch sends them
+    // also used by NotificationJournalBenchmark
+    static String[] createMessages(int count, Random random) {
+        String[] messages = new String[count];
+        for (int i = 0; i < count; i++) {
+            String timestamp = "2024-05-0" + (1 + random.nextInt(9)) + "T1" + random.nextInt(10) + ":2" + random.nextInt(10) + ":13.0" + (100000000 + random.nextInt(899999999)) + "Z";
+            if(i % 20 == 0) {
+                messages[i] = "{\"metadata\":{\"message_id\":\"" + UUID.randomUUID() + "\",\"message_type\":\"session_keepalive\",\"message_timestamp\":\"" + timestamp + "\"},\"payload\":{}}";
+                continue;
+            }
+
+            String broadcasterId = String.valueOf(10_000_000 + random.nextInt(1_000_000));
+            String userId = String.valueOf(10_000_000 + random.nextInt(90_000_000));
+            String type;
+            String event;
+            switch (random.nextInt(4)) {
+                case 0:
+                    type = "channel.follow";
+                    event = "{\"user_id\":\"" + userId + "\",\"user_login\":\"viewer" + userId + "\",\"user_name\":\"Viewer" + userId + "\",\"broadcaster_user_id\":\"" + broadcasterId
+                            + "\",\"broadcaster_user_login\":\"streamer\",\"broadcaster_user_name\":\"Streamer\",\"followed_at\":\"" + timestamp + "\"}";
+                    break;
+                case 1:
+                    type = "channel.channel_points_custom_reward_redemption.add";
+                    event = "{\"id\":\"" + UUID.randomUUID() + "\",\"broadcaster_user_id\":\"" + broadcasterId + "\",\"broadcaster_user_login\":\"streamer\",\"broadcaster_user_name\":\"Streamer\",\"user_id\":\""
+                            + userId + "\",\"user_login\":\"viewer" + userId + "\",\"user_name\":\"Viewer" + userId + "\",\"user_input\":\"please play \\\"that song\\\" again\",\"status\":\"unfulfilled\","
+                            + "\"reward\":{\"id\":\"" + UUID.randomUUID() + "\",\"title\":\"Song request\",\"cost\":500,\"prompt\":\"Name a song\"},\"redeemed_at\":\"" + timestamp + "\"}";
+                    break;
+                case 2:
+                    type = "channel.subscribe";
+                    event = "{\"user_id\":\"" + userId + "\",\"user_login\":\"viewer" + userId + "\",\"user_name\":\"Viewer" + userId + "\",\"broadcaster_user_id\":\"" + broadcasterId
+                            + "\",\"broadcaster_user_login\":\"streamer\",\"broadcaster_user_name\":\"Streamer\",\"tier\":\"1000\",\"is_gift\":false}";
+                    break;
+                default:
+                    type = "channel.chat.message";
+                    event = "{\"broadcaster_user_id\":\"" + broadcasterId + "\",\"broadcaster_user_login\":\"streamer\",\"broadcaster_user_name\":\"Streamer\",\"chatter_user_id\":\"" + userId
+                            + "\",\"chatter_user_login\":\"viewer" + userId + "\",\"chatter_user_name\":\"Viewer" + userId + "\",\"message_id\":\"" + UUID.randomUUID()
+                            + "\",\"message\":{\"text\":\"Hi chat Kappa\",\"fragments\":[{\"type\":\"text\",\"text\":\"Hi chat \",\"cheermote\":null,\"emote\":null,\"mention\":null},"
+                            + "{\"type\":\"emote\",\"text\":\"Kappa\",\"cheermote\":null,\"emote\":{\"id\":\"25\",\"emote_set_id\":\"0\"},\"mention\":null}]},\"color\":\"#00FF7F\","
+                            + "\"badges\":[{\"set_id\":\"subscriber\",\"id\":\"12\",\"info\":\"14\"}],\"message_type\":\"text\",\"cheer\":null,\"reply\":null}";
+                    break;
+            }
+
+            messages[i] = "{\"metadata\":{\"message_id\":\"" + UUID.randomUUID() + "\",\"message_type\":\"notification\",\"message_timestamp\":\"" + timestamp
+                    + "\",\"subscription_type\":\"" + type + "\",\"subscription_version\":\"1\"},\"payload\":{\"subscription\":{\"id\":\"" + UUID.randomUUID()
+                    + "\",\"status\":\"enabled\",\"type\":\"" + type + "\",\"version\":\"1\",\"cost\":0,\"condition\":{\"broadcaster_user_id\":\"" + broadcasterId
+                    + "\"},\"transport\":{\"method\":\"websocket\",\"session_id\":\"AgoQHR3s6Mb4T8GFB1l3DlPfiRIGY2VsbC1h\"},\"created_at\":\"" + timestamp + "\"},\"event\":" + event + "}}";
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,413 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Receives Twitch EventSub notifications over the webhook transport, with an HTTP server embedded in this process.
+ * <li>Twitch docs: https://dev.twitch.tv/docs/eventsub/handling-webhook-events/
+ * <li>Every request is checked against its Twitch-Eventsub-Message-Signature first, requests with a wrong or missing signature are answered with 403.
+ * <li>Notifications are acknowledged with 204 as soon as they are verified. The callbacks run afterwards on the{@code NotificationDispatcher}, like for{@code TwitchEventSub}.
+ * <li>{@code onNotificationMessage}receives the same JSON as over the WebSocket: the Twitch-Eventsub headers become the metadata, the request body the payload.
+ * <li>Twitch only calls https urls on port 443. The server speaks plain http, so it runs behind something that terminates TLS, e.g. a reverse proxy or a tunnel.
+ * <li>Webhook subscriptions are created with an app access token, not a user token.
+ */
+public abstract class EventSubWebhook implements AutoCloseable {
+    public static final String MESSAGE_ID = "Twitch-Eventsub-Message-Id";
+    public static final String MESSAGE_TIMESTAMP = "Twitch-Eventsub-Message-Timestamp";
+    public static final String MESSAGE_SIGNATURE = "Twitch-Eventsub-Message-Signature";
+    public static final String MESSAGE_TYPE = "Twitch-Eventsub-Message-Type";
+    public static final String SUBSCRIPTION_TYPE = "Twitch-Eventsub-Subscription-Type";
+    public static final String SUBSCRIPTION_VERSION = "Twitch-Eventsub-Subscription-Version";
+
+    public static final String WEBHOOK_CALLBACK_VERIFICATION = "webhook_callback_verification";
+    public static final String NOTIFICATION = "notification";
+    public static final String REVOCATION = "revocation";
+
+    // twitch bodies are a few kilobytes, anything much larger is not from twitch
+    private static final int MAX_BODY_SIZE = 1 << 20;
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+
+    private final EventSubMetrics metrics = new EventSubMetrics();
+    private final NotificationDispatcher dispatcher = new NotificationDispatcher(metrics);
+    private final HandlerRegistry handlers = new HandlerRegistry();
+    // twitch retries a notification until it gets a 2xx, a slow answer can therefore deliver it twice
+    private final MessageDeduplicator deduplicator = new MessageDeduplicator();
+    private final NotificationRouter router = new NotificationRouter(handlers, dispatcher, deduplicator, this::onNotificationMessage);
+    // notifications are appended to it before they are acknowledged, null if no journal was set
+    private volatile NotificationJournal.Consumer journal;
+    private final SubscriptionClient subscriptionClient;
+    private final String callback;
+    private final String secret;
+    // a Mac is not thread-safe and costly to create, every server thread keeps one that is initialized with the secret
+    private final ThreadLocal<Mac> macs;
+    private final ThreadLocal<EventSubFrame> frames = ThreadLocal.withInitial(EventSubFrame::new);
+    private final HttpServer server;
+    private final ExecutorService ownExecutor;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+    /**
+     * Starts the server on the given port, it accepts requests for the path of the callback url.
+     * <li>{@code callback}is the https url Twitch sends to, e.g.{@code https://example.com/eventsub}.
+     * <li>{@code secret}is 10 to 100 ASCII characters, it is sent to Twitch with every subscription and signs every request.
+     */
+    public EventSubWebhook(int port, String callback, String secret) throws IOException {
+        this(new InetSocketAddress(port), callback, secret, null, SubscriptionClient.SHARED);
+    }
+
+    /**
+     * Like{@code EventSubWebhook(int, String, String)}but with the requests handled by the given executor,
+     * e.g.{@code Executors.newVirtualThreadPerTaskExecutor()}on Java 21 and newer. By default a small pool of daemon threads is used.
+     */
+    public EventSubWebhook(InetSocketAddress address, String callback, String secret, Executor executor) throws IOException {
+        this(address, callback, secret, executor, SubscriptionClient.SHARED);
+    }
+
+    EventSubWebhook(InetSocketAddress address, String callback, String secret, Executor executor, SubscriptionClient subscriptionClient) throws IOException {
+        if(secret == null || secret.length() < 10 || secret.length() > 100 || !StandardCharsets.US_ASCII.newEncoder().canEncode(secret))
+            throw new IllegalArgumentException("The secret has to be 10 to 100 ASCII characters");
+        this.callback = callback;
+        this.secret = secret;
+        this.subscriptionClient = subscriptionClient;
+        this.macs = ThreadLocal.withInitial(() -> newMac(secret));
+
+        String path = URI.create(callback).getPath();
+        server = HttpServer.create(address, 0);
+        server.createContext(path == null || path.isEmpty() ? "/" : path, this::handle);
+        if(executor == null) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            ownExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "TwitchEventSub-webhook-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor = ownExecutor;
+        } else {
+            ownExecutor = null;
+        }
+        server.setExecutor(executor);
+        server.start();
+        metrics.register();
+    }
+
+    /**
+     * Returns the address the server is bound to, e.g. to find the port if it was started on port 0.
+     */
+    public final InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stops the server, requests that are being handled get one second to finish. Calling it again does nothing.
+     */
+    @Override
+    public void close() {
+        if(!isClosed.compareAndSet(false, true))
+            return;
+        server.stop(1);
+        if(ownExecutor != null)
+            ownExecutor.shutdown();
+        dispatcher.close();
+        metrics.unregister();
+        closed.complete(null);
+    }
+
+    /**
+     * Sets the thread that called this method to sleep. It will return when{@code close()}was called.
+     */
+    public void join() {
+        closed.join();
+    }
+
+    /**
+     * Creates a subscription with the webhook transport of this server. Blocks until it was created or failed.
+     * <li>Twitch answers with 202 and verifies the callback right away, the subscription is enabled once the challenge was answered.
+     */
+    public void subscribe(String event, String version, TwitchEventSub.Condition condition, String app_access_token, String client_id) {
+        subscribeAsync(event, version, condition, app_access_token, client_id).join();
+    }
+
+    public CompletableFuture<SubscriptionClient.Result> subscribeAsync(String event, String version, TwitchEventSub.Condition condition, String app_access_token, String client_id) {
+        SubscriptionClient.Request request = TwitchEventSub.newSubscription(event, version, condition);
+        return subscriptionClient.subscribe(request, subscriptionBody(request), app_access_token, client_id, metrics).thenApply(this::reportSubscription);
+    }
+
+    /**
+     * Creates all subscriptions at once, see{@code TwitchEventSub.subscribeAll}.
+     */
+    public CompletableFuture<SubscriptionClient.Report> subscribeAll(List<SubscriptionClient.Request> requests, String app_access_token, String client_id) {
+        List<String> bodies = new ArrayList<>(requests.size());
+        for (SubscriptionClient.Request request : requests)
+            bodies.add(subscriptionBody(request));
+        return subscriptionClient.subscribeAll(requests, bodies, app_access_token, client_id, metrics).thenApply(report -> {
+            for (SubscriptionClient.Result result : report.results())
+                reportSubscription(result);
+            return report;
+        });
+    }
+
+    private String subscriptionBody(SubscriptionClient.Request request) {
+        return String.format("""
+                                    {
+                                        "type": "%s",
+                                        "version": "%s",
+                                        "condition": {
+                                            %s
+                                        },
+                                        "transport": {
+                                            "method": "webhook",
+                                            "callback": "%s",
+                                            "secret": "%s"
+                                        }
+                                    }
+                                   """, request.type(), request.version(), request.condition(), callback, secret);
+    }
+
+    private SubscriptionClient.Result reportSubscription(SubscriptionClient.Result result) {
+        if (result.isSuccess())
+            event(TwitchEventSub.Event.TWITCH_SUBSCRIPTION_SUCCESS, String.format("%s[OK %d]%s Subscription was send successfully %s", TwitchEventSub.ANSI_GREEN_BOLD, result.statusCode(), TwitchEventSub.ANSI_RESET, result.request().type()), null);
+        else
+            event(TwitchEventSub.Event.TWITCH_SUBSCRIPTION_FAIL, String.format("%s[ERROR %d]%s Subscription failed %s. Server response: %s", TwitchEventSub.ANSI_RED_BOLD, result.statusCode(), TwitchEventSub.ANSI_RESET, result.request().type(), result.body()), null);
+        return result;
+    }
+
+    /**
+     * See{@code TwitchEventSub.addHandler}.
+     */
+    public final <T> void addHandler(SubscriptionType<T> type, TwitchEventSub.NotificationHandler<? super T> handler) {
+        handlers.add(type, handler);
+    }
+
+    public final void removeHandler(SubscriptionType<?> type, TwitchEventSub.NotificationHandler<?> handler) {
+        handlers.remove(type, handler);
+    }
+
+    public final NotificationDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public final EventSubMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Called with every verified notification, in the same format as{@code TwitchEventSub.onNotificationMessage}.
+     * <li>Duplicates and notifications older than 10 minutes are acknowledged but dropped before.
+     */
+    public abstract void onNotificationMessage(String message);
+
+    /**
+     * Called for the events of{@code TwitchEventSub.Event}that apply to webhooks: subscriptions, verified callbacks, rejected requests and revocations.
+     */
+    public void event(TwitchEventSub.Event event, String infolog, Throwable error) {
+        System.out.println(infolog);
+        if(error != null)
+            error.printStackTrace();
+    }
+
+    /**
+     * Returns the value of the Twitch-Eventsub-Message-Signature header for a request, e.g. to replay signed requests against a local server.
+     */
+    public static String sign(String secret, String messageId, String timestamp, byte[] body) {
+        byte[] hmac = hmac(newMac(secret), messageId, timestamp, body);
+        StringBuilder signature = new StringBuilder(SIGNATURE_PREFIX.length() + hmac.length * 2).append(SIGNATURE_PREFIX);
+        for (byte b : hmac)
+            signature.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return signature.toString();
+    }
+
+    private static Mac newMac(String secret) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.US_ASCII), HMAC_SHA256));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // every java runtime has to support HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(Mac mac, String messageId, String timestamp, byte[] body) {
+        mac.update(messageId.getBytes(StandardCharsets.UTF_8));
+        mac.update(timestamp.getBytes(StandardCharsets.UTF_8));
+        mac.update(body);
+        return mac.doFinal();
+    }
+
+    // compares in constant time, so the time of a wrong answer does not tell how much of the signature was right
+    private boolean isSigned(String messageId, String timestamp, String signature, byte[] body) {
+        if(signature == null || !signature.startsWith(SIGNATURE_PREFIX))
+            return false;
+        byte[] expected = hmac(macs.get(), messageId, timestamp, body);
+        if(signature.length() != SIGNATURE_PREFIX.length() + expected.length * 2)
+            return false;
+        byte[] received = new byte[expected.length];
+        for (int i = 0; i < received.length; i++) {
+            int high = Character.digit(signature.charAt(SIGNATURE_PREFIX.length() + 2 * i), 16);
+            int low = Character.digit(signature.charAt(SIGNATURE_PREFIX.length() + 2 * i + 1), 16);
+            if(high < 0 || low < 0)
+                return false;
+            received[i] = (byte) (high << 4 | low);
+        }
+        return MessageDigest.isEqual(expected, received);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long received = System.nanoTime();
+        try {
+            if(!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, null);
+                return;
+            }
+            Headers headers = exchange.getRequestHeaders();
+            String messageId = headers.getFirst(MESSAGE_ID);
+            String timestamp = headers.getFirst(MESSAGE_TIMESTAMP);
+            String messageType = headers.getFirst(MESSAGE_TYPE);
+            byte[] body = exchange.getRequestBody().readNBytes(MAX_BODY_SIZE + 1);
+            if(body.length > MAX_BODY_SIZE) {
+                respond(exchange, 413, null);
+                return;
+            }
+            if(messageId == null || timestamp == null || messageType == null || !isSigned(messageId, timestamp, headers.getFirst(MESSAGE_SIGNATURE), body)) {
+                event(TwitchEventSub.Event.WEBHOOK_REQUEST_REJECTED, String.format("%s[ERROR]%s %s Rejected a request without a valid signature from %s", TwitchEventSub.ANSI_RED_BOLD, TwitchEventSub.ANSI_RESET, LocalTime.now().toString(), exchange.getRemoteAddress()), null);
+                respond(exchange, 403, null);
+                return;
+            }
+            metrics.messageReceived(received);
+
+            switch (messageType) {
+                case WEBHOOK_CALLBACK_VERIFICATION:
+                    String challenge = JsonObject.of(new String(body, StandardCharsets.UTF_8)).getString("challenge");
+                    respond(exchange, challenge == null ? 400 : 200, challenge);
+                    event(TwitchEventSub.Event.WEBHOOK_CALLBACK_VERIFIED, String.format("%s[OK]%s Callback verified for %s", TwitchEventSub.ANSI_GREEN_BOLD, TwitchEventSub.ANSI_RESET, headers.getFirst(SUBSCRIPTION_TYPE)), null);
+                break;
+
+                case NOTIFICATION:
+                    // answered before the dispatch, twitch only waits a few seconds and the dispatcher may block when a lane is full
+                    Runnable dispatch;
+                    try {
+                        dispatch = notification(headers, messageId, timestamp, body, received);
+                    } catch (IOException e) {
+                        // not acknowledged, twitch sends the notification again
+                        event(TwitchEventSub.Event.WEBSOCKET_ERROR, String.format("%s[ERROR]%s Could not write the notification to the journal", TwitchEventSub.ANSI_RED_BOLD, TwitchEventSub.ANSI_RESET), e);
+                        respond(exchange, 503, null);
+                        break;
+                    }
+                    respond(exchange, 204, null);
+                    if(dispatch != null)
+                        dispatch.run();
+                break;
+
+                case REVOCATION:
+                    respond(exchange, 204, null);
+                    metrics.revocations.increment();
+                    event(TwitchEventSub.Event.TWITCH_WEBSOCKET_REVOCATION, String.format("%s[ERROR]%s Revocation Server Response: %s", TwitchEventSub.ANSI_RED_BOLD, TwitchEventSub.ANSI_RESET, new String(body, StandardCharsets.UTF_8)), null);
+                break;
+
+                default:
+                    respond(exchange, 204, null);
+                break;
+            }
+            metrics.frameNanos.record(System.nanoTime() - received);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String text) throws IOException {
+        if(text == null) {
+            exchange.sendResponseHeaders(statusCode, -1);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // returns the dispatch of the notification, or null if it is dropped. It is in the journal once this returns, if it could not be written the IOException is thrown
+    private Runnable notification(Headers headers, String messageId, String timestamp, byte[] body, long received) throws IOException {
+        String subscriptionType = headers.getFirst(SUBSCRIPTION_TYPE);
+        String subscriptionVersion = headers.getFirst(SUBSCRIPTION_VERSION);
+        // the headers are wrapped into the metadata of a websocket message, so both transports share the parser and the callbacks
+        StringBuilder message = new StringBuilder(body.length + 256).append("{\"metadata\":{");
+        appendField(message, "message_id", messageId).append(',');
+        appendField(message, "message_type", NOTIFICATION).append(',');
+        appendField(message, "message_timestamp", timestamp).append(',');
+        appendField(message, "subscription_type", subscriptionType).append(',');
+        appendField(message, "subscription_version", subscriptionVersion);
+        String stringData = message.append("},\"payload\":").append(new String(body, StandardCharsets.UTF_8)).append('}').toString();
+
+        EventSubFrame frame = frames.get();
+        if(!frame.parse(stringData)) {
+            event(TwitchEventSub.Event.WEBSOCKET_ERROR, String.format("%s[ERROR]%s Could not read message: %s", TwitchEventSub.ANSI_RED_BOLD, TwitchEventSub.ANSI_RESET, stringData), null);
+            return null;
+        }
+        // the id is only remembered once the notification is in the journal, a retry after a failed append must not count as duplicate
+        MessageDeduplicator.Verdict verdict = deduplicator.peek(frame.messageIdHash(), frame.messageTimestampMillis(), System.currentTimeMillis());
+        if(verdict != MessageDeduplicator.Verdict.NEW) {
+            (verdict == MessageDeduplicator.Verdict.DUPLICATE ? metrics.duplicateNotifications : metrics.expiredNotifications).increment();
+            return null;
+        }
+        NotificationJournal.Consumer consumer = journal;
+        long sequence = consumer == null ? -1 : consumer.getJournal().append(stringData);
+        if(deduplicator.check(frame.messageIdHash(), Long.MIN_VALUE, System.currentTimeMillis()) != MessageDeduplicator.Verdict.NEW) {
+            // the same notification arrived twice at once and the other request was first
+            metrics.duplicateNotifications.increment();
+            if(consumer != null)
+                consumer.commit(sequence);
+            return null;
+        }
+        metrics.notifications.increment();
+        return router.dispatch(frame, stringData, received, consumer, sequence);
+    }
+
+    /**
+     * Appends every notification to the journal before it is acknowledged, see{@code TwitchEventSub.setJournal}.
+     * <li>With{@code FsyncPolicy.EVERY_APPEND}Twitch only gets its 204 once the notification is on disk, otherwise it sends the notification again.
+     * <li>A notification that could not be written is answered with 503 and not dispatched, Twitch sends it again.
+     */
+    public final long setJournal(NotificationJournal journal, String consumerName) throws IOException {
+        NotificationJournal.Consumer consumer = journal.consumer(consumerName);
+        long replayed = router.replay(consumer);
+        this.journal = consumer;
+        return replayed;
+    }
+
+    // header values are plain ids, timestamps and type names. Quotes and backslashes are escaped anyway, a header must not break the message
+    private static StringBuilder appendField(StringBuilder message, String name, String value) {
+        message.append('"').append(name).append("\":");
+        if(value == null)
+            return message.append("null");
+        message.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\')
+                message.append('\\');
+            if(c >= ' ')
+                message.append(c);
+        }
+        return message.append('"');
+    }
+}
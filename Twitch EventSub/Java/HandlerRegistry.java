@@ -0,0 +1,83 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The handlers added with{@code addHandler}, keyed by subscription type and version.
+ * <li>Shared by all sessions of an{@code EventSubManager}, a single{@code TwitchEventSub}has its own.
+ */
+final class HandlerRegistry {
+    // "type@version" -> the handlers of every SubscriptionType with that type and version
+    private final Map<String, List<Registration<?>>> handlers = new ConcurrentHashMap<>();
+
+    <T> void add(SubscriptionType<T> type, TwitchEventSub.NotificationHandler<? super T> handler) {
+        List<Registration<?>> registrations = handlers.computeIfAbsent(type.key(), key -> new CopyOnWriteArrayList<>());
+        synchronized(registrations) {
+            for (Registration<?> registration : registrations) {
+                if(registration.type == type) {
+                    registration.add(handler);
+                    return;
+                }
+            }
+            Registration<T> registration = new Registration<>(type);
+            registration.add(handler);
+            registrations.add(registration);
+        }
+    }
+
+    void remove(SubscriptionType<?> type, TwitchEventSub.NotificationHandler<?> handler) {
+        List<Registration<?>> registrations = handlers.get(type.key());
+        if(registrations == null)
+            return;
+        synchronized(registrations) {
+            registrations.removeIf(registration -> registration.type == type && registration.remove(handler));
+        }
+    }
+
+    /**
+     * Returns the registrations for the type and version, or null if there is no handler for them.
+     */
+    List<Registration<?>> get(String type, String version) {
+        List<Registration<?>> registrations = handlers.get(SubscriptionType.key(type, version));
+        return registrations == null || registrations.isEmpty() ? null : registrations;
+    }
+
+    static void handle(List<Registration<?>> registrations, JsonObject event) {
+        for (Registration<?> registration : registrations) {
+            try {
+                registration.handle(event);
+            } catch (Exception e) {
+                // one failing handler does not keep the others from the event
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the handlers of one SubscriptionType, the event is decoded once for all of them
+    static final class Registration<T> {
+        private final SubscriptionType<T> type;
+        private final List<TwitchEventSub.NotificationHandler<? super T>> handlers = new CopyOnWriteArrayList<>();
+
+        Registration(SubscriptionType<T> type) {
+            this.type = type;
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(TwitchEventSub.NotificationHandler<?> handler) {
+            handlers.add((TwitchEventSub.NotificationHandler<? super T>) handler);
+        }
+
+        // returns true if no handler is left
+        boolean remove(TwitchEventSub.NotificationHandler<?> handler) {
+            handlers.remove(handler);
+            return handlers.isEmpty();
+        }
+
+        void handle(JsonObject event) {
+            T decoded = type.decode(event);
+            for (TwitchEventSub.NotificationHandler<? super T> handler : handlers)
+                handler.onNotification(decoded);
+        }
+    }
+}
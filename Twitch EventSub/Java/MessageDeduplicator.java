@@ -0,0 +1,112 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the metadata.message_id of recent notifications, Twitch may deliver the same notification more than once, e.g. around a session_reconnect.
+ * <li>Ids are kept as 64 bit hashes in two open-addressed hash sets: the current generation and the previous one. Every window the previous one is cleared and becomes the current one,
+ *     so an id is remembered for at least one and at most two windows. A lookup is two probes into flat{@code long}arrays and does not allocate.
+ * <li>The memory is fixed: a generation holds at most{@code capacity}ids. If it fills up before the window is over it is rotated early, which shortens the remembered time but never grows the sets.
+ * <li>Messages whose message_timestamp is older than the window are rejected without a lookup, their id might have been forgotten already.
+ */
+final class MessageDeduplicator {
+    enum Verdict {
+        NEW,
+        DUPLICATE,
+        EXPIRED
+    }
+
+    // twitch recommends to reject messages older than 10 minutes
+    static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    static final int DEFAULT_CAPACITY = 1 << 17;
+
+    private final long windowMillis;
+    private final int capacity;
+    private final int mask;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private long currentStartedAt;
+
+    MessageDeduplicator() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    MessageDeduplicator(long windowMillis, int capacity) {
+        this.windowMillis = windowMillis;
+        this.capacity = capacity;
+        // the sets are at most half full, so probe sequences stay short
+        int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 2;
+        this.mask = slots - 1;
+        this.current = new long[slots];
+        this.previous = new long[slots];
+    }
+
+    /**
+     * Checks the message and remembers its id if it is new.
+     * <li>{@code idHash}0 means the message has no id,{@code timestamp}{@code Long.MIN_VALUE}that it has no readable timestamp. Those checks are skipped.
+     */
+    synchronized Verdict check(long idHash, long timestamp, long now) {
+        if(timestamp != Long.MIN_VALUE && now - timestamp > windowMillis)
+            return Verdict.EXPIRED;
+        if(idHash == 0)
+            return Verdict.NEW;
+
+        if(now - currentStartedAt >= windowMillis || currentSize >= capacity)
+            rotate(now);
+        if(contains(previous, idHash))
+            return Verdict.DUPLICATE;
+        return add(current, idHash) ? Verdict.NEW : Verdict.DUPLICATE;
+    }
+
+    /**
+     * Like{@code check}, but does not remember the id. E.g. to find duplicates before a message is accepted, and{@code check}it once it was.
+     */
+    synchronized Verdict peek(long idHash, long timestamp, long now) {
+        if(timestamp != Long.MIN_VALUE && now - timestamp > windowMillis)
+            return Verdict.EXPIRED;
+        if(idHash == 0)
+            return Verdict.NEW;
+        return contains(previous, idHash) || contains(current, idHash) ? Verdict.DUPLICATE : Verdict.NEW;
+    }
+
+    private void rotate(long now) {
+        long[] oldest = previous;
+        previous = current;
+        current = oldest;
+        Arrays.fill(current, 0);
+        // after a long pause the previous generation is older than the window as well
+        if(now - currentStartedAt >= 2 * windowMillis)
+            Arrays.fill(previous, 0);
+        currentSize = 0;
+        currentStartedAt = now;
+    }
+
+    private boolean contains(long[] set, long key) {
+        for (int i = index(key); ; i = (i + 1) & mask) {
+            long slot = set[i];
+            if(slot == key)
+                return true;
+            if(slot == 0)
+                return false;
+        }
+    }
+
+    // returns false if the key was already in the set
+    private boolean add(long[] set, long key) {
+        for (int i = index(key); ; i = (i + 1) & mask) {
+            long slot = set[i];
+            if(slot == key)
+                return false;
+            if(slot == 0) {
+                set[i] = key;
+                currentSize++;
+                return true;
+            }
+        }
+    }
+
+    private int index(long key) {
+        // the keys are already hashes, the high bits are folded in for small tables
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+}
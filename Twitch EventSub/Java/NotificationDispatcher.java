@@ -0,0 +1,230 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the notification handlers of a{@code TwitchEventSub}instance away from the thread that reads from the WebSocket.
+ * <li>Every key (subscription type and broadcaster) has its own serial lane: notifications of one key are handled one after another in the order they arrived,
+ *     different keys run in parallel. A slow channel points handler does not delay the follows or raids of any broadcaster.
+ * <li>Each lane has a bounded queue. What happens when it is full is decided by the{@code OverflowPolicy}.
+ * <li>The executor can be replaced, e.g. with{@code Executors.newVirtualThreadPerTaskExecutor()}on Java 21 and newer.
+ */
+public final class NotificationDispatcher {
+    public enum OverflowPolicy {
+        /** The reading thread waits until the lane has room again, nothing is lost. This also delays every other message of the WebSocket. The default. */
+        BLOCK,
+        /** The oldest queued callback of the lane is dropped. */
+        DROP_OLDEST,
+        /** The new callback is dropped. */
+        DROP_NEWEST
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // a lane gives its thread back to the executor after this many callbacks, so busy keys can not starve quiet ones
+    private static final int MAX_CALLBACKS_PER_RUN = 64;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final EventSubMetrics metrics;
+    private final AtomicInteger queueDepth;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final ExecutorService ownExecutor;
+    private volatile Executor executor;
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    // onDrop runs instead of the callback if the callback is dropped, e.g. to commit it to a journal
+    private record Queued(Runnable callback, Runnable onDrop, long queuedAt) {
+        void drop() {
+            if(onDrop == null)
+                return;
+            try {
+                onDrop.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    NotificationDispatcher(EventSubMetrics metrics) {
+        this.metrics = metrics;
+        this.queueDepth = metrics.notificationQueueDepth;
+        AtomicInteger threadNumber = new AtomicInteger();
+        ownExecutor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "TwitchEventSub-handler-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor = ownExecutor;
+    }
+
+    /**
+     * Replaces the executor that runs the lanes. Lanes that are currently running finish on the old executor.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if(queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity has to be at least 1");
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the number of notifications waiting in all lanes.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the number of notifications waiting in the lane of the subscription type and broadcaster.
+     */
+    public int getQueueDepth(String subscriptionType, String broadcasterUserId) {
+        Lane lane = lanes.get(key(subscriptionType, broadcasterUserId));
+        if(lane == null)
+            return 0;
+        synchronized(lane) {
+            return lane.queue.size();
+        }
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of handlers that threw an exception.
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    static String key(String subscriptionType, String broadcasterUserId) {
+        return subscriptionType + '/' + broadcasterUserId;
+    }
+
+    /**
+     * Queues the callback in the lane of the key. Returns false if it was dropped.
+     * <li>{@code queuedAt}is the{@code System.nanoTime()}the message was received, the dispatch latency is measured from there.
+     */
+    boolean dispatch(String key, long queuedAt, Runnable callback) {
+        return dispatch(key, queuedAt, callback, null);
+    }
+
+    /**
+     * Like{@code dispatch(key, queuedAt, callback)}, {@code onDrop}runs whenever the callback is dropped: rejected when it is offered, evicted by{@code DROP_OLDEST}
+     * or discarded because the executor does not take it anymore.
+     */
+    boolean dispatch(String key, long queuedAt, Runnable callback, Runnable onDrop) {
+        return lanes.computeIfAbsent(key, k -> new Lane()).offer(new Queued(callback, onDrop, queuedAt));
+    }
+
+    void close() {
+        ownExecutor.shutdownNow();
+    }
+
+    private final class Lane implements Runnable {
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+        private boolean isScheduled;
+
+        synchronized boolean offer(Queued callback) {
+            while (queue.size() >= queueCapacity) {
+                switch (overflowPolicy) {
+                    case DROP_NEWEST:
+                        dropped.increment();
+                        callback.drop();
+                        return false;
+                    case DROP_OLDEST:
+                        queue.poll().drop();
+                        queueDepth.decrementAndGet();
+                        dropped.increment();
+                        break;
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped.increment();
+                            callback.drop();
+                            return false;
+                        }
+                        break;
+                }
+            }
+
+            queue.add(callback);
+            queueDepth.incrementAndGet();
+            if(!isScheduled) {
+                isScheduled = true;
+                schedule();
+            }
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the dispatcher was closed, nothing will run anymore
+                dropped.add(queue.size());
+                queueDepth.addAndGet(-queue.size());
+                for (Queued queued : queue)
+                    queued.drop();
+                queue.clear();
+                isScheduled = false;
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_CALLBACKS_PER_RUN; i++) {
+                Queued callback;
+                synchronized(this) {
+                    callback = queue.poll();
+                    if(callback == null) {
+                        isScheduled = false;
+                        return;
+                    }
+                    queueDepth.decrementAndGet();
+                    notifyAll();
+                }
+
+                long start = System.nanoTime();
+                metrics.dispatchNanos.record(start - callback.queuedAt());
+                try {
+                    callback.callback().run();
+                } catch (Throwable t) {
+                    failed.increment();
+                    t.printStackTrace();
+                }
+                metrics.handlerNanos.record(System.nanoTime() - start);
+                dispatched.increment();
+            }
+
+            synchronized(this) {
+                if(queue.isEmpty())
+                    isScheduled = false;
+                else
+                    schedule();
+            }
+        }
+    }
+}
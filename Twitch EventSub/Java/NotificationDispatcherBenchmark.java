@@ -0,0 +1,92 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures how fast{@code NotificationDispatcher}hands notifications from the reading thread to the lanes, with 1, 16 and 256 keys (subscription type and broadcaster).
+ * <li>The burst run dispatches from one thread as fast as it can and reports notifications per second until the last handler ran.
+ * <li>The paced run dispatches at a fixed rate and reports the latency from the dispatch until the handler starts, which is what a notification waits after it was parsed.
+ * <li>A single thread executor without lanes, i.e. one global order, is measured the same way as a baseline.
+ * <li>The end-to-end numbers with the WebSocket, the parser and the deduplication are in{@code EventSubLoadScenario}of the simulator folder.
+ * <li>Run with:{@code java NotificationDispatcherBenchmark [notifications] [rounds] [notifications per second]}
+ */
+public class NotificationDispatcherBenchmark {
+    private interface Target {
+        void dispatch(String key, Runnable callback);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int notificationCount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        System.out.printf("%-16s %8s %16s %10s %10s %10s %10s%n", "target", "keys", "notifications/s", "p50", "p99", "max", "dropped");
+
+        // the first round warms up every path and is not printed
+        for (int round = 0; round <= rounds; round++) {
+            boolean isPrinted = round > 0;
+            for (int keyCount : new int[] { 1, 16, 256 }) {
+                String[] keys = keys(keyCount);
+                run("lanes burst", keys, notificationCount, 0, isPrinted);
+                run("lanes paced", keys, rate, rate, isPrinted);
+            }
+            runExecutor("executor burst", notificationCount, 0, isPrinted);
+            runExecutor("executor paced", rate, rate, isPrinted);
+        }
+    }
+
+    private static void run(String name, String[] keys, int count, int rate, boolean isPrinted) throws InterruptedException {
+        NotificationDispatcher dispatcher = new NotificationDispatcher(new EventSubMetrics());
+        // nothing may be dropped, otherwise the run never ends
+        dispatcher.setOverflowPolicy(NotificationDispatcher.OverflowPolicy.BLOCK);
+        try {
+            measure(name, keys, count, rate, (key, callback) -> dispatcher.dispatch(key, System.nanoTime(), callback), dispatcher::getDroppedCount, isPrinted);
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    private static void runExecutor(String name, int count, int rate, boolean isPrinted) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            measure(name, keys(1), count, rate, (key, callback) -> executor.execute(callback), () -> 0, isPrinted);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void measure(String name, String[] keys, int count, int rate, Target target, LongSupplier dropped, boolean isPrinted) throws InterruptedException {
+        EventSubMetrics.Histogram latency = new EventSubMetrics.Histogram();
+        CountDownLatch done = new CountDownLatch(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if(rate > 0) {
+                long wait = start + i * 1_000_000_000L / rate - System.nanoTime();
+                if(wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            long queuedAt = System.nanoTime();
+            target.dispatch(keys[i % keys.length], () -> {
+                latency.record(System.nanoTime() - queuedAt);
+                done.countDown();
+            });
+        }
+        done.await(1, TimeUnit.MINUTES);
+        long nanos = System.nanoTime() - start;
+
+        if(isPrinted) {
+            EventSubMetrics.Histogram.Summary summary = latency.summary();
+            System.out.printf("%-16s %8d %16.0f %7.1f us %7.1f us %7.1f us %10d%n", name, keys.length, count * 1e9 / nanos,
+                    summary.p50() / 1e3, summary.p99() / 1e3, summary.max() / 1e3, dropped.getAsLong());
+        }
+    }
+
+    private static String[] keys(int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++)
+            keys[i] = NotificationDispatcher.key("channel.follow", Integer.toString(10_000 + i));
+        return keys;
+    }
+}
@@ -0,0 +1,461 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * A write-ahead journal of notifications, set with{@code TwitchEventSub.setJournal}or{@code EventSubWebhook.setJournal}. Notifications that were queued but not handled when the process died are handled after the restart.
+ * <li>Every notification is appended to a memory mapped segment file and gets a sequence number before it is dispatched. A handled notification is committed to the checkpoint of its{@code Consumer}.
+ * <li>On start the entries after the checkpoint are replayed. Delivery is at-least-once: a notification that was handled but not yet committed is handled again.
+ * <li>How long{@code append}waits for the disk is decided by the{@code FsyncPolicy}. Appends of many threads that arrive while the disk is busy are forced together (group commit).
+ * <li>Every record has a header with its length, a CRC32C of its bytes and its sequence number. A record that was cut off by a crash ends the journal, it is overwritten by the next append.
+ * <li>Segments whose records are committed by every consumer are deleted when a new segment is started.
+ * <li>Throughput of the policies on your disk:{@code java NotificationJournalBenchmark <directory>}
+ */
+public final class NotificationJournal implements AutoCloseable {
+    public enum FsyncPolicy {
+        /** {@code append}returns after the notification is on disk. Concurrent appends share one force. The default. */
+        EVERY_APPEND,
+        /** The journal is forced every{@code intervalMillis}, a crash of the machine loses at most that much. A crash of the process loses nothing. */
+        INTERVAL,
+        /** The operating system decides when the pages are written, a crash of the process still loses nothing. */
+        NEVER
+    }
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    public static final long DEFAULT_INTERVAL_MILLIS = 10;
+
+    // length (int), crc32c (int), sequence (long), records start at multiples of 8 so the length can be written atomically
+    private static final int HEADER_SIZE = 16;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    // the length of a record is written last with release semantics, a reader that sees it also sees the rest of the record
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final FsyncPolicy policy;
+    private final long intervalMillis;
+    private final Map<String, Consumer> consumers = new ConcurrentHashMap<>();
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final Thread syncer;
+    private volatile boolean isClosed = false;
+
+    // guarded by this
+    private MappedByteBuffer segment;
+    private long nextSequence;
+    // the end of the segment that is on disk
+    private int forcedPosition;
+    // the last sequence that is on disk. Written while holding forced, the appends wait on forced so a force does not wake the syncer or the other way round
+    private final Object forced = new Object();
+    private volatile long durableSequence;
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Receives a stored notification and its sequence number.
+     */
+    @FunctionalInterface
+    public interface EntryListener {
+        void onEntry(long sequence, String message);
+    }
+
+    public NotificationJournal(Path directory) throws IOException {
+        this(directory, FsyncPolicy.EVERY_APPEND, DEFAULT_INTERVAL_MILLIS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public NotificationJournal(Path directory, FsyncPolicy policy, long intervalMillis, long segmentSize) throws IOException {
+        if(segmentSize < 64 << 10 || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("segmentSize has to be between 64KB and 2GB");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+        this.intervalMillis = Math.max(1, intervalMillis);
+
+        Files.createDirectories(directory);
+        recover();
+
+        if(policy != FsyncPolicy.NEVER) {
+            syncer = new Thread(this::syncLoop, "TwitchEventSub-journal");
+            syncer.setDaemon(true);
+            syncer.start();
+        } else {
+            syncer = null;
+        }
+    }
+
+    /**
+     * Returns the number of notifications appended since the journal was opened.
+     */
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    /**
+     * Returns how often the segment was forced to disk. With{@code EVERY_APPEND}the appends per force tell how well group commit works.
+     */
+    public long getForceCount() {
+        return forces.sum();
+    }
+
+    /**
+     * Returns the sequence number the next notification gets.
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Stores the notification and returns its sequence number. Blocks until it is on disk if the policy is{@code EVERY_APPEND}.
+     */
+    public long append(String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        if(HEADER_SIZE + align(bytes.length) + HEADER_SIZE > segmentSize)
+            throw new IllegalArgumentException("The message does not fit into a segment: " + bytes.length + " bytes");
+
+        long sequence;
+        synchronized(this) {
+            if(isClosed)
+                throw new IOException("The journal is closed");
+            // a segment always keeps room for a zero length that marks its end
+            if(segment == null || segment.position() + HEADER_SIZE + align(bytes.length) + HEADER_SIZE > segmentSize)
+                openSegment();
+
+            sequence = nextSequence++;
+            int position = segment.position();
+            crc.reset();
+            crc.update(bytes);
+            segment.putInt(position + 4, (int) crc.getValue());
+            segment.putLong(position + 8, sequence);
+            segment.put(position + HEADER_SIZE, bytes);
+            INT.setRelease(segment, position, bytes.length);
+            segment.position(position + HEADER_SIZE + align(bytes.length));
+            // only the syncer waits on this. With INTERVAL it wakes up on its own
+            if(policy == FsyncPolicy.EVERY_APPEND)
+                notify();
+        }
+        appended.increment();
+
+        if(policy == FsyncPolicy.EVERY_APPEND)
+            awaitDurable(sequence);
+        return sequence;
+    }
+
+    private void awaitDurable(long sequence) throws IOException {
+        synchronized(forced) {
+            // close() forces everything that was appended, so this also returns while the journal is closed
+            while (durableSequence < sequence) {
+                try {
+                    forced.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal", e);
+                }
+            }
+        }
+    }
+
+    private void markDurable(long sequence) {
+        synchronized(forced) {
+            if(sequence > durableSequence)
+                durableSequence = sequence;
+            forced.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the consumer with the given name, its checkpoint is kept in the file{@code <name>.checkpoint}. It is created at the current end of the journal if it did not exist,
+     * so a new consumer does not replay the notifications of others.
+     */
+    public Consumer consumer(String name) throws IOException {
+        if(name.isEmpty() || !name.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '-' || c == '_'))
+            throw new IllegalArgumentException("A consumer name may only contain letters, digits, '-' and '_'");
+        Consumer consumer = consumers.get(name);
+        if(consumer != null)
+            return consumer;
+        synchronized(consumers) {
+            consumer = consumers.get(name);
+            if(consumer == null) {
+                consumer = new Consumer(this, name, directory.resolve(name + CHECKPOINT_SUFFIX), getNextSequence() - 1);
+                consumers.put(name, consumer);
+            }
+            return consumer;
+        }
+    }
+
+    /**
+     * Calls the listener for every stored notification after the given sequence number, in order. Returns the number of replayed notifications.
+     * <li>The callbacks run on the calling thread.
+     */
+    public long replay(long afterSequence, EntryListener listener) throws IOException {
+        long count = 0;
+        List<Path> segments = segments(directory);
+        for (int s = 0; s < segments.size(); s++) {
+            // segments are named after the sequence of their first record, the next one tells where this one ends
+            if(s + 1 < segments.size() && firstSequence(segments.get(s + 1)) <= afterSequence + 1)
+                continue;
+            ByteBuffer data;
+            try (FileChannel file = FileChannel.open(segments.get(s), StandardOpenOption.READ)) {
+                data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+            long expected = firstSequence(segments.get(s));
+            CRC32C check = new CRC32C();
+            for (int position = 0; position + HEADER_SIZE <= data.limit(); ) {
+                int length = (int) INT.getAcquire(data, position);
+                long sequence = data.getLong(position + 8);
+                if(length <= 0 || position + HEADER_SIZE + length > data.limit() || sequence != expected)
+                    break;
+                byte[] bytes = new byte[length];
+                data.get(position + HEADER_SIZE, bytes);
+                check.reset();
+                check.update(bytes);
+                if((int) check.getValue() != data.getInt(position + 4))
+                    break;
+                if(sequence > afterSequence) {
+                    listener.onEntry(sequence, new String(bytes, StandardCharsets.UTF_8));
+                    count++;
+                }
+                expected++;
+                position += HEADER_SIZE + align(length);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forces what is left and closes the journal. Appends that wait for the disk return once their notification is forced.
+     */
+    @Override
+    public void close() {
+        synchronized(this) {
+            if(isClosed)
+                return;
+            isClosed = true;
+            notifyAll();
+        }
+        synchronized(forced) {
+            forced.notifyAll();
+        }
+        if(syncer != null) {
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized(this) {
+            if(segment != null)
+                segment.force();
+            markDurable(nextSequence - 1);
+        }
+        for (Consumer consumer : consumers.values())
+            consumer.close();
+    }
+
+    // finds the end of the last segment: the first record that is empty, cut off or out of sequence
+    private void recover() throws IOException {
+        List<Path> segments = segments(directory);
+        if(segments.isEmpty()) {
+            nextSequence = 1;
+            durableSequence = 0;
+            return;
+        }
+        Path last = segments.get(segments.size() - 1);
+        try (FileChannel file = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        long expected = firstSequence(last);
+        int position = 0;
+        while (position + HEADER_SIZE <= segmentSize) {
+            int length = segment.getInt(position);
+            if(length <= 0 || position + HEADER_SIZE + align(length) + HEADER_SIZE > segmentSize || segment.getLong(position + 8) != expected)
+                break;
+            byte[] bytes = new byte[length];
+            segment.get(position + HEADER_SIZE, bytes);
+            crc.reset();
+            crc.update(bytes);
+            if((int) crc.getValue() != segment.getInt(position + 4))
+                break;
+            expected++;
+            position += HEADER_SIZE + align(length);
+        }
+        // a torn record would look valid again once the next append ends at the same place, its length is cleared
+        segment.putInt(position, 0);
+        segment.position(position);
+        forcedPosition = position;
+        nextSequence = expected;
+        durableSequence = expected - 1;
+    }
+
+    // called with the lock held
+    private void openSegment() throws IOException {
+        // the syncer only forces the current segment, the rest of this one is forced here
+        if(segment != null && policy != FsyncPolicy.NEVER) {
+            segment.force();
+            markDurable(nextSequence - 1);
+        }
+        Path path = directory.resolve(String.format("journal-%019d.log", nextSequence));
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        forcedPosition = 0;
+        deleteCommittedSegments();
+    }
+
+    private void deleteCommittedSegments() throws IOException {
+        if(consumers.isEmpty())
+            return;
+        long committed = Long.MAX_VALUE;
+        for (Consumer consumer : consumers.values())
+            committed = Math.min(committed, consumer.getCheckpoint());
+        List<Path> segments = segments(directory);
+        // a segment can go once the first record of the next one is committed, the current segment is never deleted
+        for (int s = 0; s + 1 < segments.size() && firstSequence(segments.get(s + 1)) - 1 <= committed; s++)
+            Files.deleteIfExists(segments.get(s));
+    }
+
+    // forces what was appended since the last force. Appends that arrive meanwhile are forced together by the next round
+    private void syncLoop() {
+        while (true) {
+            MappedByteBuffer target;
+            int from, to;
+            long sequence;
+            try {
+                if(policy == FsyncPolicy.INTERVAL) {
+                    // waits on forced and not on this, so the busy lock of the appends is only taken for a moment below. close() cuts the wait short
+                    long deadline = System.nanoTime() + intervalMillis * 1_000_000;
+                    synchronized(forced) {
+                        for (long left = intervalMillis; !isClosed && left > 0; left = (deadline - System.nanoTime()) / 1_000_000)
+                            forced.wait(left);
+                    }
+                }
+                synchronized(this) {
+                    while (!isClosed && policy == FsyncPolicy.EVERY_APPEND && durableSequence == nextSequence - 1)
+                        wait();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized(this) {
+                if(isClosed)
+                    return;
+                if(durableSequence == nextSequence - 1)
+                    continue;
+                target = segment;
+                from = forcedPosition;
+                to = segment.position();
+                sequence = nextSequence - 1;
+            }
+            // outside of the lock, appends go on while the disk is busy
+            if(to > from)
+                target.force(from, to - from);
+            forces.increment();
+            synchronized(this) {
+                if(target == segment)
+                    forcedPosition = Math.max(forcedPosition, to);
+            }
+            markDurable(sequence);
+        }
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> p.getFileName().toString().startsWith("journal-") && p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(8, name.length() - 4));
+    }
+
+    /**
+     * A reader of the journal with a persistent checkpoint: the sequence number up to which every notification was handled.
+     * <li>Notifications can be handled out of order, e.g. by the lanes of the{@code NotificationDispatcher}. The checkpoint only moves over sequence numbers that are all committed.
+     * <li>The checkpoint is written to a memory mapped file on every move, it survives a crash of the process. It is forced to disk when the journal is closed.
+     */
+    public static final class Consumer {
+        private final NotificationJournal journal;
+        private final String name;
+        private final FileChannel file;
+        private final MappedByteBuffer checkpointFile;
+        // bit i is set if checkpoint + 1 + i is committed
+        private BitSet committed = new BitSet();
+        private long checkpoint;
+
+        Consumer(NotificationJournal journal, String name, Path path, long initialCheckpoint) throws IOException {
+            this.journal = journal;
+            this.name = name;
+            boolean exists = Files.exists(path);
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            checkpointFile = file.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+            checkpoint = exists ? checkpointFile.getLong(0) : initialCheckpoint;
+            checkpointFile.putLong(0, checkpoint);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public NotificationJournal getJournal() {
+            return journal;
+        }
+
+        /**
+         * Returns the last sequence number up to which every notification was committed.
+         */
+        public synchronized long getCheckpoint() {
+            return checkpoint;
+        }
+
+        /**
+         * Marks the notification as handled. Sequence numbers that are not above the checkpoint, e.g. -1 for a notification that was not journaled, are ignored.
+         */
+        public synchronized void commit(long sequence) {
+            if(sequence <= checkpoint)
+                return;
+            long offset = sequence - checkpoint - 1;
+            if(offset > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Too many notifications are not committed");
+            committed.set((int) offset);
+            int moved = committed.nextClearBit(0);
+            if(moved == 0)
+                return;
+            // most commits arrive in order, the set is then empty again after the move
+            committed = committed.get(moved, Math.max(moved, committed.length()));
+            checkpoint += moved;
+            checkpointFile.putLong(0, checkpoint);
+        }
+
+        synchronized void close() {
+            checkpointFile.force();
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + getCheckpoint();
+        }
+    }
+}
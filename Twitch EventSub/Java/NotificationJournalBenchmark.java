@@ -0,0 +1,71 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Measures how many notifications per second{@code NotificationJournal}takes with each{@code FsyncPolicy}, from 1, 4 and 16 appending threads (e.g. several sessions or webhook threads).
+ * <li>Reports notifications per second, the append latency and how many appends shared one force. The numbers depend on the disk, run it on the one the journal will use.
+ * <li>Run with:{@code java NotificationJournalBenchmark [directory] [seconds per run]}
+ */
+public class NotificationJournalBenchmark {
+    public static void main(String[] args) throws Exception {
+        Path root = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("journal-benchmark");
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 3;
+        String[] messages = EventSubParserBenchmark.createMessages(10_000, new Random(42));
+
+        System.out.printf("%-13s %7s %14s %12s %12s %14s%n", "policy", "threads", "notifications/s", "p50 append", "p99 append", "appends/force");
+        int run = 0;
+        for (NotificationJournal.FsyncPolicy policy : NotificationJournal.FsyncPolicy.values()) {
+            for (int threads : new int[] { 1, 4, 16 }) {
+                Path directory = root.resolve("run-" + run++);
+                measure(directory, policy, threads, messages, seconds);
+                delete(directory);
+            }
+        }
+    }
+
+    private static void measure(Path directory, NotificationJournal.FsyncPolicy policy, int threads, String[] messages, double seconds) throws Exception {
+        EventSubMetrics.Histogram latency = new EventSubMetrics.Histogram();
+        AtomicLong count = new AtomicLong();
+        try (NotificationJournal journal = new NotificationJournal(directory, policy, NotificationJournal.DEFAULT_INTERVAL_MILLIS, NotificationJournal.DEFAULT_SEGMENT_SIZE)) {
+            long end = System.nanoTime() + (long) (seconds * 1e9);
+            CountDownLatch done = new CountDownLatch(threads);
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int offset = t * 997;
+                Thread thread = new Thread(() -> {
+                    try {
+                        for (int i = offset; System.nanoTime() < end; i++) {
+                            long before = System.nanoTime();
+                            journal.append(messages[i % messages.length]);
+                            latency.record(System.nanoTime() - before);
+                            count.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                });
+                thread.start();
+            }
+            done.await();
+            long nanos = System.nanoTime() - start;
+            EventSubMetrics.Histogram.Summary summary = latency.summary();
+            long forces = journal.getForceCount();
+            System.out.printf("%-13s %7d %14.0f %9.1f us %9.1f us %14s%n", policy, threads, count.get() * 1e9 / nanos,
+                    summary.p50() / 1e3, summary.p99() / 1e3, forces == 0 ? "-" : String.format("%.1f", (double) count.get() / forces));
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList())
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hands notifications to the{@code NotificationDispatcher}, the part of{@code TwitchEventSub}and{@code EventSubWebhook}that does not depend on how a notification arrives.
+ * <li>{@code onNotificationMessage}and the handlers of the subscription type run in the lane of the type and broadcaster.
+ * <li>With a journal consumer the notification is committed once they returned, or when the dispatcher dropped it.
+ */
+final class NotificationRouter {
+    private final HandlerRegistry handlers;
+    private final NotificationDispatcher dispatcher;
+    private final MessageDeduplicator deduplicator;
+    private final Consumer<String> onNotificationMessage;
+
+    NotificationRouter(HandlerRegistry handlers, NotificationDispatcher dispatcher, MessageDeduplicator deduplicator, Consumer<String> onNotificationMessage) {
+        this.handlers = handlers;
+        this.dispatcher = dispatcher;
+        this.deduplicator = deduplicator;
+        this.onNotificationMessage = onNotificationMessage;
+    }
+
+    /**
+     * Dispatches the notifications the consumer did not commit yet, on the calling thread and in the order they were received. Returns their number.
+     */
+    long replay(NotificationJournal.Consumer consumer) throws IOException {
+        EventSubFrame frame = new EventSubFrame();
+        return consumer.getJournal().replay(consumer.getCheckpoint(), (sequence, message) -> {
+            if(!frame.parse(message)) {
+                consumer.commit(sequence);
+                return;
+            }
+            // remembered, so the notification is not handled twice if twitch sends it again. It was accepted before, its age does not matter
+            deduplicator.check(frame.messageIdHash(), Long.MIN_VALUE, System.currentTimeMillis());
+            dispatch(frame, message, System.nanoTime(), consumer, sequence).run();
+        });
+    }
+
+    /**
+     * Returns the dispatch of a parsed notification.{@code consumer}is null without a journal, then{@code sequence}is not used.
+     * <li>The fields are read from the frame right away, the returned runnable can run later, e.g. after the notifications held during a reconnect.
+     */
+    Runnable dispatch(EventSubFrame frame, String message, long received, NotificationJournal.Consumer consumer, long sequence) {
+        String subscriptionType = frame.subscriptionType();
+        List<HandlerRegistry.Registration<?>> registrations = handlers.get(subscriptionType, frame.subscriptionVersion());
+        // the event is only cut out of the message if someone decodes it
+        String eventJson = registrations == null ? null : frame.event();
+        String key = NotificationDispatcher.key(subscriptionType, frame.conditionBroadcasterId());
+        return () -> {
+            // a dropped notification is committed as well, otherwise the checkpoint would stop at it
+            dispatcher.dispatch(key, received, () -> {
+                try {
+                    onNotificationMessage.accept(message);
+                    if(eventJson != null)
+                        HandlerRegistry.handle(registrations, JsonObject.of(eventJson));
+                } finally {
+                    if(consumer != null)
+                        consumer.commit(sequence);
+                }
+            }, consumer == null ? null : () -> consumer.commit(sequence));
+        };
+    }
+}
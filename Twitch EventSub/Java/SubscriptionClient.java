@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates EventSub subscriptions asynchronously over one shared HTTP/2 client.
+ * <li>At most{@code maxConcurrency}requests are in flight at once, the others wait in a queue without holding a thread.
+ * <li>The Ratelimit-Remaining and Ratelimit-Reset headers of every response are remembered per client id. When the bucket is empty, the queue waits until it is refilled
+ *     instead of running into 429s, so a large set of subscriptions is created about as fast as the rate limit allows.
+ * <li>A 429 is retried after the reset, 5xx responses and I/O errors are retried with exponential backoff and jitter, up to{@code MAX_ATTEMPTS}times.
+ * <li>{@code setRequestSender}hands the requests to another sender, e.g. a scheduler that shares the rate limit with the other Helix requests of the app.
+ * <li>Twitch docs: https://dev.twitch.tv/docs/api/guide/#twitch-rate-limits
+ */
+public final class SubscriptionClient {
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+    public static final int MAX_ATTEMPTS = 5;
+    static final URI SUBSCRIPTIONS_URI = URI.create("https://api.twitch.tv/helix/eventsub/subscriptions");
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // one client for all instances, so every subscription shares its connection pool and HTTP/2 streams
+    static final HttpClient HTTP_CLIENT = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).connectTimeout(Duration.ofSeconds(10)).build();
+    static final SubscriptionClient SHARED = new SubscriptionClient(HTTP_CLIENT, SUBSCRIPTIONS_URI);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchEventSub-subscriptions");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpClient httpClient;
+    private final URI uri;
+    // the rate limit of helix is counted per client id
+    private final Map<String, RateLimit> rateLimits = new ConcurrentHashMap<>();
+    private final ArrayDeque<Attempt> waiting = new ArrayDeque<>();
+    private int inFlight;
+    private boolean isDrainScheduled;
+    private volatile int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    private volatile RequestSender requestSender;
+
+    /**
+     * Sends a request instead of the HTTP client, e.g.{@code request -> scheduler.send(request, HelixScheduler.Priority.CRITICAL)}with the{@code HelixScheduler}of the Twitch API folder.
+     */
+    @FunctionalInterface
+    public interface RequestSender {
+        CompletableFuture<HttpResponse<String>> send(HttpRequest request);
+    }
+
+    /**
+     * A subscription that should be created. The condition is sent as it is, e.g.{@code "broadcaster_user_id": "123"}.
+     */
+    public record Request(String type, String version, String condition) {}
+
+    /**
+     * The outcome of one subscription.{@code statusCode}is -1 if no response was received,{@code subscriptionId}is null unless it was created.
+     */
+    public record Result(Request request, int statusCode, String subscriptionId, String body, int attempts, long nanos) {
+        public boolean isSuccess() {
+            return statusCode >= 200 && statusCode < 300;
+        }
+
+        // 409: a subscription with the same type, version and condition already exists for the transport
+        public boolean isAlreadySubscribed() {
+            return statusCode == 409;
+        }
+    }
+
+    /**
+     * The results of{@code subscribeAll}in the order of the requests.
+     */
+    public record Report(List<Result> results, int succeeded, int alreadySubscribed, int failed, int retries, long nanos) {
+        public List<Result> failures() {
+            List<Result> failures = new ArrayList<>();
+            for (Result result : results) {
+                if(!result.isSuccess() && !result.isAlreadySubscribed())
+                    failures.add(result);
+            }
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d subscriptions in %d ms: %d created, %d already existed, %d failed, %d retries",
+                    results.size(), TimeUnit.NANOSECONDS.toMillis(nanos), succeeded, alreadySubscribed, failed, retries);
+        }
+    }
+
+    SubscriptionClient(HttpClient httpClient, URI uri) {
+        this.httpClient = httpClient;
+        this.uri = uri;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        if(maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency has to be at least 1");
+        this.maxConcurrency = maxConcurrency;
+        drain();
+    }
+
+    /**
+     * Sends the requests through the sender. With null they are sent with the HTTP client again.
+     */
+    public void setRequestSender(RequestSender requestSender) {
+        this.requestSender = requestSender;
+    }
+
+    /**
+     * Sends the JSON body to the subscriptions endpoint. The future completes with the final result after all retries, it never completes exceptionally.
+     */
+    CompletableFuture<Result> subscribe(Request request, String body, String accessToken, String clientId, EventSubMetrics metrics) {
+        Attempt attempt = new Attempt(request, body, accessToken, clientId, metrics);
+        synchronized(this) {
+            waiting.add(attempt);
+        }
+        drain();
+        return attempt.future;
+    }
+
+    /**
+     * Sends all requests and completes when every one of them has its final result.
+     */
+    CompletableFuture<Report> subscribeAll(List<Request> requests, List<String> bodies, String accessToken, String clientId, EventSubMetrics metrics) {
+        long start = System.nanoTime();
+        List<CompletableFuture<Result>> futures = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+            futures.add(subscribe(requests.get(i), bodies.get(i), accessToken, clientId, metrics));
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<Result> results = new ArrayList<>(futures.size());
+            int succeeded = 0, alreadySubscribed = 0, failed = 0, retries = 0;
+            for (CompletableFuture<Result> future : futures) {
+                Result result = future.join();
+                results.add(result);
+                retries += result.attempts() - 1;
+                if(result.isSuccess())
+                    succeeded++;
+                else if(result.isAlreadySubscribed())
+                    alreadySubscribed++;
+                else
+                    failed++;
+            }
+            return new Report(results, succeeded, alreadySubscribed, failed, retries, System.nanoTime() - start);
+        });
+    }
+
+    // starts as many waiting attempts as the concurrency and the rate limits allow
+    private void drain() {
+        List<Attempt> ready = new ArrayList<>();
+        synchronized(this) {
+            long wakeUp = Long.MAX_VALUE;
+            int skipped = 0;
+            while (inFlight < maxConcurrency && skipped < waiting.size()) {
+                Attempt attempt = waiting.poll();
+                long waitMillis = rateLimit(attempt.clientId).acquire();
+                if(waitMillis > 0) {
+                    // the bucket of this client id is empty, attempts of other client ids may still go
+                    waiting.add(attempt);
+                    wakeUp = Math.min(wakeUp, waitMillis);
+                    skipped++;
+                    continue;
+                }
+                inFlight++;
+                ready.add(attempt);
+            }
+            if(wakeUp != Long.MAX_VALUE && !isDrainScheduled) {
+                isDrainScheduled = true;
+                scheduler.schedule(() -> {
+                    synchronized(this) {
+                        isDrainScheduled = false;
+                    }
+                    drain();
+                }, wakeUp, TimeUnit.MILLISECONDS);
+            }
+        }
+        // sending happens outside of the lock, sendAsync can call back on this thread
+        for (Attempt attempt : ready)
+            send(attempt);
+    }
+
+    private RateLimit rateLimit(String clientId) {
+        return rateLimits.computeIfAbsent(clientId, key -> new RateLimit());
+    }
+
+    private void send(Attempt attempt) {
+        attempt.attempts++;
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(uri)
+                .timeout(Duration.ofSeconds(10))
+                .POST(BodyPublishers.ofString(attempt.body))
+                .header("Authorization", "Bearer " + attempt.accessToken)
+                .header("Client-Id", attempt.clientId)
+                .header("Content-Type", "application/json")
+                .build();
+
+        long start = System.nanoTime();
+        RequestSender requestSender = this.requestSender;
+        CompletableFuture<HttpResponse<String>> sent;
+        try {
+            sent = requestSender == null ? httpClient.sendAsync(request, BodyHandlers.ofString()) : requestSender.send(request);
+        } catch (RuntimeException e) {
+            sent = CompletableFuture.failedFuture(e);
+        }
+        sent.whenComplete((response, error) -> {
+            attempt.metrics.subscribeNanos.record(System.nanoTime() - start);
+            synchronized(this) {
+                inFlight--;
+            }
+            if(response != null)
+                rateLimit(attempt.clientId).update(response);
+            completed(attempt, response, error);
+            drain();
+        });
+    }
+
+    private void completed(Attempt attempt, HttpResponse<String> response, Throwable error) {
+        int status = response == null ? -1 : response.statusCode();
+        boolean isRetryable = error instanceof IOException || (error != null && error.getCause() instanceof IOException) || status == 429 || status >= 500;
+        if(isRetryable && attempt.attempts < MAX_ATTEMPTS) {
+            attempt.metrics.subscriptionRetries.increment();
+            if(status == 429) {
+                // the bucket is empty, the attempt goes first once it was refilled
+                rateLimit(attempt.clientId).exhausted();
+                synchronized(this) {
+                    waiting.addFirst(attempt);
+                }
+            } else {
+                scheduler.schedule(() -> {
+                    synchronized(this) {
+                        waiting.addFirst(attempt);
+                    }
+                    drain();
+                }, backoffMillis(attempt.attempts), TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+
+        if(status >= 200 && status < 300)
+            attempt.metrics.subscriptionSuccesses.increment();
+        else
+            attempt.metrics.subscriptionFailures.increment();
+        String body = response != null ? response.body() : String.valueOf(error);
+        attempt.future.complete(new Result(attempt.request, status, status >= 200 && status < 300 ? subscriptionId(body) : null, body,
+                attempt.attempts, System.nanoTime() - attempt.createdAt));
+    }
+
+    // 0.5s, 1s, 2s, ... with up to 50% jitter, so many failed requests do not come back at the same time
+    static long backoffMillis(int attempts) {
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, 500L << Math.min(attempts - 1, 16));
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    // {"data":[{"id":"...", ...}], ...}
+    static String subscriptionId(String body) {
+        int data = body.indexOf("\"data\"");
+        int first = data < 0 ? -1 : body.indexOf('{', data);
+        return first < 0 ? null : JsonObject.of(body.substring(first)).getString("id");
+    }
+
+    private static final class Attempt {
+        final Request request;
+        final String body;
+        final String accessToken;
+        final String clientId;
+        final EventSubMetrics metrics;
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        final long createdAt = System.nanoTime();
+        int attempts;
+
+        Attempt(Request request, String body, String accessToken, String clientId, EventSubMetrics metrics) {
+            this.request = request;
+            this.body = body;
+            this.accessToken = accessToken;
+            this.clientId = clientId;
+            this.metrics = metrics;
+        }
+    }
+
+    // the points left in the bucket of one client id as the last response reported them
+    private static final class RateLimit {
+        // -1 until the first response was received
+        private int remaining = -1;
+        private int limit = -1;
+        // when the bucket is full again. After a refill it is unknown until a response of the new window arrives
+        private long resetAt;
+        private long lastReset;
+        // the reset of the window that was refilled locally, the responses of that window are late and must not empty the new one
+        private long refilledReset = -1;
+
+        // returns 0 if a request may be sent now, otherwise the millis until it should be tried again
+        synchronized long acquire() {
+            long now = System.currentTimeMillis();
+            if(remaining >= 0 && now >= resetAt) {
+                remaining = limit;
+                resetAt = Long.MAX_VALUE;
+                refilledReset = lastReset;
+            }
+            if(remaining == 0) {
+                // empty without a known reset, e.g. the response of the new window was lost: refill after a second instead of waiting for it forever
+                if(resetAt == Long.MAX_VALUE)
+                    resetAt = now + TimeUnit.SECONDS.toMillis(1);
+                return Math.max(1, resetAt - now);
+            }
+            if(remaining > 0)
+                remaining--;
+            return 0;
+        }
+
+        synchronized void update(HttpResponse<?> response) {
+            long reset = response.headers().firstValueAsLong("Ratelimit-Reset").orElse(-1);
+            long left = response.headers().firstValueAsLong("Ratelimit-Remaining").orElse(-1);
+            if(reset < 0 || left < 0)
+                return;
+            reset = TimeUnit.SECONDS.toMillis(reset);
+            // a late response of an older or of the already refilled window says nothing about the current one
+            if(reset < lastReset || reset <= refilledReset)
+                return;
+            if(reset > lastReset) {
+                lastReset = reset;
+                resetAt = reset;
+            }
+            limit = (int) response.headers().firstValueAsLong("Ratelimit-Limit").orElse(limit);
+            // the header does not count the requests that are still in flight, the local count already does. The lower one is closer to the truth
+            remaining = remaining < 0 ? (int) left : (int) Math.min(remaining, left);
+        }
+
+        synchronized void exhausted() {
+            long now = System.currentTimeMillis();
+            remaining = 0;
+            if(resetAt <= now || resetAt == Long.MAX_VALUE)
+                resetAt = now + TimeUnit.SECONDS.toMillis(1);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.function.Function;
+
+/**
+ * A subscription type and version together with the decoder that turns its payload.event into a typed record.
+ * <li>Used as the key of{@code TwitchEventSub.addHandler}. An event is only decoded if a handler for its type and version was added.
+ * <li>Types without a record of their own can be handled as a{@code JsonObject}with{@code SubscriptionType.of(type, version)}.
+ * <li>Twitch docs: https://dev.twitch.tv/docs/eventsub/eventsub-subscription-types/
+ */
+public final class SubscriptionType<T> {
+    public static final SubscriptionType<ChannelFollow> CHANNEL_FOLLOW = new SubscriptionType<>("channel.follow", "2", ChannelFollow::decode);
+    public static final SubscriptionType<ChannelSubscribe> CHANNEL_SUBSCRIBE = new SubscriptionType<>("channel.subscribe", "1", ChannelSubscribe::decode);
+    public static final SubscriptionType<ChannelCheer> CHANNEL_CHEER = new SubscriptionType<>("channel.cheer", "1", ChannelCheer::decode);
+    public static final SubscriptionType<ChannelRaid> CHANNEL_RAID = new SubscriptionType<>("channel.raid", "1", ChannelRaid::decode);
+    public static final SubscriptionType<ChannelPointsRedemption> CHANNEL_POINTS_REDEMPTION_ADD =
+            new SubscriptionType<>("channel.channel_points_custom_reward_redemption.add", "1", ChannelPointsRedemption::decode);
+    public static final SubscriptionType<StreamOnline> STREAM_ONLINE = new SubscriptionType<>("stream.online", "1", StreamOnline::decode);
+    public static final SubscriptionType<StreamOffline> STREAM_OFFLINE = new SubscriptionType<>("stream.offline", "1", StreamOffline::decode);
+
+    private final String type;
+    private final String version;
+    private final Function<JsonObject, T> decoder;
+
+    private SubscriptionType(String type, String version, Function<JsonObject, T> decoder) {
+        this.type = type;
+        this.version = version;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Returns a type whose events are handed over as the undecoded{@code JsonObject}.
+     */
+    public static SubscriptionType<JsonObject> of(String type, String version) {
+        return new SubscriptionType<>(type, version, event -> event);
+    }
+
+    /**
+     * Returns a type whose events are decoded by the given function, e.g. into a record of your own.
+     */
+    public static <T> SubscriptionType<T> of(String type, String version, Function<JsonObject, T> decoder) {
+        return new SubscriptionType<>(type, version, decoder);
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public String version() {
+        return version;
+    }
+
+    T decode(JsonObject event) {
+        return decoder.apply(event);
+    }
+
+    // the key handlers are registered under
+    static String key(String type, String version) {
+        return type + '@' + version;
+    }
+
+    String key() {
+        return key(type, version);
+    }
+
+    @Override
+    public String toString() {
+        return type + " v" + version;
+    }
+
+    public record ChannelFollow(String userId, String userLogin, String userName,
+                                String broadcasterUserId, String broadcasterUserLogin, String broadcasterUserName, String followedAt) {
+        static ChannelFollow decode(JsonObject e) {
+            return new ChannelFollow(e.getString("user_id"), e.getString("user_login"), e.getString("user_name"),
+                    e.getString("broadcaster_user_id"), e.getString("broadcaster_user_login"), e.getString("broadcaster_user_name"), e.getString("followed_at"));
+        }
+    }
+
+    public record ChannelSubscribe(String userId, String userLogin, String userName,
+                                   String broadcasterUserId, String broadcasterUserLogin, String broadcasterUserName, String tier, boolean isGift) {
+        static ChannelSubscribe decode(JsonObject e) {
+            return new ChannelSubscribe(e.getString("user_id"), e.getString("user_login"), e.getString("user_name"),
+                    e.getString("broadcaster_user_id"), e.getString("broadcaster_user_login"), e.getString("broadcaster_user_name"), e.getString("tier"), e.getBoolean("is_gift"));
+        }
+    }
+
+    /**
+     * The user fields are null if{@code isAnonymous}is true.
+     */
+    public record ChannelCheer(boolean isAnonymous, String userId, String userLogin, String userName,
+                               String broadcasterUserId, String broadcasterUserLogin, String broadcasterUserName, String message, int bits) {
+        static ChannelCheer decode(JsonObject e) {
+            return new ChannelCheer(e.getBoolean("is_anonymous"), e.getString("user_id"), e.getString("user_login"), e.getString("user_name"),
+                    e.getString("broadcaster_user_id"), e.getString("broadcaster_user_login"), e.getString("broadcaster_user_name"), e.getString("message"), e.getInt("bits", 0));
+        }
+    }
+
+    public record ChannelRaid(String fromBroadcasterUserId, String fromBroadcasterUserLogin, String fromBroadcasterUserName,
+                              String toBroadcasterUserId, String toBroadcasterUserLogin, String toBroadcasterUserName, int viewers) {
+        static ChannelRaid decode(JsonObject e) {
+            return new ChannelRaid(e.getString("from_broadcaster_user_id"), e.getString("from_broadcaster_user_login"), e.getString("from_broadcaster_user_name"),
+                    e.getString("to_broadcaster_user_id"), e.getString("to_broadcaster_user_login"), e.getString("to_broadcaster_user_name"), e.getInt("viewers", 0));
+        }
+    }
+
+    public record ChannelPointsRedemption(String id, String broadcasterUserId, String broadcasterUserLogin, String broadcasterUserName,
+                                          String userId, String userLogin, String userName, String userInput, String status,
+                                          String rewardId, String rewardTitle, int rewardCost, String redeemedAt) {
+        static ChannelPointsRedemption decode(JsonObject e) {
+            JsonObject reward = e.getObject("reward");
+            return new ChannelPointsRedemption(e.getString("id"), e.getString("broadcaster_user_id"), e.getString("broadcaster_user_login"), e.getString("broadcaster_user_name"),
+                    e.getString("user_id"), e.getString("user_login"), e.getString("user_name"), e.getString("user_input"), e.getString("status"),
+                    reward == null ? null : reward.getString("id"), reward == null ? null : reward.getString("title"), reward == null ? 0 : reward.getInt("cost", 0),
+                    e.getString("redeemed_at"));
+        }
+    }
+
+    public record StreamOnline(String id, String broadcasterUserId, String broadcasterUserLogin, String broadcasterUserName, String type, String startedAt) {
+        static StreamOnline decode(JsonObject e) {
+            return new StreamOnline(e.getString("id"), e.getString("broadcaster_user_id"), e.getString("broadcaster_user_login"), e.getString("broadcaster_user_name"),
+                    e.getString("type"), e.getString("started_at"));
+        }
+    }
+
+    public record StreamOffline(String broadcasterUserId, String broadcasterUserLogin, String broadcasterUserName) {
+        static StreamOffline decode(JsonObject e) {
+            return new StreamOffline(e.getString("broadcaster_user_id"), e.getString("broadcaster_user_login"), e.getString("broadcaster_user_name"));
+        }
+    }
+}
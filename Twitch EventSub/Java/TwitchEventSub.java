@@ -1,29 +1,70 @@
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.net.http.WebSocket;
-import java.net.http.HttpRequest.BodyPublishers;
-import java.net.http.HttpResponse.BodyHandlers;
 import java.net.http.WebSocket.Listener;
 import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class creates a WebSocket connection to the Twitch EventSub WebSocket.
  * <li> Twitch EventSub WebSocket docs: https://dev.twitch.tv/docs/eventsub/handling-websocket-events/
+ * <li>The connection is a small state machine, see{@code State}. Every transition is a compare-and-set, nothing waits in a loop.
+ * <li>A watchdog opens a new session as soon as no message arrived within keepalive_timeout_seconds, the subscriptions that were created are created again on it.
  */
 public abstract class TwitchEventSub {
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
-    private String session_id;
-    private WebSocket webSocket;
-    private final Object connectionClosedLock = new Object();
-    
-    // this variable is only true during the time span where the first websocket received a reconnect message and the new websocket received the welcome message.
-    private boolean reconnectingNewWebsocket = false;
+    // twitch sends a keepalive when nothing else was sent for keepalive_timeout_seconds, this is the slack for the network
+    private static final long KEEPALIVE_GRACE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // the new socket of a session_reconnect holds its notifications until the old socket is closed, at most this long
+    private static final long HANDOFF_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    private static final long MAX_RECONNECT_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ScheduledExecutorService watchdogs = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchEventSub-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final EventSubMetrics metrics = new EventSubMetrics();
+    // the sessions of an EventSubManager share its dispatcher and handlers, only a dispatcher created here is closed here
+    private final NotificationDispatcher dispatcher;
+    private final boolean ownsDispatcher;
+    private final HandlerRegistry handlers;
+    private final SubscriptionClient subscriptionClient;
+    // shared by the old and the new websocket during a reconnect, that is when twitch sends notifications twice
+    private final MessageDeduplicator deduplicator = new MessageDeduplicator();
+    private final NotificationRouter router;
+    // notifications are appended to it before they are dispatched, null if no journal was set
+    private volatile NotificationJournal.Consumer journal;
+    private volatile String session_id;
+    private final URI uri;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CONNECTING);
+    // the socket and listener of the current session, a listener that is not current anymore only finishes what it received
+    private volatile WebSocket webSocket;
+    private volatile EventSubListener currentListener;
+    // every socket that is open, including the new one of a handoff, so close() reaches all of them
+    private final Set<WebSocket> openSockets = ConcurrentHashMap.newKeySet();
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    private final AtomicBoolean isWatchdogStarted = new AtomicBoolean();
+    private volatile int keepaliveTimeoutSeconds = 10;
+    // the failed attempts of the reconnect in progress and the time by which its session has to be welcomed
+    private volatile int reconnectAttempt;
+    private volatile long reconnectDeadline;
+    // the subscriptions that were created, guarded by itself
+    private final Map<SubscriptionClient.Request, Credentials> subscriptions = new LinkedHashMap<>();
 
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_RED_BOLD = "\033[1;31m";
@@ -32,28 +73,54 @@ public abstract class TwitchEventSub {
     public static final String ANSI_WHITE_UNDERLINED = "\033[4;37m";
 
     public TwitchEventSub() {
-        URI uri = URI.create("wss://eventsub.wss.twitch.tv/ws");
-        this.webSocket = HttpClient.newHttpClient().newWebSocketBuilder().buildAsync(uri, new EventSubListener(false)).join();
+        this(URI.create("wss://eventsub.wss.twitch.tv/ws"), null, null, SubscriptionClient.SHARED);
     }
 
     public TwitchEventSub(int keepalive_seconds) {
+        this(websocketUri(keepalive_seconds), null, null, SubscriptionClient.SHARED);
+    }
+
+    // a null dispatcher or registry is created for this instance
+    TwitchEventSub(URI uri, NotificationDispatcher dispatcher, HandlerRegistry handlers, SubscriptionClient subscriptionClient) {
+        this.subscriptionClient = subscriptionClient;
+        this.ownsDispatcher = dispatcher == null;
+        this.dispatcher = dispatcher == null ? new NotificationDispatcher(metrics) : dispatcher;
+        this.handlers = handlers == null ? new HandlerRegistry() : handlers;
+        this.router = new NotificationRouter(this.handlers, this.dispatcher, deduplicator, this::onNotificationMessage);
+        this.uri = uri;
+        EventSubListener listener = new EventSubListener(null, false);
+        currentListener = listener;
+        this.webSocket = SubscriptionClient.HTTP_CLIENT.newWebSocketBuilder().buildAsync(uri, listener).join();
+        metrics.register();
+    }
+
+    static URI websocketUri(int keepalive_seconds) {
         keepalive_seconds = keepalive_seconds < 10 ? 10 : keepalive_seconds > 600 ? 600 : keepalive_seconds;
-        URI uri = URI.create("wss://eventsub.wss.twitch.tv/ws?keepalive_timeout_seconds=" + keepalive_seconds);
-        this.webSocket = HttpClient.newHttpClient().newWebSocketBuilder().buildAsync(uri, new EventSubListener(false)).join();
+        return URI.create("wss://eventsub.wss.twitch.tv/ws?keepalive_timeout_seconds=" + keepalive_seconds);
     }
 
+    /**
+     * Closes every socket of this instance, also the new one of a reconnect that is in progress. Calling it again does nothing.
+     */
     public void close() {
-        while (reconnectingNewWebsocket) {
-            try { Thread.sleep(1); } catch (InterruptedException e) { e.printStackTrace(); }
-        }
+        if(state.getAndSet(State.CLOSED) == State.CLOSED)
+            return;
 
-        if(!webSocket.isOutputClosed())
-            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").join();
+        for (WebSocket socket : openSockets)
+            closeSocket(socket);
 
-        executorService.shutdownNow();
-        
-        synchronized(connectionClosedLock) {
-            connectionClosedLock.notify();
+        if(ownsDispatcher)
+            dispatcher.close();
+        metrics.unregister();
+        closed.complete(null);
+    }
+
+    private static void closeSocket(WebSocket socket) {
+        try {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "").get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // a half-open connection does not answer, it is dropped
+            socket.abort();
         }
     }
 
@@ -62,13 +129,11 @@ public abstract class TwitchEventSub {
      * <li>It will not return when reconnecting the WebSocket and the old connection was closed.
      */
     public void join() {
-        synchronized(connectionClosedLock) {
-            try {
-                connectionClosedLock.wait();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        closed.join();
+    }
+
+    public final State getState() {
+        return state.get();
     }
 
     /**
@@ -79,9 +144,67 @@ public abstract class TwitchEventSub {
      * Condition condition = newCondition().add("broadcaster_user_id", "0123456");
      * subribe("channel.channel_points_custom_reward_redemption.add", "1", condition, "2gbdx6oar67tqtcmt49t3wpcgycthx", "wbmytr93xzw8zbg0p1izqyzzc5mbiz");
      * }</pre>
+     * <li>Blocks until the subscription was created or failed. Use{@code subscribeAll}for many subscriptions.
      */
     public void subscribe(String event, String version, Condition condition, String acces_token, String client_id) {
-        String pay = String.format("""
+        subscribeAsync(event, version, condition, acces_token, client_id).join();
+    }
+
+    /**
+     * Creates the subscription without blocking. The future completes after all retries and never completes exceptionally, the outcome is also reported to{@code event}.
+     */
+    public CompletableFuture<SubscriptionClient.Result> subscribeAsync(String event, String version, Condition condition, String acces_token, String client_id) {
+        SubscriptionClient.Request request = newSubscription(event, version, condition);
+        return subscriptionClient.subscribe(request, subscriptionBody(request), acces_token, client_id, metrics).thenApply(result -> reportSubscription(result, acces_token, client_id));
+    }
+
+    /**
+     * Creates all subscriptions for this session at once. They are sent concurrently over one HTTP/2 connection and as fast as the rate limit of the client id allows,
+     * 429 and 5xx responses are retried. See{@code SubscriptionClient}.
+     * <li><b>Example:</b>
+     * <pre> {@code
+     * List<SubscriptionClient.Request> requests = new ArrayList<>();
+     * for (String broadcaster : broadcasters)
+     *     requests.add(newSubscription("channel.follow", "2", newCondition().add("broadcaster_user_id", broadcaster).add("moderator_user_id", broadcaster)));
+     * subscribeAll(requests, access_token, client_id).thenAccept(report -> System.out.println(report));
+     * }</pre>
+     */
+    public CompletableFuture<SubscriptionClient.Report> subscribeAll(List<SubscriptionClient.Request> requests, String acces_token, String client_id) {
+        List<String> bodies = new ArrayList<>(requests.size());
+        for (SubscriptionClient.Request request : requests)
+            bodies.add(subscriptionBody(request));
+        return subscriptionClient.subscribeAll(requests, bodies, acces_token, client_id, metrics).thenApply(report -> {
+            for (SubscriptionClient.Result result : report.results())
+                reportSubscription(result, acces_token, client_id);
+            return report;
+        });
+    }
+
+    /**
+     * Replaces the token of the subscriptions that were created with{@code oldToken}, e.g. after it was refreshed. It is used when they are created again on a new session.
+     */
+    public final void replaceAccessToken(String oldToken, String newToken) {
+        synchronized(subscriptions) {
+            for (Map.Entry<SubscriptionClient.Request, Credentials> subscription : subscriptions.entrySet()) {
+                if(subscription.getValue().accessToken().equals(oldToken))
+                    subscription.setValue(new Credentials(newToken, subscription.getValue().clientId()));
+            }
+        }
+    }
+
+    /**
+     * Returns the client that sends the subscriptions of all instances, e.g. to change how many requests are sent at once.
+     */
+    public static SubscriptionClient getSubscriptionClient() {
+        return SubscriptionClient.SHARED;
+    }
+
+    public static SubscriptionClient.Request newSubscription(String event, String version, Condition condition) {
+        return new SubscriptionClient.Request(event, version, condition.toString());
+    }
+
+    private String subscriptionBody(SubscriptionClient.Request request) {
+        return String.format("""
                                     {
                                         "type": "%s",
                                         "version": "%s",
@@ -93,30 +216,84 @@ public abstract class TwitchEventSub {
                                             "session_id": "%s"
                                         }
                                     }
-                                   """, event, version, condition.toString(), session_id);
+                                   """, request.type(), request.version(), request.condition(), session_id);
+    }
 
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.twitch.tv/helix/eventsub/subscriptions"))
-                .POST(BodyPublishers.ofString(pay))
-                .header("Authorization", "Bearer " + acces_token)
-                .header("Client-Id", client_id)
-                .header("Content-Type", "application/json")
-                .build();
+    private SubscriptionClient.Result reportSubscription(SubscriptionClient.Result result, String acces_token, String client_id) {
+        // remembered for a new session after a missed keepalive, a 409 means it exists already
+        if(result.isSuccess() || result.isAlreadySubscribed()) {
+            synchronized(subscriptions) {
+                subscriptions.put(result.request(), new Credentials(acces_token, client_id));
+            }
+        }
+        if (result.isSuccess())
+            event(Event.TWITCH_SUBSCRIPTION_SUCCESS, String.format("%s[OK %d]%s Subscription was send successfully %s", ANSI_GREEN_BOLD, result.statusCode(), ANSI_RESET, result.request().type()), null);
+        else
+            event(Event.TWITCH_SUBSCRIPTION_FAIL, String.format("%s[ERROR %d]%s Subscription failed %s. Server response: %s", ANSI_RED_BOLD, result.statusCode(), ANSI_RESET, result.request().type(), result.body()), null);
+        return result;
+    }
 
-        HttpClient client = HttpClient.newHttpClient();
-        try {
-            HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
+    /**
+     * Adds a handler for the notifications of a subscription type and version. Their payload.event is decoded into the record of the type before the handler is called.
+     * <li>Events of types without a handler are never decoded.
+     * <li>Handlers run like{@code onNotificationMessage}: in order for one subscription type and broadcaster, in parallel for different ones. See{@code getDispatcher()}.
+     * <li><b>Example:</b>{@code addHandler(SubscriptionType.CHANNEL_FOLLOW, follow -> System.out.println(follow.userName() + " followed"));}
+     */
+    public final <T> void addHandler(SubscriptionType<T> type, NotificationHandler<? super T> handler) {
+        handlers.add(type, handler);
+    }
 
-            if (response.statusCode() >= 200 && response.statusCode() < 300) {
-                event(Event.TWITCH_SUBSCRIPTION_SUCCESS, String.format("%s[OK %d]%s Subscription was send successfully %s", ANSI_GREEN_BOLD, response.statusCode(), ANSI_RESET, event), null);
-            } else {
-                event(Event.TWITCH_SUBSCRIPTION_FAIL, String.format("%s[ERROR %d]%s Subscription failed %s. Server response: %s", ANSI_RED_BOLD, response.statusCode(), ANSI_RESET, event, response.body()), null);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    public final void removeHandler(SubscriptionType<?> type, NotificationHandler<?> handler) {
+        handlers.remove(type, handler);
+    }
+
+    /**
+     * Returns the dispatcher that runs{@code onNotificationMessage}and the handlers, e.g. to change its executor, queue capacity or overflow policy.
+     */
+    public final NotificationDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * Appends every notification to the journal before it is dispatched, and commits it to the consumer once{@code onNotificationMessage}and the handlers returned.
+     * <li>The notifications the consumer did not commit before, e.g. because the process died, are replayed first: on the calling thread into the dispatcher, in the order they were received.
+     * <li>With{@code FsyncPolicy.EVERY_APPEND}the WebSocket is only read on once the notification is on disk.
+     * <li>A notification that the{@code OverflowPolicy}drops is committed as well, only{@code BLOCK}keeps every notification.
+     * <li>Returns the number of replayed notifications.
+     */
+    public final long setJournal(NotificationJournal journal, String consumerName) throws IOException {
+        NotificationJournal.Consumer consumer = journal.consumer(consumerName);
+        long replayed = router.replay(consumer);
+        this.journal = consumer;
+        return replayed;
+    }
+
+    // returns -1 if there is no journal or it could not be written, the notification is dispatched anyway
+    private long journal(NotificationJournal.Consumer consumer, String message) {
+        if(consumer == null)
+            return -1;
+        try {
+            return consumer.getJournal().append(message);
+        } catch (IOException e) {
+            event(Event.WEBSOCKET_ERROR, String.format("%s[ERROR]%s Could not write the notification to the journal", ANSI_RED_BOLD, ANSI_RESET), e);
+            return -1;
         }
     }
 
+    /**
+     * Returns the id of the current session, or null before the welcome message was received.
+     */
+    public final String getSessionId() {
+        return session_id;
+    }
+
+    /**
+     * Returns the counters and latency histograms of this instance. They are also registered as a JMX MBean, see{@code EventSubMetrics}.
+     */
+    public final EventSubMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Returns an empty Condition. Use{@code add(String, String)}to append data to it.
      * <li><b>Example:</b>{@code Condition c = newCondition().add("broadcaster_user_id", "123456");}
@@ -134,7 +311,10 @@ public abstract class TwitchEventSub {
 
     /**
      * This method will be called with the full response from the server upon receiving a notification from a subscription.
-     * <li>To prevent the websocket from waiting on long operations, a single thread executor is used to call this method.
+     * <li>Notifications whose message_id was already received and notifications older than 10 minutes are dropped before, see{@code getMetrics().getDuplicateNotifications()}.
+     * <li>To prevent the websocket from waiting on long operations, this method is called by the{@code NotificationDispatcher}: in order for notifications
+     *     of the same subscription type and broadcaster, in parallel for different ones.
+     * <li>Handlers added with{@code addHandler}are called right after this method, by the same thread.
      */
     public abstract void onNotificationMessage(String message);
 
@@ -149,6 +329,101 @@ public abstract class TwitchEventSub {
             error.printStackTrace();
     }
 
+    public enum State {
+        /** Waiting for the welcome message of the first session. */
+        CONNECTING,
+        CONNECTED,
+        /** A session_reconnect is handed over to the new socket, or a new session is opened after a missed keepalive. */
+        RECONNECTING,
+        CLOSED
+    }
+
+    private record Credentials(String accessToken, String clientId) {}
+
+    // the deadline moves with every message, so the check runs about once per keepalive_timeout_seconds
+    private void scheduleWatchdog(long delayNanos) {
+        try {
+            watchdogs.schedule(this::checkKeepalive, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void checkKeepalive() {
+        State current = state.get();
+        if(current == State.CLOSED)
+            return;
+        long now = System.nanoTime();
+        if(current != State.CONNECTED) {
+            // a reconnect is in progress. If its socket hangs without a welcome and without closing, nothing else would try again
+            long deadline = reconnectDeadline;
+            if(current == State.RECONNECTING && now - deadline >= 0)
+                retryReopen(currentListener, "No welcome message from the new session", null);
+            scheduleWatchdog(TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS);
+            return;
+        }
+        long deadline = metrics.lastMessageAt + TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS;
+        if(now - deadline < 0) {
+            scheduleWatchdog(deadline - now);
+            return;
+        }
+        reopen(String.format("No message within %d seconds", keepaliveTimeoutSeconds), 0);
+        scheduleWatchdog(TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS);
+    }
+
+    // opens a new session on the original url, the old sockets are dropped. Its subscriptions are created again once the new session is welcomed.
+    // Only the latest attempt retries, an attempt whose listener is not current anymore was replaced by another one
+    private void reopen(String reason, int failedAttempts) {
+        if(state.get() == State.CLOSED || (failedAttempts == 0 && !state.compareAndSet(State.CONNECTED, State.RECONNECTING)))
+            return;
+        if(failedAttempts == 0) {
+            metrics.reconnects.increment();
+            event(Event.TWITCH_WEBSOCKET_RECONNECTING, String.format("%s[NOTICE]%s %s. Opening a new session...", ANSI_BLUE_BOLD, ANSI_RESET, reason), null);
+        }
+
+        EventSubListener listener = new EventSubListener(null, true);
+        // the old listeners are not current anymore, their close does not close this instance
+        currentListener = listener;
+        reconnectAttempt = failedAttempts;
+        reconnectDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS;
+        // also the socket of an attempt that was replaced, e.g. one that never sent its welcome
+        for (WebSocket socket : openSockets)
+            socket.abort();
+        SubscriptionClient.HTTP_CLIENT.newWebSocketBuilder().buildAsync(uri, listener).whenComplete((socket, error) -> {
+            if(error != null)
+                retryReopen(listener, reason, error);
+        });
+    }
+
+    // the attempt of the listener failed, the next one is opened with backoff unless a newer attempt replaced it
+    private void retryReopen(EventSubListener listener, String reason, Throwable error) {
+        if(currentListener != listener || state.get() != State.RECONNECTING)
+            return;
+        int failedAttempts = reconnectAttempt;
+        long delay = Math.min(MAX_RECONNECT_DELAY_MILLIS, 1000L << Math.min(failedAttempts, 16));
+        // the watchdog waits for the backoff as well
+        reconnectDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) + TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS;
+        event(Event.WEBSOCKET_ERROR, String.format("%s[ERROR]%s Could not open a new session, trying again in %d ms", ANSI_RED_BOLD, ANSI_RESET, delay), error);
+        try {
+            watchdogs.schedule(() -> {
+                if(currentListener == listener)
+                    reopen(reason, failedAttempts + 1);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void resubscribe() {
+        Map<Credentials, List<SubscriptionClient.Request>> byCredentials = new LinkedHashMap<>();
+        synchronized(subscriptions) {
+            for (Map.Entry<SubscriptionClient.Request, Credentials> subscription : subscriptions.entrySet())
+                byCredentials.computeIfAbsent(subscription.getValue(), key -> new ArrayList<>()).add(subscription.getKey());
+        }
+        for (Map.Entry<Credentials, List<SubscriptionClient.Request>> batch : byCredentials.entrySet())
+            subscribeAll(batch.getValue(), batch.getKey().accessToken(), batch.getKey().clientId());
+    }
+
     enum Event {
         WEBSOCKET_OPEN,
         WEBSOCKET_CLOSED,
@@ -159,7 +434,18 @@ public abstract class TwitchEventSub {
         TWITCH_WEBSOCKET_RECONNECTING, // 
         TWITCH_WEBSOCKET_RECONNECTED,  // 
         TWITCH_WEBSOCKET_KEEPALIVE,    // 
-        TWITCH_WEBSOCKET_REVOCATION    //-------------------------------------------------
+        TWITCH_WEBSOCKET_REVOCATION,   //-------------------------------------------------
+
+        WEBHOOK_CALLBACK_VERIFIED,     // only sent by EventSubWebhook
+        WEBHOOK_REQUEST_REJECTED       //
+    }
+
+    /**
+     * Handles the decoded events of one{@code SubscriptionType}, see{@code addHandler}.
+     */
+    @FunctionalInterface
+    public interface NotificationHandler<T> {
+        void onNotification(T event);
     }
 
     static class Condition {
@@ -182,69 +468,194 @@ public abstract class TwitchEventSub {
     }
 
     class EventSubListener implements WebSocket.Listener {
-        private boolean isReconnected;
+        // a large message can arrive in several fragments, they are collected here until the one marked as last
+        private static final int MAX_KEPT_BUFFER_SIZE = 1 << 20;
+        private final StringBuilder fragments = new StringBuilder();
+        private final EventSubFrame frame = new EventSubFrame();
+        // the listener of the old socket for a session_reconnect, otherwise null
+        private final EventSubListener previous;
+        // true for a new session after a missed keepalive, its subscriptions have to be created again
+        private final boolean isReopened;
+        // completes when the socket of this listener is closed
+        final CompletableFuture<Void> socketClosed = new CompletableFuture<>();
+        // the notifications of the new socket wait here until the old socket is closed, so the old ones are dispatched first
+        private final List<Runnable> held = new ArrayList<>();
+        private boolean isHolding;
+
+        EventSubListener(EventSubListener previous, boolean isReopened) {
+            this.previous = previous;
+            this.isReopened = isReopened;
+        }
+
+        private boolean isCurrent() {
+            return currentListener == this;
+        }
+
+        private void deliver(Runnable dispatch) {
+            synchronized(held) {
+                if(isHolding) {
+                    held.add(dispatch);
+                    return;
+                }
+            }
+            dispatch.run();
+        }
+
+        // true for the socket of the reconnect in progress, before its welcome: a reopened one is current already, the target of a session_reconnect once its old socket is
+        private boolean isFailedAttempt() {
+            return state.get() == State.RECONNECTING && ((isReopened && isCurrent()) || (previous != null && previous.isCurrent()));
+        }
 
-        public EventSubListener(boolean reconnected) {
-            this.isReconnected = reconnected;
+        private void failAttempt(Throwable error) {
+            if(isReopened)
+                retryReopen(this, "The new session was closed", error);
+            else
+                reopen("The socket of the reconnect url was closed", 1);
+        }
+
+        private void release() {
+            synchronized(held) {
+                for (Runnable dispatch : held)
+                    dispatch.run();
+                held.clear();
+                isHolding = false;
+            }
         }
 
         @Override
         public void onOpen(WebSocket webSocket) {
+            openSockets.add(webSocket);
+            if(state.get() == State.CLOSED) {
+                // close() was called while this socket was opened
+                webSocket.abort();
+                return;
+            }
             event(Event.WEBSOCKET_OPEN, String.format("%s[OK]%s WebSocket is open", ANSI_GREEN_BOLD, ANSI_RESET), null);
             Listener.super.onOpen(webSocket);
         }
         
         @Override
         public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
-            String stringData = data.toString();
-            String message_type = getMessageType(stringData);
-            
-            switch (message_type) {
-                case "session_welcome":
-                    session_id = getSessionId(stringData);
-                    if(!isReconnected) {
-                        onWelcomeMessage();
-                    } else {
-                        TwitchEventSub.this.webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+            if(!last) {
+                fragments.append(data);
+                return Listener.super.onText(webSocket, data, last);
+            }
+
+            long received = System.nanoTime();
+            metrics.messageReceived(received);
+            String stringData;
+            if(fragments.length() == 0) {
+                stringData = data.toString();
+            } else {
+                stringData = fragments.append(data).toString();
+                fragments.setLength(0);
+                // a single huge message should not keep its buffer forever
+                if(fragments.capacity() > MAX_KEPT_BUFFER_SIZE)
+                    fragments.trimToSize();
+            }
+
+            if(!frame.parse(stringData) || frame.messageType() == null) {
+                event(Event.WEBSOCKET_ERROR, String.format("%s[ERROR]%s Could not read message: %s", ANSI_RED_BOLD, ANSI_RESET, stringData), null);
+                return Listener.super.onText(webSocket, data, last);
+            }
+
+            switch (frame.messageType()) {
+                case EventSubFrame.SESSION_WELCOME:
+                    // a socket of a reconnect attempt that was replaced by a newer one, its session has no subscriptions
+                    if((isReopened && !isCurrent()) || (previous != null && !previous.isCurrent())) {
+                        openSockets.remove(webSocket);
+                        webSocket.abort();
+                        break;
+                    }
+                    if(frame.keepaliveTimeoutSeconds() > 0)
+                        keepaliveTimeoutSeconds = frame.keepaliveTimeoutSeconds();
+                    session_id = frame.sessionId();
+                    if(previous != null) {
+                        // the subscriptions moved to this socket. Its notifications wait until the old socket delivered everything it had
+                        isHolding = true;
+                        previous.socketClosed.completeOnTimeout(null, HANDOFF_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).thenRun(this::release);
+                        WebSocket old = TwitchEventSub.this.webSocket;
                         TwitchEventSub.this.webSocket = webSocket;
-                        reconnectingNewWebsocket = false;
+                        currentListener = this;
+                        old.sendClose(WebSocket.NORMAL_CLOSURE, "");
+                    } else if(isReopened) {
+                        TwitchEventSub.this.webSocket = webSocket;
+                    }
+
+                    if(state.compareAndSet(State.CONNECTING, State.CONNECTED)) {
+                        if(isWatchdogStarted.compareAndSet(false, true))
+                            scheduleWatchdog(TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS);
+                        onWelcomeMessage();
+                    } else if(state.compareAndSet(State.RECONNECTING, State.CONNECTED)) {
                         event(Event.TWITCH_WEBSOCKET_RECONNECTED, String.format("%s[OK]%s WebSocket reconnected successfully", ANSI_GREEN_BOLD, ANSI_RESET), null);
+                        if(isReopened)
+                            resubscribe();
                     }
                 break;
                     
-                case "session_keepalive":
-                    event(Event.TWITCH_WEBSOCKET_KEEPALIVE, ANSI_GREEN_BOLD + "[OK]" + ANSI_RESET + " Connected " + getMessageTimestamp(stringData).replace("T", " ").substring(0, 19), null);
+                case EventSubFrame.SESSION_KEEPALIVE:
+                    metrics.keepalives.increment();
+                    event(Event.TWITCH_WEBSOCKET_KEEPALIVE, ANSI_GREEN_BOLD + "[OK]" + ANSI_RESET + " Connected " + frame.messageTimestamp().replace("T", " ").substring(0, 19), null);
                 break;
                     
-                case "notification":
-                    executorService.submit(() -> {
-                        onNotificationMessage(stringData);
-                    });
+                case EventSubFrame.NOTIFICATION:
+                    MessageDeduplicator.Verdict verdict = deduplicator.check(frame.messageIdHash(), frame.messageTimestampMillis(), System.currentTimeMillis());
+                    if(verdict != MessageDeduplicator.Verdict.NEW) {
+                        (verdict == MessageDeduplicator.Verdict.DUPLICATE ? metrics.duplicateNotifications : metrics.expiredNotifications).increment();
+                        break;
+                    }
+                    metrics.notifications.increment();
+                    NotificationJournal.Consumer consumer = journal;
+                    deliver(router.dispatch(frame, stringData, received, consumer, journal(consumer, stringData)));
                 break;
                     
-                case "session_reconnect":
-                    reconnectingNewWebsocket = true;
+                case EventSubFrame.SESSION_RECONNECT:
+                    if(!isCurrent() || !state.compareAndSet(State.CONNECTED, State.RECONNECTING))
+                        break;
+                    metrics.reconnects.increment();
+                    reconnectAttempt = 0;
+                    reconnectDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(keepaliveTimeoutSeconds) + KEEPALIVE_GRACE_NANOS;
                     event(Event.TWITCH_WEBSOCKET_RECONNECTING, String.format("%s[NOTICE]%s Reconnect message received. Reconnecting Websocket...", ANSI_BLUE_BOLD, ANSI_RESET), null);
-                    URI reconnect_url = null;
+                    URI reconnect_url;
                     try {
-                        reconnect_url = new URI(getReconnectURL(stringData).replaceAll("\\\\u0026", "&"));
-                    } catch (URISyntaxException e) {
+                        reconnect_url = new URI(frame.reconnectUrl());
+                    } catch (URISyntaxException | NullPointerException e) {
                         e.printStackTrace();
+                        reopen("The reconnect url is invalid", 1);
+                        break;
                     }
-                    
-                    HttpClient.newHttpClient().newWebSocketBuilder().buildAsync(reconnect_url, new EventSubListener(true));
+
+                    SubscriptionClient.HTTP_CLIENT.newWebSocketBuilder().buildAsync(reconnect_url, new EventSubListener(this, false)).whenComplete((socket, error) -> {
+                        // the subscriptions are lost with the old session, a new one is opened and they are created again
+                        if(error != null)
+                            reopen("Could not connect to the reconnect url", 1);
+                    });
                 break;
                     
-                case "revocation":
+                case EventSubFrame.REVOCATION:
+                    metrics.revocations.increment();
                     event(Event.TWITCH_WEBSOCKET_REVOCATION, String.format("%s[ERROR]%s Revocation Server Response: %s", ANSI_RED_BOLD, ANSI_RESET, stringData), null);
                     close();
                 break;
             }
+            metrics.frameNanos.record(System.nanoTime() - received);
             return Listener.super.onText(webSocket, data, last);
         }
 
         @Override
         public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            openSockets.remove(webSocket);
+            socketClosed.complete(null);
+            if(isFailedAttempt()) {
+                event(Event.WEBSOCKET_CLOSED, String.format("%s[NOTICE]%s %s New WebSocket is closed before the welcome with statusCode: %d reason: %s", ANSI_BLUE_BOLD, ANSI_RESET, LocalTime.now().toString(), statusCode, reason), null);
+                failAttempt(null);
+                return null;
+            }
+            // the old socket of a reconnect, or a socket that was replaced after a missed keepalive
+            if(!isCurrent() || state.get() == State.RECONNECTING) {
+                event(Event.WEBSOCKET_CLOSED, String.format("%s[NOTICE]%s %s Previous WebSocket is closed with statusCode: %d reason: %s", ANSI_BLUE_BOLD, ANSI_RESET, LocalTime.now().toString(), statusCode, reason), null);
+                return null;
+            }
             if(statusCode != WebSocket.NORMAL_CLOSURE) {
                 event(Event.WEBSOCKET_CLOSED, String.format("%s[CONNECTION ERROR]%s %s WebSocket is closed with statusCode: %d Reason: %s", ANSI_RED_BOLD, ANSI_RESET, LocalTime.now().toString(), statusCode, reason), null);
                 close();
@@ -257,36 +668,16 @@ public abstract class TwitchEventSub {
         
         @Override
         public void onError(WebSocket webSocket, Throwable error) {
+            openSockets.remove(webSocket);
+            socketClosed.complete(null);
+            if(isFailedAttempt()) {
+                failAttempt(error);
+                return;
+            }
+            if(!isCurrent() || state.get() == State.RECONNECTING || state.get() == State.CLOSED)
+                return;
             event(Event.WEBSOCKET_ERROR, String.format("%s[WEBSOCKET ERROR]%s %s Error occured : %s", ANSI_RED_BOLD, ANSI_RESET, LocalTime.now().toString(), error.getMessage()), error);
             close();
-            synchronized(connectionClosedLock) {
-                connectionClosedLock.notify();
-            }
-        }
-
-        
-        private String getMessageType(String data) {
-            return getJsonValue(data, "\"message_type\":");
-        }
-        
-        private String getSessionId(String data) {
-            return getJsonValue(data, "\"id\":");
-        }
-
-        private String getReconnectURL(String data) {
-            return getJsonValue(data, "\"reconnect_url\":");
-        }
-        
-        private String getMessageTimestamp(String data) {
-            return getJsonValue(data, "\"message_timestamp\":");
-        }
-
-        // only works if both key and value are strings
-        private String getJsonValue(String data, String key) {
-            int index = data.indexOf(key);
-            int startindex = data.indexOf("\"", index + key.length());
-            int endindex = data.indexOf("\"", startindex+1);
-            return data.substring(startindex+1, endindex);
         }
     }
 }
@@ -0,0 +1,234 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the callbacks of a{@code TwitchIRC}instance away from the thread that reads from the socket.
+ * <li>Every channel has its own serial lane: callbacks of one channel run one after another in the order the lines arrived, different channels run in parallel.
+ * <li>Each lane has a bounded queue. What happens when it is full is decided by the{@code OverflowPolicy}.
+ * <li>Lifecycle callbacks ({@code onSuccessfulAuthorisation},{@code onSuccessfulJoin}) are exempt from the policy: they are never dropped and never wait, even in a full lane.
+ * <li>The executor can be replaced, e.g. with{@code Executors.newVirtualThreadPerTaskExecutor()}on Java 21 and newer.
+ */
+public final class ChannelDispatcher {
+    public enum OverflowPolicy {
+        /** The reading thread waits until the lane has room again. This also delays PING replies of the connection. */
+        BLOCK,
+        /** The oldest queued callback of the lane is dropped, lifecycle callbacks are skipped. */
+        DROP_OLDEST,
+        /** The new callback is dropped. */
+        DROP_NEWEST
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    // lane for callbacks that do not belong to a channel, e.g. recivedMessage and onSuccessfulAuthorisation
+    static final String GLOBAL_LANE = "";
+
+    // a lane gives its thread back to the executor after this many callbacks, so busy channels can not starve quiet ones
+    private static final int MAX_CALLBACKS_PER_RUN = 64;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private final IRCMetrics metrics;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final ExecutorService ownExecutor;
+    private volatile Executor executor;
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    private record Queued(Runnable callback, long queuedAt, boolean isLifecycle) {}
+
+    ChannelDispatcher(IRCMetrics metrics) {
+        this.metrics = metrics;
+        AtomicInteger threadNumber = new AtomicInteger();
+        ownExecutor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "TwitchIRC-callback-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor = ownExecutor;
+    }
+
+    /**
+     * Replaces the executor that runs the lanes. Lanes that are currently running finish on the old executor.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        if(queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity has to be at least 1");
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Returns the number of callbacks waiting in all lanes.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * Returns the number of callbacks waiting in the lane of the channel.
+     */
+    public int getQueueDepth(String channel) {
+        Lane lane = lanes.get(channel);
+        if(lane == null)
+            return 0;
+        synchronized(lane) {
+            return lane.queue.size();
+        }
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of callbacks that threw an exception.
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Queues the callback in the lane of the channel. Returns false if it was dropped.
+     */
+    boolean dispatch(String channel, Runnable callback) {
+        return lanes.computeIfAbsent(channel, key -> new Lane()).offer(new Queued(callback, System.nanoTime(), false));
+    }
+
+    /**
+     * Queues a lifecycle callback in the lane of the channel. It keeps its order in the lane, but is not subject to the{@code OverflowPolicy}.
+     */
+    void dispatchLifecycle(String channel, Runnable callback) {
+        lanes.computeIfAbsent(channel, key -> new Lane()).offer(new Queued(callback, System.nanoTime(), true));
+    }
+
+    /**
+     * Removes the lane of a channel that was left, if nothing is queued in it anymore.
+     */
+    void removeLane(String channel) {
+        lanes.computeIfPresent(channel, (key, lane) -> {
+            synchronized(lane) {
+                return lane.queue.isEmpty() && !lane.isScheduled ? null : lane;
+            }
+        });
+    }
+
+    void close() {
+        ownExecutor.shutdownNow();
+    }
+
+    private final class Lane implements Runnable {
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+        private boolean isScheduled;
+
+        synchronized boolean offer(Queued callback) {
+            // a lifecycle callback may go past the capacity, there are only a few of them
+            while (!callback.isLifecycle() && queue.size() >= queueCapacity) {
+                switch (overflowPolicy) {
+                    case DROP_NEWEST:
+                        dropped.increment();
+                        return false;
+                    case DROP_OLDEST:
+                        dropped.increment();
+                        if(!removeOldest())
+                            return false; // only lifecycle callbacks are queued
+                        break;
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped.increment();
+                            return false;
+                        }
+                        break;
+                }
+            }
+
+            queue.add(callback);
+            queueDepth.incrementAndGet();
+            if(!isScheduled) {
+                isScheduled = true;
+                schedule();
+            }
+            return true;
+        }
+
+        // removes the oldest callback that is not a lifecycle callback, usually the head of the queue
+        private boolean removeOldest() {
+            for (Iterator<Queued> iterator = queue.iterator(); iterator.hasNext();) {
+                if(!iterator.next().isLifecycle()) {
+                    iterator.remove();
+                    queueDepth.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // the dispatcher was closed, nothing will run anymore
+                dropped.add(queue.size());
+                queueDepth.addAndGet(-queue.size());
+                queue.clear();
+                isScheduled = false;
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_CALLBACKS_PER_RUN; i++) {
+                Queued callback;
+                synchronized(this) {
+                    callback = queue.poll();
+                    if(callback == null) {
+                        isScheduled = false;
+                        return;
+                    }
+                    queueDepth.decrementAndGet();
+                    notifyAll();
+                }
+
+                metrics.dispatchNanos.record(System.nanoTime() - callback.queuedAt());
+                try {
+                    callback.callback().run();
+                } catch (Throwable t) {
+                    failed.increment();
+                    t.printStackTrace();
+                }
+                dispatched.increment();
+            }
+
+            synchronized(this) {
+                if(queue.isEmpty())
+                    isScheduled = false;
+                else
+                    schedule();
+            }
+        }
+    }
+}
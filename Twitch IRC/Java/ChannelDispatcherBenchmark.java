@@ -0,0 +1,92 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures how fast{@code ChannelDispatcher}hands callbacks from the reading thread to the lanes, with 1, 16 and 256 channels.
+ * <li>The burst run dispatches from one thread as fast as it can and reports callbacks per second until the last callback ran.
+ * <li>The paced run dispatches at a fixed rate and reports the latency from the dispatch until the callback starts, which is what a chat message waits before{@code onChatMessage}.
+ * <li>A single thread executor without lanes, i.e. one global order, is measured the same way as a baseline.
+ * <li>The end-to-end numbers with the socket, the parser and the outbound queue are in{@code IRCLoadScenario}of the simulator folder.
+ * <li>Run with:{@code java ChannelDispatcherBenchmark [callbacks] [rounds] [callbacks per second]}
+ */
+public class ChannelDispatcherBenchmark {
+    private interface Target {
+        void dispatch(String channel, Runnable callback);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int callbackCount = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        System.out.printf("%-16s %8s %14s %10s %10s %10s %10s%n", "target", "channels", "callbacks/s", "p50", "p99", "max", "dropped");
+
+        // the first round warms up every path and is not printed
+        for (int round = 0; round <= rounds; round++) {
+            boolean isPrinted = round > 0;
+            for (int channelCount : new int[] { 1, 16, 256 }) {
+                String[] channels = channels(channelCount);
+                run("lanes burst", channels, callbackCount, 0, isPrinted);
+                run("lanes paced", channels, rate, rate, isPrinted);
+            }
+            runExecutor("executor burst", callbackCount, 0, isPrinted);
+            runExecutor("executor paced", rate, rate, isPrinted);
+        }
+    }
+
+    private static void run(String name, String[] channels, int count, int rate, boolean isPrinted) throws InterruptedException {
+        ChannelDispatcher dispatcher = new ChannelDispatcher(new IRCMetrics());
+        // nothing may be dropped, otherwise the run never ends
+        dispatcher.setOverflowPolicy(ChannelDispatcher.OverflowPolicy.BLOCK);
+        try {
+            measure(name, channels, count, rate, dispatcher::dispatch, dispatcher::getDroppedCount, isPrinted);
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    private static void runExecutor(String name, int count, int rate, boolean isPrinted) throws InterruptedException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            measure(name, channels(1), count, rate, (channel, callback) -> executor.execute(callback), () -> 0, isPrinted);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void measure(String name, String[] channels, int count, int rate, Target target, LongSupplier dropped, boolean isPrinted) throws InterruptedException {
+        IRCMetrics.Histogram latency = new IRCMetrics.Histogram();
+        CountDownLatch done = new CountDownLatch(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if(rate > 0) {
+                long wait = start + i * 1_000_000_000L / rate - System.nanoTime();
+                if(wait > 0)
+                    LockSupport.parkNanos(wait);
+            }
+            long queuedAt = System.nanoTime();
+            target.dispatch(channels[i % channels.length], () -> {
+                latency.record(System.nanoTime() - queuedAt);
+                done.countDown();
+            });
+        }
+        done.await(1, TimeUnit.MINUTES);
+        long nanos = System.nanoTime() - start;
+
+        if(isPrinted) {
+            IRCMetrics.Histogram.Summary summary = latency.summary();
+            System.out.printf("%-16s %8d %14.0f %7.1f us %7.1f us %7.1f us %10d%n", name, channels.length, count * 1e9 / nanos,
+                    summary.p50() / 1e3, summary.p99() / 1e3, summary.max() / 1e3, dropped.getAsLong());
+        }
+    }
+
+    private static String[] channels(int count) {
+        String[] channels = new String[count];
+        for (int i = 0; i < count; i++)
+            channels[i] = "channel" + i;
+        return channels;
+    }
+}
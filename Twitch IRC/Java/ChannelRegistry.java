@@ -0,0 +1,239 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * The channels of a{@code TwitchIRC}instance, indexed by name.
+ * <li>Lookups are O(1) and never take a lock. Checking membership with{@code isJoined}does not allocate, so it is cheap enough for every outgoing message.
+ * <li>Every channel has a state (joining, joined, parting) and a slot for its room-id and the last ROOMSTATE of the channel.
+ * <li>Iterating while channels are added or removed is safe, e.g.{@code quitAllChannels}.
+ * <li>Names are normalized with{@code normalize}, so{@code "Foo"}and{@code "#foo"}are the same channel as the{@code "foo"}that the server sends.
+ */
+public final class ChannelRegistry {
+    // chat messages held per channel while it is joining, older ones are dropped first
+    private static final int MAX_HELD_MESSAGES = 100;
+
+    private final ConcurrentHashMap<String, Channel> channels = new ConcurrentHashMap<>();
+
+    public enum State {
+        /** JOIN was queued or sent, the server did not confirm it yet. */
+        JOINING,
+        /** The server confirmed the JOIN with the end of the NAMES list (366). */
+        JOINED,
+        /** PART was sent, the server did not confirm it yet. */
+        PARTING
+    }
+
+    /**
+     * A single channel. All fields can be read from any thread.
+     */
+    public static final class Channel {
+        private final String name;
+        private final AtomicReference<State> state;
+        private volatile TwitchIRC.Connection connection;
+        private volatile String roomId;
+        private volatile boolean isModerator;
+        private volatile Map<String, String> roomState = Collections.emptyMap();
+        // chat messages sent while the channel was joining, e.g. while it is moved to a new connection
+        private final ArrayDeque<String> heldMessages = new ArrayDeque<>();
+
+        private Channel(String name, State state, TwitchIRC.Connection connection) {
+            this.name = name;
+            this.state = new AtomicReference<>(state);
+            this.connection = connection;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        /**
+         * Returns the room-id (the user id of the broadcaster) from ROOMSTATE or null if it did not arrive yet.
+         */
+        public String getRoomId() {
+            return roomId;
+        }
+
+        /**
+         * Returns true if USERSTATE told that the bot is a moderator or the broadcaster of this channel.
+         */
+        public boolean isModerator() {
+            return isModerator;
+        }
+
+        /**
+         * Returns the tags of all ROOMSTATE messages of this channel merged together, e.g. slow, followers-only, emote-only.
+         */
+        public Map<String, String> getRoomState() {
+            return roomState;
+        }
+
+        TwitchIRC.Connection connection() {
+            return connection;
+        }
+
+        boolean transition(State expected, State next) {
+            return state.compareAndSet(expected, next);
+        }
+
+        synchronized void hold(String message) {
+            if(heldMessages.size() == MAX_HELD_MESSAGES)
+                heldMessages.poll();
+            heldMessages.offer(message);
+        }
+
+        // returns and forgets the held messages in the order they were sent
+        synchronized List<String> releaseHeld() {
+            if(heldMessages.isEmpty())
+                return Collections.emptyList();
+            List<String> messages = new ArrayList<>(heldMessages);
+            heldMessages.clear();
+            return messages;
+        }
+
+        void setModerator(boolean isModerator) {
+            this.isModerator = isModerator;
+        }
+
+        // ROOMSTATE after the join contains every tag, later ones only the tags that changed
+        synchronized void updateRoomState(Map<String, String> tags) {
+            Map<String, String> merged = new HashMap<>(roomState);
+            merged.putAll(tags);
+            roomState = Collections.unmodifiableMap(merged);
+            String id = tags.get("room-id");
+            if(id != null)
+                roomId = id;
+        }
+    }
+
+    /**
+     * Returns the name in the form twitch uses: lower case and without a leading '#'.
+     * <li>Returns the same instance if the name is already normalized, so a name from the server does not allocate.
+     */
+    public static String normalize(String channel) {
+        if(!channel.isEmpty() && channel.charAt(0) == '#')
+            channel = channel.substring(1);
+        return channel.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the channel or null if it is not in the registry.
+     */
+    public Channel get(String channel) {
+        return channels.get(normalize(channel));
+    }
+
+    /**
+     * Returns true if the server confirmed the JOIN of the channel and it is not being left. Does not allocate for a normalized name.
+     */
+    public boolean isJoined(String channel) {
+        Channel c = channels.get(normalize(channel));
+        return c != null && c.state.get() == State.JOINED;
+    }
+
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * Calls the consumer for every channel in the given state.
+     */
+    public void forEach(State state, Consumer<Channel> consumer) {
+        for (Channel channel : channels.values()) {
+            if(channel.state.get() == state)
+                consumer.accept(channel);
+        }
+    }
+
+    /**
+     * Adds the channel in the JOINING state. Returns null if the channel is already joining or joined.
+     * <li>A channel that is still parting is replaced, so it can be joined again right away.
+     */
+    Channel beginJoin(String channel, TwitchIRC.Connection connection) {
+        channel = normalize(channel);
+        Channel joining = new Channel(channel, State.JOINING, connection);
+        while (true) {
+            Channel current = channels.putIfAbsent(channel, joining);
+            if(current == null)
+                return joining;
+            if(current.state.get() != State.PARTING)
+                return null;
+            if(channels.replace(channel, current, joining))
+                return joining;
+        }
+    }
+
+    /**
+     * Marks the channel as joined. A channel that was joined without{@code beginJoin}(e.g. with a raw JOIN) is added.
+     */
+    Channel joined(String channel, TwitchIRC.Connection connection) {
+        Channel c = channels.computeIfAbsent(normalize(channel), name -> new Channel(name, State.JOINED, connection));
+        c.transition(State.JOINING, State.JOINED);
+        return c;
+    }
+
+    /**
+     * Moves a joined channel to PARTING. Returns null if the channel is not joined.
+     */
+    Channel beginPart(String channel) {
+        Channel c = channels.get(normalize(channel));
+        return c != null && c.transition(State.JOINED, State.PARTING) ? c : null;
+    }
+
+    /**
+     * Removes the channel if it is still the given instance.
+     */
+    boolean remove(Channel channel) {
+        return channels.remove(channel.name, channel);
+    }
+
+    /**
+     * Moves every channel of a connection to another connection in the JOINING state, used when reconnecting.
+     * <li>Channels that were being left are removed instead, their PART is done by losing the old connection.
+     */
+    void moveAll(TwitchIRC.Connection from, TwitchIRC.Connection to, Consumer<Channel> moved) {
+        for (Channel channel : channels.values()) {
+            if(channel.connection != from)
+                continue;
+            if(channel.state.get() == State.PARTING) {
+                channels.remove(channel.name, channel);
+                continue;
+            }
+            channel.connection = to;
+            channel.state.set(State.JOINING);
+            moved.accept(channel);
+        }
+    }
+
+    /**
+     * Returns true if a JOIN of a channel on the connection was not confirmed yet.
+     */
+    boolean hasJoining(TwitchIRC.Connection connection) {
+        for (Channel channel : channels.values()) {
+            if(channel.connection == connection && channel.state.get() == State.JOINING)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes and returns every channel of the connection, used after the connection was closed for good.
+     */
+    void removeAll(TwitchIRC.Connection connection, Consumer<Channel> removed) {
+        for (Channel channel : channels.values()) {
+            if(channel.connection == connection && channels.remove(channel.name, channel))
+                removed.accept(channel);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming statistics of the chat of every joined channel, updated on the reading thread while the lines are parsed.
+ * <li>Messages per second over a sliding window of the last minute.
+ * <li>Approximate top chatters and top emotes with the Space-Saving algorithm.
+ * <li>Approximate number of distinct chatters with a HyperLogLog sketch.
+ * <li>The memory of a channel is fixed, no matter how many messages or chatters it has. A snapshot copies only the small summaries and can be polled from any thread.
+ */
+public final class ChatAnalytics {
+    public static final int DEFAULT_TOP_K = 20;
+
+    private static final int WINDOW_SECONDS = 60;
+    // with 2^12 registers the standard error of the distinct count is about 1.6%
+    private static final int HLL_PRECISION = 12;
+    // the count of a Space-Saving counter is off by at most messages / counters, so more counters than reported entries keep the tail of the top-K stable
+    private static final int COUNTERS_PER_ENTRY = 4;
+    private static final int MIN_COUNTERS = 64;
+
+    private final Map<String, ChannelStats> channels = new ConcurrentHashMap<>();
+    private final int topK;
+
+    /**
+     * A counted item of a top-K list.{@code count}may be too high by at most{@code error}.
+     */
+    public record Entry(String name, long count, long error) {}
+
+    /**
+     * The statistics of a single channel at the time the snapshot was taken.
+     */
+    public record Snapshot(String channel, long totalMessages, double messagesPerSecond, long distinctChatters, List<Entry> topChatters, List<Entry> topEmotes) {}
+
+    ChatAnalytics() {
+        this(DEFAULT_TOP_K);
+    }
+
+    ChatAnalytics(int topK) {
+        if(topK < 1)
+            throw new IllegalArgumentException("topK has to be at least 1");
+        this.topK = topK;
+    }
+
+    /**
+     * Returns the snapshot of the channel or null if no message of the channel was seen.
+     */
+    public Snapshot snapshot(String channel) {
+        ChannelStats stats = channels.get(channel);
+        return stats == null ? null : stats.snapshot(channel, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Returns the snapshots of all channels.
+     */
+    public Map<String, Snapshot> snapshot() {
+        long second = System.currentTimeMillis() / 1000;
+        Map<String, Snapshot> snapshots = new HashMap<>();
+        channels.forEach((channel, stats) -> snapshots.put(channel, stats.snapshot(channel, second)));
+        return snapshots;
+    }
+
+    // called on the reading thread with the parsed PRIVMSG
+    void record(String channel, String username, IRCMessage message) {
+        ChannelStats stats = channels.computeIfAbsent(channel, c -> new ChannelStats(topK));
+        long userId = message.tagAsLong("user-id", -1);
+        long userKey = userId >= 0 ? userId : hash(username, 0, username.length());
+        synchronized(stats) {
+            stats.record(System.currentTimeMillis() / 1000, userKey, username, message);
+        }
+    }
+
+    void remove(String channel) {
+        channels.remove(channel);
+    }
+
+    // 64 bit FNV-1a with a final mix, good enough to spread ids over the sketches
+    private static long hash(CharSequence s, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class ChannelStats {
+        private final long[] bucketSecond = new long[WINDOW_SECONDS];
+        private final long[] bucketCount = new long[WINDOW_SECONDS];
+        private final SpaceSaving chatters;
+        private final SpaceSaving emotes;
+        private final byte[] registers = new byte[1 << HLL_PRECISION];
+        private long totalMessages;
+
+        ChannelStats(int topK) {
+            int counters = Math.max(COUNTERS_PER_ENTRY * topK, MIN_COUNTERS);
+            chatters = new SpaceSaving(counters, topK);
+            emotes = new SpaceSaving(counters, topK);
+        }
+
+        void record(long second, long userKey, String username, IRCMessage message) {
+            totalMessages++;
+            int bucket = (int) (second % WINDOW_SECONDS);
+            if(bucketSecond[bucket] != second) {
+                bucketSecond[bucket] = second;
+                bucketCount[bucket] = 0;
+            }
+            bucketCount[bucket]++;
+
+            int slot = chatters.offer(userKey, 1);
+            if(slot < 0)
+                chatters.labels[-slot - 1] = username;
+
+            long h = mix(userKey);
+            int register = (int) (h >>> (64 - HLL_PRECISION));
+            byte rank = (byte) (Long.numberOfLeadingZeros((h << HLL_PRECISION) | (1L << (HLL_PRECISION - 1))) + 1);
+            if(registers[register] < rank)
+                registers[register] = rank;
+
+            recordEmotes(message);
+        }
+
+        // emotes=25:0-4,12-16/1902:6-10 -> emote 25 was used twice, emote 1902 once
+        private void recordEmotes(IRCMessage message) {
+            int start = message.tagValueStart("emotes");
+            if(start < 0)
+                return;
+            int end = message.tagValueEnd(start);
+            String line = message.line();
+
+            int i = start;
+            while (i < end) {
+                int colon = i;
+                while (colon < end && line.charAt(colon) != ':')
+                    colon++;
+                int groupEnd = colon;
+                int uses = 0;
+                int firstRangeStart = -1;
+                int firstRangeEnd = -1;
+                while (groupEnd < end && line.charAt(groupEnd) != '/') {
+                    char c = line.charAt(groupEnd);
+                    if(c == ':' || c == ',') {
+                        uses++;
+                        if(firstRangeStart < 0)
+                            firstRangeStart = groupEnd + 1;
+                    } else if(c == '-' && firstRangeEnd < 0) {
+                        firstRangeEnd = groupEnd;
+                    }
+                    groupEnd++;
+                }
+
+                if(uses > 0 && colon > i) {
+                    int slot = emotes.offer(hash(line, i, colon), uses);
+                    if(slot < 0)
+                        emotes.labels[-slot - 1] = emoteName(message, line, firstRangeStart, firstRangeEnd, groupEnd);
+                }
+                i = groupEnd + 1;
+            }
+        }
+
+        // the name is only read when an emote enters the top-K, the positions are in code points of the message
+        private static String emoteName(IRCMessage message, String line, int rangeStart, int dash, int groupEnd) {
+            try {
+                int from = Integer.parseInt(line, rangeStart, dash, 10);
+                int rangeEnd = dash + 1;
+                while (rangeEnd < groupEnd && line.charAt(rangeEnd) != ',')
+                    rangeEnd++;
+                int to = Integer.parseInt(line, dash + 1, rangeEnd, 10);
+                String text = message.trailing();
+                return text.substring(text.offsetByCodePoints(0, from), text.offsetByCodePoints(0, to + 1));
+            } catch (RuntimeException e) {
+                return "?";
+            }
+        }
+
+        Snapshot snapshot(String channel, long second) {
+            long inWindow = 0;
+            synchronized(this) {
+                for (int i = 0; i < WINDOW_SECONDS; i++) {
+                    if(second - bucketSecond[i] < WINDOW_SECONDS)
+                        inWindow += bucketCount[i];
+                }
+                return new Snapshot(channel, totalMessages, (double) inWindow / WINDOW_SECONDS, distinct(), chatters.top(), emotes.top());
+            }
+        }
+
+        private long distinct() {
+            int m = registers.length;
+            double sum = 0;
+            int zeros = 0;
+            for (byte register : registers) {
+                sum += 1.0 / (1L << register);
+                if(register == 0)
+                    zeros++;
+            }
+            double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+            // linear counting is more accurate while many registers are still empty
+            if(estimate <= 2.5 * m && zeros > 0)
+                estimate = m * Math.log((double) m / zeros);
+            return Math.round(estimate);
+        }
+    }
+
+    /**
+     * Space-Saving top-K over long keys: counters in flat arrays, an unknown key replaces the smallest counter and inherits its count as error.
+     * <li>Only the{@code reported}largest counters are returned by{@code top}.
+     */
+    private static final class SpaceSaving {
+        private final long[] keys;
+        private final long[] counts;
+        private final long[] errors;
+        final String[] labels;
+        private final int reported;
+        private int size;
+
+        SpaceSaving(int counters, int reported) {
+            keys = new long[counters];
+            counts = new long[counters];
+            errors = new long[counters];
+            labels = new String[counters];
+            this.reported = reported;
+        }
+
+        // returns the slot of the key, or -(slot + 1) if the key was not counted before and needs a label
+        int offer(long key, long increment) {
+            for (int i = 0; i < size; i++) {
+                if(keys[i] == key) {
+                    counts[i] += increment;
+                    return i;
+                }
+            }
+
+            if(size < keys.length) {
+                int slot = size++;
+                keys[slot] = key;
+                counts[slot] = increment;
+                errors[slot] = 0;
+                return -slot - 1;
+            }
+
+            int min = 0;
+            for (int i = 1; i < size; i++) {
+                if(counts[i] < counts[min])
+                    min = i;
+            }
+            keys[min] = key;
+            errors[min] = counts[min];
+            counts[min] += increment;
+            return -min - 1;
+        }
+
+        List<Entry> top() {
+            List<Entry> entries = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                entries.add(new Entry(labels[i], counts[i], errors[i]));
+            entries.sort((a, b) -> Long.compare(b.count(), a.count()));
+            return Collections.unmodifiableList(entries.subList(0, Math.min(reported, entries.size())));
+        }
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * An append-only archive of the raw lines of all joined channels, set with{@code TwitchIRC.setChatLog}.
+ * <li>Lines are written into memory mapped segment files by a writer thread. The reading thread only puts the line into a bounded queue and never waits: if the queue is full, the line is dropped and counted.
+ * <li>Every record has a binary header with the length, the time it was received and the id of the channel. The ids are kept in the file "channels", one name per line.
+ * <li>Every segment has a sparse index with one entry per block of about 64KB: the time range of the block, its position and a bitmap of the channels in it. Replaying a time range or a channel only reads the blocks that can contain it.
+ * <li>{@code replay}feeds the stored lines back through{@code IRCMessage}and{@code onChatMessage}, at full speed or in real time.
+ */
+public final class ChatLog implements AutoCloseable {
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+    public static final int DEFAULT_QUEUE_CAPACITY = 65_536;
+
+    // length (int), time in ms (long), channel id (int), records start at multiples of 8 so the length can be written atomically
+    private static final int HEADER_SIZE = 16;
+    private static final int BLOCK_SIZE = 64 << 10;
+    private static final int CHANNEL_BITS = 256;
+    // first time, last time (long), start, end (int), channel bitmap
+    private static final int INDEX_ENTRY_SIZE = 24 + CHANNEL_BITS / 8;
+    private static final String CHANNELS_FILE = "channels";
+    // the length of a record is written last with release semantics, a reader that sees it also sees the rest of the record
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Path directory;
+    private final long segmentSize;
+    private final BlockingQueue<Record> queue;
+    private final Thread writer;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Map<String, Integer> channelIds = new HashMap<>();
+    private volatile boolean isClosed = false;
+
+    // only used by the writer thread
+    private MappedByteBuffer segment;
+    private FileChannel index;
+    private FileChannel channelsFile;
+    private long lastTimestamp;
+    private final Block block = new Block();
+
+    /**
+     * Reads or writes a stored line.
+     */
+    @FunctionalInterface
+    public interface LineListener {
+        void onLine(long timestamp, String channel, String line);
+    }
+
+    private record Record(long timestamp, String channel, String line) {}
+
+    public ChatLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ChatLog(Path directory, long segmentSize, int queueCapacity) throws IOException {
+        if(segmentSize < BLOCK_SIZE || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("segmentSize has to be between 64KB and 2GB");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        Files.createDirectories(directory);
+        List<String> names = readChannels(directory);
+        for (int i = 0; i < names.size(); i++)
+            channelIds.put(names.get(i), i);
+        channelsFile = FileChannel.open(directory.resolve(CHANNELS_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        writer = new Thread(this::writeLoop, "TwitchIRC-chatlog");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the number of lines that were written to the segments.
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * Returns the number of lines that were dropped because the writer could not keep up.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queues a line of a channel. Never blocks, returns false if the line was dropped.
+     */
+    public boolean append(String channel, String line) {
+        if(isClosed || !queue.offer(new Record(System.currentTimeMillis(), channel, line))) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued lines and closes the log. The segments stay readable with{@code replay}.
+     */
+    @Override
+    public void close() {
+        isClosed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands every stored PRIVMSG between the two times (in ms since the epoch) to the client like a received one.
+     * <li>{@code channel}can be null to replay all channels.
+     * <li>With{@code realTime}the messages are spaced like they were received, otherwise they are replayed as fast as possible.
+     * <li>{@code onChatMessage}and the commands added with{@code addCommand}run in the lanes of the channels, with the cooldowns and the{@code OverflowPolicy}of live messages.
+     *     The replayed messages are not recorded in the{@code ChatAnalytics}of the client.
+     * <li>Returns the number of replayed lines once all of them were handed to the lanes, the callbacks may still be running.
+     */
+    public long replay(long fromMillis, long toMillis, String channel, boolean realTime, TwitchIRC client) throws IOException {
+        IRCMessage message = new IRCMessage();
+        return replay(fromMillis, toMillis, channel, realTime, (timestamp, c, line) -> {
+            if(message.parse(line) && message.isCommand("PRIVMSG"))
+                client.dispatchChatMessage(message.channel(0), message.nick(), message);
+        });
+    }
+
+    /**
+     * Calls the listener for every stored line between the two times (in ms since the epoch), see{@code replay(long, long, String, boolean, TwitchIRC)}.
+     */
+    public long replay(long fromMillis, long toMillis, String channel, boolean realTime, LineListener listener) throws IOException {
+        return replay(directory, fromMillis, toMillis, channel, realTime, listener);
+    }
+
+    /**
+     * Replays a log directory without opening it for writing, e.g. from another process.
+     */
+    public static long replay(Path directory, long fromMillis, long toMillis, String channel, boolean realTime, LineListener listener) throws IOException {
+        List<String> names = readChannels(directory);
+        int channelId = channel == null ? -1 : names.indexOf(channel);
+        if(channel != null && channelId < 0)
+            return 0;
+
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().toList();
+        }
+
+        long count = 0;
+        long previous = -1;
+        for (int s = 0; s < segments.size(); s++) {
+            // segments are named after the time of their first line, the next one tells where this one ends
+            if(s + 1 < segments.size() && segmentStart(segments.get(s + 1)) < fromMillis)
+                continue;
+            if(segmentStart(segments.get(s)) > toMillis)
+                break;
+
+            ByteBuffer data;
+            try (FileChannel file = FileChannel.open(segments.get(s), StandardOpenOption.READ)) {
+                data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            }
+            ByteBuffer entries = readIndex(segments.get(s));
+
+            int position = 0;
+            for (int e = 0; e < entries.limit() / INDEX_ENTRY_SIZE; e++) {
+                int entry = e * INDEX_ENTRY_SIZE;
+                int end = entries.getInt(entry + 20);
+                if(entries.getLong(entry + 8) >= fromMillis && entries.getLong(entry) <= toMillis && (channelId < 0 || hasChannel(entries, entry + 24, channelId))) {
+                    long[] result = readRecords(data, entries.getInt(entry + 16), end, fromMillis, toMillis, channelId, names, realTime, previous, listener);
+                    count += result[0];
+                    previous = result[1];
+                }
+                position = end;
+            }
+            // the last block of a segment is only indexed once it is full
+            long[] result = readRecords(data, position, data.limit(), fromMillis, toMillis, channelId, names, realTime, previous, listener);
+            count += result[0];
+            previous = result[1];
+        }
+        return count;
+    }
+
+    // returns the number of lines and the time of the last line
+    private static long[] readRecords(ByteBuffer data, int position, int end, long fromMillis, long toMillis, int channelId, List<String> names, boolean realTime, long previous, LineListener listener) {
+        long count = 0;
+        while (position + HEADER_SIZE <= end) {
+            int length = (int) INT.getAcquire(data, position);
+            if(length <= 0)
+                break;
+            long timestamp = data.getLong(position + 4);
+            int id = data.getInt(position + 12);
+            int start = position + HEADER_SIZE;
+            position = start + align(length);
+            if(timestamp > toMillis)
+                break;
+            if(timestamp < fromMillis || (channelId >= 0 && id != channelId))
+                continue;
+
+            if(realTime && previous >= 0 && timestamp > previous) {
+                try {
+                    Thread.sleep(timestamp - previous);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new long[] { count, timestamp };
+                }
+            }
+            previous = timestamp;
+
+            byte[] bytes = new byte[length];
+            data.get(start, bytes);
+            listener.onLine(timestamp, id < names.size() ? names.get(id) : null, new String(bytes, StandardCharsets.UTF_8));
+            count++;
+        }
+        return new long[] { count, previous };
+    }
+
+    private void writeLoop() {
+        List<Record> batch = new ArrayList<>();
+        try {
+            while (!isClosed || !queue.isEmpty()) {
+                Record first;
+                try {
+                    // the writer is never interrupted, that would close the file channels
+                    first = queue.poll(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if(first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch);
+                for (Record record : batch)
+                    write(record);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            isClosed = true;
+            e.printStackTrace();
+        }
+
+        try {
+            finishSegment();
+            channelsFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        byte[] bytes = record.line().getBytes(StandardCharsets.UTF_8);
+        if(HEADER_SIZE + align(bytes.length) + HEADER_SIZE > segmentSize)
+            return; // can not happen with IRC lines, which are at most a few KB
+
+        // the lines come from several reading threads, the log is kept in order of time
+        long timestamp = Math.max(record.timestamp(), lastTimestamp);
+        lastTimestamp = timestamp;
+
+        // a segment always keeps room for a zero length that marks its end
+        if(segment == null || segment.position() + HEADER_SIZE + align(bytes.length) + HEADER_SIZE > segmentSize) {
+            finishSegment();
+            openSegment(timestamp);
+        }
+        if(segment.position() - block.start >= BLOCK_SIZE)
+            finishBlock();
+
+        int position = segment.position();
+        int channelId = channelId(record.channel());
+        segment.putLong(position + 4, timestamp);
+        segment.putInt(position + 12, channelId);
+        segment.put(position + HEADER_SIZE, bytes);
+        INT.setRelease(segment, position, bytes.length);
+        segment.position(position + HEADER_SIZE + align(bytes.length));
+
+        if(block.firstTimestamp < 0)
+            block.firstTimestamp = timestamp;
+        block.lastTimestamp = timestamp;
+        block.addChannel(channelId);
+        written.increment();
+    }
+
+    private int channelId(String channel) throws IOException {
+        Integer id = channelIds.get(channel);
+        if(id != null)
+            return id;
+        // the name is stored before the first record that uses its id
+        channelsFile.write(ByteBuffer.wrap((channel + "\n").getBytes(StandardCharsets.UTF_8)));
+        id = channelIds.size();
+        channelIds.put(channel, id);
+        return id;
+    }
+
+    private void openSegment(long timestamp) throws IOException {
+        // the names sort by time, a name that is taken (e.g. after a restart in the same ms) moves the start a little
+        Path path = directory.resolve(String.format("chat-%015d.log", timestamp));
+        while (Files.exists(path))
+            path = directory.resolve(String.format("chat-%015d.log", ++timestamp));
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = file.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        index = FileChannel.open(indexOf(path), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        block.reset(0);
+    }
+
+    private void finishSegment() throws IOException {
+        if(segment == null)
+            return;
+        finishBlock();
+        // the pages are in the page cache already, force() only matters if the machine itself goes down
+        segment.force();
+        index.force(false);
+        index.close();
+        segment = null;
+    }
+
+    private void finishBlock() throws IOException {
+        if(block.firstTimestamp >= 0) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(block.firstTimestamp).putLong(block.lastTimestamp).putInt(block.start).putInt(segment.position());
+            for (long bits : block.channels)
+                entry.putLong(bits);
+            index.write(entry.flip());
+        }
+        block.reset(segment.position());
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+
+    private static boolean hasChannel(ByteBuffer entries, int bitmap, int channelId) {
+        int bit = channelBit(channelId);
+        return (entries.getLong(bitmap + (bit >>> 6) * 8) & (1L << bit)) != 0;
+    }
+
+    private static int channelBit(int channelId) {
+        return (channelId * 0x9E3779B9) >>> 24;
+    }
+
+    private static ByteBuffer readIndex(Path segment) throws IOException {
+        Path path = indexOf(segment);
+        if(!Files.exists(path))
+            return ByteBuffer.allocate(0);
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(path));
+        // an entry that was cut off by a crash is ignored, its block is read like the unindexed tail
+        entries.limit(entries.limit() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE);
+        return entries;
+    }
+
+    private static Path indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - 4) + ".idx");
+    }
+
+    private static long segmentStart(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(5, 20));
+    }
+
+    private static List<String> readChannels(Path directory) throws IOException {
+        Path path = directory.resolve(CHANNELS_FILE);
+        return Files.exists(path) ? Files.readAllLines(path, StandardCharsets.UTF_8) : new ArrayList<>();
+    }
+
+    // the block that is currently written, it becomes an index entry when it is full
+    private static final class Block {
+        final long[] channels = new long[CHANNEL_BITS / 64];
+        long firstTimestamp;
+        long lastTimestamp;
+        int start;
+
+        void reset(int start) {
+            this.start = start;
+            firstTimestamp = -1;
+            Arrays.fill(channels, 0);
+        }
+
+        void addChannel(int channelId) {
+            int bit = channelBit(channelId);
+            channels[bit >>> 6] |= 1L << bit;
+        }
+    }
+}
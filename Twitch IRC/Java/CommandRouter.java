@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the chat command at the start of a message without creating any Strings.
+ * <li>Commands are compiled into a trie once they are added. Matching walks the trie directly on the chars of the line and ignores the case.
+ * <li>Messages that are not commands are rejected after looking at their first char.
+ * <li>Per-user and per-channel cooldowns are kept in open addressed tables of primitive longs, so a raid spamming a command does not create garbage.
+ */
+final class CommandRouter {
+    /**
+     * A compiled command with its handler and cooldowns.
+     */
+    static final class Command {
+        final String name;
+        final int id;
+        final TwitchIRC.CommandHandler handler;
+        final long userCooldownMillis;
+        final long channelCooldownMillis;
+
+        Command(String name, int id, TwitchIRC.CommandHandler handler, long userCooldownMillis, long channelCooldownMillis) {
+            this.name = name;
+            this.id = id;
+            this.handler = handler;
+            this.userCooldownMillis = userCooldownMillis;
+            this.channelCooldownMillis = channelCooldownMillis;
+        }
+    }
+
+    // a node of the trie, children are kept in two small parallel arrays because most nodes have one or two children
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] children = new Node[0];
+        Command command;
+
+        Node child(char c) {
+            for (int i = 0; i < keys.length; i++) {
+                if(keys[i] == c)
+                    return children[i];
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if(child != null)
+                return child;
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            children[children.length - 1] = child = new Node();
+            return child;
+        }
+    }
+
+    private final List<Command> commands = new ArrayList<>();
+    private final CooldownTable userCooldowns = new CooldownTable(1024);
+    private final CooldownTable channelCooldowns = new CooldownTable(256);
+    private volatile Node root = new Node();
+
+    /**
+     * Adds a command and compiles a new trie. Commands are usually added once at startup, lookups never see a half built trie.
+     */
+    synchronized void add(String name, TwitchIRC.CommandHandler handler, long userCooldownMillis, long channelCooldownMillis) {
+        if(name.isEmpty() || name.indexOf(' ') >= 0)
+            throw new IllegalArgumentException("A command must not be empty or contain spaces: '" + name + "'");
+        if(commands.size() == 0xFFFF)
+            throw new IllegalStateException("Too many commands");
+
+        // adding a command with the same name replaces it, the ids are handed out again because they are part of the cooldown keys
+        List<Command> compiled = new ArrayList<>(commands.size() + 1);
+        for (Command command : commands) {
+            if(!command.name.equalsIgnoreCase(name))
+                compiled.add(new Command(command.name, compiled.size(), command.handler, command.userCooldownMillis, command.channelCooldownMillis));
+        }
+        compiled.add(new Command(name, compiled.size(), handler, userCooldownMillis, channelCooldownMillis));
+
+        Node newRoot = new Node();
+        for (Command command : compiled) {
+            Node node = newRoot;
+            for (int i = 0; i < command.name.length(); i++)
+                node = node.addChild(lower(command.name.charAt(i)));
+            node.command = command;
+        }
+        commands.clear();
+        commands.addAll(compiled);
+        userCooldowns.clear();
+        channelCooldowns.clear();
+        root = newRoot;
+    }
+
+    /**
+     * Returns the command the trailing parameter of the PRIVMSG starts with, or null if it does not start with a known command.
+     */
+    Command match(IRCMessage message) {
+        int start = message.trailingStart();
+        int end = message.trailingEnd();
+        if(start < 0 || start >= end)
+            return null;
+
+        String line = message.line();
+        Node node = root;
+        int i = start;
+        while (i < end) {
+            char c = line.charAt(i);
+            if(c == ' ')
+                break;
+            node = node.child(lower(c));
+            if(node == null)
+                return null;
+            i++;
+        }
+        return node.command;
+    }
+
+    /**
+     * Returns the text after the command, or an empty String if there is none.
+     */
+    static String arguments(IRCMessage message, Command command) {
+        String line = message.line();
+        int i = message.trailingStart() + command.name.length();
+        int end = message.trailingEnd();
+        while (i < end && line.charAt(i) == ' ')
+            i++;
+        return i < end ? line.substring(i, end) : "";
+    }
+
+    /**
+     * Returns true if the command is not on cooldown for the user and the channel, and starts both cooldowns.
+     */
+    boolean tryAcquire(Command command, long userKey, long channelKey) {
+        long now = System.currentTimeMillis();
+        // user ids and room ids are far below 2^47, the lower 16 bits hold the command id
+        long userSlot = (userKey << 16) | command.id;
+        long channelSlot = (channelKey << 16) | command.id;
+        synchronized(this) {
+            if(command.channelCooldownMillis > 0 && channelCooldowns.isActive(channelSlot, now))
+                return false;
+            if(command.userCooldownMillis > 0 && userCooldowns.isActive(userSlot, now))
+                return false;
+            if(command.channelCooldownMillis > 0)
+                channelCooldowns.put(channelSlot, now + command.channelCooldownMillis, now);
+            if(command.userCooldownMillis > 0)
+                userCooldowns.put(userSlot, now + command.userCooldownMillis, now);
+        }
+        return true;
+    }
+
+    // only ascii letters are folded, commands are ascii in practice and this keeps the lookup branch free of Character tables
+    private static char lower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + 32) : c;
+    }
+
+    /**
+     * Maps a long key to the time (in ms) its cooldown ends, with linear probing over two long arrays.
+     * <li>Expired entries are reused in place. The table is only rebuilt (and grown if needed) when it fills up, which drops all expired entries.
+     */
+    static final class CooldownTable {
+        private static final long EMPTY = Long.MIN_VALUE;
+
+        private long[] keys;
+        private long[] expiries;
+        private int size;
+
+        CooldownTable(int capacity) {
+            int powerOfTwo = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+            keys = new long[powerOfTwo];
+            expiries = new long[powerOfTwo];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        boolean isActive(long key, long now) {
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if(keys[i] == key)
+                    return expiries[i] > now;
+            }
+            return false;
+        }
+
+        void put(long key, long expiry, long now) {
+            int mask = keys.length - 1;
+            int reusable = -1;
+            int i = index(key, mask);
+            for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+                if(keys[i] == key) {
+                    expiries[i] = expiry;
+                    return;
+                }
+                if(reusable < 0 && expiries[i] <= now)
+                    reusable = i;
+            }
+
+            if(reusable >= 0) {
+                keys[reusable] = key;
+                expiries[reusable] = expiry;
+                return;
+            }
+
+            keys[i] = key;
+            expiries[i] = expiry;
+            if(++size > keys.length * 3 / 4)
+                rebuild(now);
+        }
+
+        void clear() {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+
+        private void rebuild(long now) {
+            long[] oldKeys = keys;
+            long[] oldExpiries = expiries;
+            int live = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != EMPTY && oldExpiries[i] > now)
+                    live++;
+            }
+
+            int capacity = live > oldKeys.length / 2 ? oldKeys.length * 2 : oldKeys.length;
+            keys = new long[capacity];
+            expiries = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if(oldKeys[j] == EMPTY || oldExpiries[j] <= now)
+                    continue;
+                int i = index(oldKeys[j], mask);
+                while (keys[i] != EMPTY)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                expiries[i] = oldExpiries[j];
+                size++;
+            }
+        }
+
+        private static int index(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives many Twitch IRC connections with a small number of selector threads, using non-blocking SocketChannels and pooled direct ByteBuffers.
+ * <li>One engine can be shared by any number of{@code TwitchIRC}instances. Pass it to{@code TwitchIRC(String, String, IRCEngine)}.
+ * <li>Channels are spread across connections of a TwitchIRC instance, with at most{@code channelsPerConnection}channels on each connection.
+ * <li>Closing the engine closes every connection it drives.
+ */
+public final class IRCEngine implements AutoCloseable {
+    /**
+     * The number of channels joined on a single connection before a new connection is opened.
+     */
+    public static final int DEFAULT_CHANNELS_PER_CONNECTION = 100;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final SelectorThread[] selectorThreads;
+    private final AtomicInteger nextSelectorThread = new AtomicInteger();
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledBuffers = new AtomicInteger();
+    private final int channelsPerConnection;
+    private volatile boolean isClosed;
+
+    /**
+     * Callbacks of a single connection. Both methods are called on the selector thread of the connection.
+     */
+    interface LineHandler {
+        void onLine(String line);
+        void onClose();
+    }
+
+    public IRCEngine() {
+        this(Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)), DEFAULT_CHANNELS_PER_CONNECTION);
+    }
+
+    public IRCEngine(int selectorThreadCount, int channelsPerConnection) {
+        if(selectorThreadCount < 1 || channelsPerConnection < 1)
+            throw new IllegalArgumentException("selectorThreadCount and channelsPerConnection have to be at least 1");
+
+        this.channelsPerConnection = channelsPerConnection;
+        selectorThreads = new SelectorThread[selectorThreadCount];
+        for (int i = 0; i < selectorThreadCount; i++) {
+            try {
+                selectorThreads[i] = new SelectorThread("IRCEngine-selector-" + i);
+            } catch (IOException e) {
+                for (int j = 0; j < i; j++)
+                    selectorThreads[j].shutdown();
+                throw new IllegalStateException("Could not open a selector", e);
+            }
+        }
+        for (SelectorThread selectorThread : selectorThreads)
+            selectorThread.start();
+    }
+
+    public int getChannelsPerConnection() {
+        return channelsPerConnection;
+    }
+
+    /**
+     * Opens a new non-blocking connection. Lines passed to{@code send}before the connection is established are written once it is.
+     */
+    Connection connect(String host, int port, LineHandler handler) {
+        if(isClosed)
+            throw new IllegalStateException("IRCEngine is closed");
+        SelectorThread selectorThread = selectorThreads[Math.floorMod(nextSelectorThread.getAndIncrement(), selectorThreads.length)];
+        Connection connection = new Connection(selectorThread, handler);
+        selectorThread.register(connection, new InetSocketAddress(host, port));
+        return connection;
+    }
+
+    /**
+     * Closes all connections and stops the selector threads.
+     */
+    @Override
+    public void close() {
+        if(isClosed)
+            return;
+        isClosed = true;
+        for (SelectorThread selectorThread : selectorThreads)
+            selectorThread.shutdown();
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        if(buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        pooledBuffers.decrementAndGet();
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if(buffer == null)
+            return;
+        buffer.clear();
+        if(pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS)
+            bufferPool.offer(buffer);
+        else
+            pooledBuffers.decrementAndGet();
+    }
+
+    /**
+     * A single connection driven by one of the selector threads of the engine.
+     */
+    final class Connection implements TwitchIRC.Connection {
+        private final SelectorThread selectorThread;
+        private final LineHandler handler;
+        private final Queue<byte[]> outgoing = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        private final AtomicBoolean isClosed = new AtomicBoolean();
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer readBuffer;
+        private ByteBuffer writeBuffer;
+        private byte[] pendingLine;
+
+        private Connection(SelectorThread selectorThread, LineHandler handler) {
+            this.selectorThread = selectorThread;
+            this.handler = handler;
+        }
+
+        @Override
+        public void send(String line) {
+            if(isClosed.get())
+                return;
+            outgoing.offer((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            if(writeRequested.compareAndSet(false, true))
+                selectorThread.requestWrite(this);
+        }
+
+        @Override
+        public void sendAll(List<String> lines) {
+            if(isClosed.get())
+                return;
+            for (String line : lines)
+                outgoing.offer((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+            if(writeRequested.compareAndSet(false, true))
+                selectorThread.requestWrite(this);
+        }
+
+        @Override
+        public void close() {
+            if(!isClosed.get())
+                selectorThread.requestClose(this);
+        }
+
+        @Override
+        public boolean isConnected() {
+            return !isClosed.get();
+        }
+    }
+
+    private final class SelectorThread extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final byte[] lineBytes = new byte[BUFFER_SIZE];
+        private volatile boolean isRunning = true;
+
+        SelectorThread(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register(Connection connection, InetSocketAddress address) {
+            execute(() -> {
+                try {
+                    connection.channel = SocketChannel.open();
+                    connection.channel.configureBlocking(false);
+                    connection.readBuffer = acquireBuffer();
+                    connection.writeBuffer = acquireBuffer();
+                    connection.writeBuffer.flip();
+                    if(connection.channel.connect(address)) {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                        flush(connection);
+                    } else {
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeNow(connection);
+                }
+            });
+        }
+
+        void requestWrite(Connection connection) {
+            execute(() -> {
+                connection.writeRequested.set(false);
+                if(connection.key == null || !connection.key.isValid() || (connection.key.interestOps() & SelectionKey.OP_CONNECT) != 0)
+                    return;
+                try {
+                    flush(connection);
+                } catch (IOException e) {
+                    closeNow(connection);
+                }
+            });
+        }
+
+        void requestClose(Connection connection) {
+            execute(() -> closeNow(connection));
+        }
+
+        void shutdown() {
+            isRunning = false;
+            selector.wakeup();
+        }
+
+        private void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (isRunning) {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if(key.isValid() && key.isConnectable()) {
+                                connection.channel.finishConnect();
+                                key.interestOps(SelectionKey.OP_READ);
+                                flush(connection);
+                            }
+                            if(key.isValid() && key.isWritable())
+                                flush(connection);
+                            if(key.isValid() && key.isReadable())
+                                read(connection);
+                        } catch (IOException e) {
+                            closeNow(connection);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    closeNow((Connection) key.attachment());
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                try {
+                    selector.close();
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+        }
+
+        private void read(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.readBuffer;
+            int count = connection.channel.read(buffer);
+            if(count < 0) {
+                closeNow(connection);
+                return;
+            }
+
+            buffer.flip();
+            int lineStart = buffer.position();
+            for (int i = lineStart; i < buffer.limit(); i++) {
+                if(buffer.get(i) != '\n')
+                    continue;
+                int length = i - lineStart;
+                if(length > 0 && buffer.get(i - 1) == '\r')
+                    length--;
+                buffer.get(lineStart, lineBytes, 0, length);
+                connection.handler.onLine(new String(lineBytes, 0, length, StandardCharsets.UTF_8));
+                if(connection.isClosed.get())
+                    return;
+                lineStart = i + 1;
+            }
+            buffer.position(lineStart);
+            buffer.compact();
+
+            // a line longer than the buffer can not be from twitch, drop it instead of stalling the connection
+            if(!buffer.hasRemaining())
+                buffer.clear();
+        }
+
+        // copies as many queued lines as fit into the write buffer and writes them with a single call
+        private void flush(Connection connection) throws IOException {
+            ByteBuffer buffer = connection.writeBuffer;
+            while (true) {
+                if(!buffer.hasRemaining()) {
+                    buffer.clear();
+                    if(connection.pendingLine != null && connection.pendingLine.length <= buffer.remaining()) {
+                        buffer.put(connection.pendingLine);
+                        connection.pendingLine = null;
+                    }
+                    byte[] line;
+                    while (connection.pendingLine == null && (line = connection.outgoing.poll()) != null) {
+                        if(line.length > buffer.capacity())
+                            continue;
+                        if(line.length > buffer.remaining())
+                            connection.pendingLine = line;
+                        else
+                            buffer.put(line);
+                    }
+                    buffer.flip();
+                    if(!buffer.hasRemaining())
+                        break;
+                }
+
+                connection.channel.write(buffer);
+                if(buffer.hasRemaining())
+                    break;
+            }
+
+            int ops = buffer.hasRemaining() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            if(connection.key.interestOps() != ops)
+                connection.key.interestOps(ops);
+        }
+
+        private void closeNow(Connection connection) {
+            if(!connection.isClosed.compareAndSet(false, true))
+                return;
+            try {
+                if(connection.key != null)
+                    connection.key.cancel();
+                if(connection.channel != null)
+                    connection.channel.close();
+            } catch (IOException e) { e.printStackTrace(); }
+            releaseBuffer(connection.readBuffer);
+            releaseBuffer(connection.writeBuffer);
+            connection.readBuffer = null;
+            connection.writeBuffer = null;
+            connection.outgoing.clear();
+            connection.handler.onClose();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A reusable, single pass view over one IRC line from the Twitch IRC server.
+ * <li>Parsing only records offsets into the line. New Strings are only created when a getter like{@code trailing()}is called.
+ * <li>Understands IRCv3 tags, the prefix, the command, the middle parameters and the trailing parameter.
+ * <li>An instance is not thread-safe and is meant to be reused by the thread that reads from the socket.
+ * <li>Twitch IRC docs: https://dev.twitch.tv/docs/irc/ and IRCv3 tags: https://ircv3.net/specs/extensions/message-tags
+ */
+public final class IRCMessage {
+    private static final int MAX_PARAMS = 15;
+
+    private String line = "";
+    private int length;
+
+    private int tagsStart, tagsEnd;
+    private int prefixStart, prefixEnd;
+    private int commandStart, commandEnd;
+    private final int[] paramStart = new int[MAX_PARAMS];
+    private final int[] paramEnd = new int[MAX_PARAMS];
+    private int paramCount;
+    private boolean hasTrailing;
+
+    /**
+     * Parses the given line. Returns false if the line does not contain a command.
+     * <li>All offsets of the previous line are overwritten, so Strings that are needed later have to be taken before calling this again.
+     */
+    public boolean parse(String line) {
+        int len = line.length();
+        // a line coming from a raw buffer may still end with \r\n
+        while (len > 0 && (line.charAt(len - 1) == '\n' || line.charAt(len - 1) == '\r'))
+            len--;
+
+        this.line = line;
+        length = len;
+        tagsStart = tagsEnd = -1;
+        prefixStart = prefixEnd = -1;
+        commandStart = commandEnd = 0;
+        paramCount = 0;
+        hasTrailing = false;
+
+        int i = 0;
+        if(i < len && line.charAt(i) == '@') {
+            tagsStart = i + 1;
+            i = indexOfSpace(tagsStart);
+            tagsEnd = i;
+            i = skipSpaces(i);
+        }
+
+        if(i < len && line.charAt(i) == ':') {
+            prefixStart = i + 1;
+            i = indexOfSpace(prefixStart);
+            prefixEnd = i;
+            i = skipSpaces(i);
+        }
+
+        commandStart = i;
+        i = indexOfSpace(i);
+        commandEnd = i;
+        if(commandEnd == commandStart)
+            return false;
+
+        while (true) {
+            i = skipSpaces(i);
+            if(i >= len)
+                break;
+
+            char first = line.charAt(i);
+            if(first == ':' || paramCount == MAX_PARAMS - 1) {
+                // the trailing parameter (or the last allowed one) takes the rest of the line including spaces
+                paramStart[paramCount] = first == ':' ? i + 1 : i;
+                paramEnd[paramCount] = len;
+                paramCount++;
+                hasTrailing = true;
+                break;
+            }
+
+            paramStart[paramCount] = i;
+            i = indexOfSpace(i);
+            paramEnd[paramCount] = i;
+            paramCount++;
+        }
+        return true;
+    }
+
+    // String.indexOf is an intrinsic, which is a lot faster on long tag blocks than a loop over charAt
+    private int indexOfSpace(int from) {
+        int index = line.indexOf(' ', from);
+        return index < 0 || index > length ? length : index;
+    }
+
+    private int skipSpaces(int from) {
+        while (from < length && line.charAt(from) == ' ')
+            from++;
+        return from;
+    }
+
+    /**
+     * Returns true if the command of this line equals{@code command}, without creating a String.
+     */
+    public boolean isCommand(String command) {
+        return regionEquals(commandStart, commandEnd, command);
+    }
+
+    public String command() {
+        return line.substring(commandStart, commandEnd);
+    }
+
+    public boolean hasTags() {
+        return tagsStart >= 0;
+    }
+
+    public boolean hasPrefix() {
+        return prefixStart >= 0;
+    }
+
+    /**
+     * Returns the full prefix without the leading ':' (e.g.{@code user!user@user.tmi.twitch.tv}) or null if there is none.
+     */
+    public String prefix() {
+        return hasPrefix() ? line.substring(prefixStart, prefixEnd) : null;
+    }
+
+    /**
+     * Returns the nick part of the prefix (everything in front of the '!') or null if there is no prefix.
+     */
+    public String nick() {
+        if(!hasPrefix())
+            return null;
+        int end = line.indexOf('!', prefixStart);
+        if(end < 0 || end > prefixEnd)
+            end = prefixEnd;
+        return line.substring(prefixStart, end);
+    }
+
+    public int paramCount() {
+        return paramCount;
+    }
+
+    /**
+     * Returns the parameter at{@code index}(the trailing parameter included) or null if it does not exist.
+     */
+    public String param(int index) {
+        if(index < 0 || index >= paramCount)
+            return null;
+        return line.substring(paramStart[index], paramEnd[index]);
+    }
+
+    /**
+     * Returns the parameter at{@code index}without the leading '#', or null if it does not exist.
+     */
+    public String channel(int index) {
+        if(index < 0 || index >= paramCount)
+            return null;
+        int start = paramStart[index];
+        if(start < paramEnd[index] && line.charAt(start) == '#')
+            start++;
+        return line.substring(start, paramEnd[index]);
+    }
+
+    public boolean hasTrailing() {
+        return hasTrailing;
+    }
+
+    /**
+     * Returns the trailing parameter (the text after ' :') or null if the line has none.
+     */
+    public String trailing() {
+        return hasTrailing ? param(paramCount - 1) : null;
+    }
+
+    /**
+     * Returns the unescaped value of the IRCv3 tag{@code key}. Returns an empty String if the tag has no value and null if it is missing.
+     */
+    public String tag(String key) {
+        int valueStart = findTag(key);
+        if(valueStart < 0)
+            return null;
+        int valueEnd = tagValueEnd(valueStart);
+
+        int escape = line.indexOf('\\', valueStart);
+        if(escape < 0 || escape >= valueEnd)
+            return line.substring(valueStart, valueEnd);
+
+        StringBuilder sb = new StringBuilder(valueEnd - valueStart);
+        for (int i = valueStart; i < valueEnd; i++) {
+            char c = line.charAt(i);
+            if(c == '\\' && i + 1 < valueEnd) {
+                c = line.charAt(++i);
+                switch (c) {
+                    case ':' -> sb.append(';');
+                    case 's' -> sb.append(' ');
+                    case 'r' -> sb.append('\r');
+                    case 'n' -> sb.append('\n');
+                    default -> sb.append(c);
+                }
+            } else if(c != '\\') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns all IRCv3 tags of the line with unescaped values. Returns an empty map if the line has no tags.
+     */
+    public Map<String, String> tags() {
+        if(tagsStart < 0)
+            return Collections.emptyMap();
+        Map<String, String> tags = new HashMap<>();
+        int i = tagsStart;
+        while (i < tagsEnd) {
+            int end = tagValueEnd(i);
+            int equals = line.indexOf('=', i);
+            String key = line.substring(i, equals < 0 || equals > end ? end : equals);
+            if(!key.isEmpty())
+                tags.put(key, tag(key));
+            i = end + 1;
+        }
+        return tags;
+    }
+
+    /**
+     * Returns the value of the tag{@code key}as a number (e.g. user-id, room-id, tmi-sent-ts) without creating a String.
+     * <li>Returns{@code defaultValue}if the tag is missing, empty or not a number.
+     */
+    public long tagAsLong(String key, long defaultValue) {
+        int valueStart = findTag(key);
+        if(valueStart < 0)
+            return defaultValue;
+        int valueEnd = tagValueEnd(valueStart);
+        if(valueStart == valueEnd || valueEnd - valueStart > 18)
+            return defaultValue;
+
+        long value = 0;
+        for (int i = valueStart; i < valueEnd; i++) {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9')
+                return defaultValue;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    // returns the index of the first char of the value of the tag, or -1 if the tag is missing
+    private int findTag(String key) {
+        if(tagsStart < 0)
+            return -1;
+        int keyLength = key.length();
+        int i = tagsStart;
+        while (true) {
+            // String.indexOf(String) is an intrinsic as well, a match is only valid if it covers a whole key
+            i = line.indexOf(key, i);
+            if(i < 0 || i + keyLength > tagsEnd)
+                return -1;
+            int keyEnd = i + keyLength;
+            if(i == tagsStart || line.charAt(i - 1) == ';') {
+                if(keyEnd == tagsEnd || line.charAt(keyEnd) == ';')
+                    return keyEnd;
+                if(line.charAt(keyEnd) == '=')
+                    return keyEnd + 1;
+            }
+            i = keyEnd;
+        }
+    }
+
+    int tagValueEnd(int from) {
+        while (from < tagsEnd && line.charAt(from) != ';')
+            from++;
+        return from;
+    }
+
+    private boolean regionEquals(int start, int end, String s) {
+        return end - start == s.length() && line.startsWith(s, start);
+    }
+
+    // raw views for callers that want to avoid creating Strings, only valid until the next call to parse
+    String line() { return line; }
+    int paramStart(int index) { return paramStart[index]; }
+    int paramEnd(int index) { return paramEnd[index]; }
+    int trailingStart() { return hasTrailing ? paramStart[paramCount - 1] : -1; }
+    int trailingEnd() { return hasTrailing ? paramEnd[paramCount - 1] : -1; }
+    int tagValueStart(String key) { return findTag(key); }
+
+    @Override
+    public String toString() {
+        return line.substring(0, length);
+    }
+}
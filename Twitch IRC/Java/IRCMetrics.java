@@ -0,0 +1,209 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a{@code TwitchIRC}instance, cheap enough to stay on in production.
+ * <li>Counters are striped{@code LongAdder}s and histograms are lock-free arrays of log-scaled buckets, so recording from many threads does not contend on a lock.
+ * <li>Every client registers itself as the MBean{@code twitch:type=TwitchIRC,name=<bot>,instance=<n>}, e.g. for JConsole or a JMX exporter.
+ * <li>{@code snapshot()}returns all values at once for callers that poll themselves.
+ */
+public final class IRCMetrics implements IRCMetricsMXBean {
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    final LongAdder linesReceived = new LongAdder();
+    final LongAdder linesSent = new LongAdder();
+    // only every 64th line is timed, taking the time costs more than recording it
+    final Histogram parseNanos = new Histogram();
+    final Histogram dispatchNanos = new Histogram();
+    final Histogram lineGapNanos = new Histogram();
+
+    private final Rate receivedRate = new Rate(linesReceived);
+    private final Rate sentRate = new Rate(linesSent);
+    private volatile IntSupplier callbackQueueDepth = () -> 0;
+    private volatile IntSupplier outboundQueueDepth = () -> 0;
+    private volatile LongSupplier droppedCallbacks = () -> 0;
+    private volatile LongSupplier reconnects = () -> 0;
+    private ObjectName objectName;
+
+    /**
+     * All metrics at the time the snapshot was taken. Durations are in nanoseconds.
+     */
+    public record Snapshot(long linesReceived, double linesReceivedPerSecond, long linesSent, double linesSentPerSecond,
+                           Histogram.Summary parseNanos, Histogram.Summary dispatchNanos, Histogram.Summary lineGapNanos,
+                           int callbackQueueDepth, int outboundQueueDepth, long droppedCallbacks, long reconnects) {}
+
+    // the gauges are read from the parts of the client when the metrics are read
+    void setGauges(IntSupplier callbackQueueDepth, IntSupplier outboundQueueDepth, LongSupplier droppedCallbacks, LongSupplier reconnects) {
+        this.callbackQueueDepth = callbackQueueDepth;
+        this.outboundQueueDepth = outboundQueueDepth;
+        this.droppedCallbacks = droppedCallbacks;
+        this.reconnects = reconnects;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(linesReceived.sum(), receivedRate.get(), linesSent.sum(), sentRate.get(),
+                parseNanos.summary(), dispatchNanos.summary(), lineGapNanos.summary(),
+                callbackQueueDepth.getAsInt(), outboundQueueDepth.getAsInt(), droppedCallbacks.getAsLong(), reconnects.getAsLong());
+    }
+
+    @Override public long getLinesReceived() { return linesReceived.sum(); }
+    @Override public double getLinesReceivedPerSecond() { return receivedRate.get(); }
+    @Override public long getLinesSent() { return linesSent.sum(); }
+    @Override public double getLinesSentPerSecond() { return sentRate.get(); }
+    @Override public long getParseNanosP50() { return parseNanos.percentile(0.5); }
+    @Override public long getParseNanosP99() { return parseNanos.percentile(0.99); }
+    @Override public long getDispatchLatencyMicrosP50() { return TimeUnit.NANOSECONDS.toMicros(dispatchNanos.percentile(0.5)); }
+    @Override public long getDispatchLatencyMicrosP99() { return TimeUnit.NANOSECONDS.toMicros(dispatchNanos.percentile(0.99)); }
+    @Override public long getDispatchLatencyMicrosMax() { return TimeUnit.NANOSECONDS.toMicros(dispatchNanos.max()); }
+    @Override public long getLineGapMillisP99() { return TimeUnit.NANOSECONDS.toMillis(lineGapNanos.percentile(0.99)); }
+    @Override public long getLineGapMillisMax() { return TimeUnit.NANOSECONDS.toMillis(lineGapNanos.max()); }
+    @Override public int getCallbackQueueDepth() { return callbackQueueDepth.getAsInt(); }
+    @Override public int getOutboundQueueDepth() { return outboundQueueDepth.getAsInt(); }
+    @Override public long getDroppedCallbacks() { return droppedCallbacks.getAsLong(); }
+    @Override public long getReconnects() { return reconnects.getAsLong(); }
+
+    synchronized void register(String botName) {
+        try {
+            objectName = new ObjectName("twitch:type=TwitchIRC,name=" + ObjectName.quote(String.valueOf(botName)) + ",instance=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void unregister() {
+        if(objectName == null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    /**
+     * A lock-free histogram of non-negative values (e.g. nanoseconds) with 4 buckets per power of two, so percentiles are within 25% of the real value.
+     * <li>Recording is a single atomic add and does not allocate. The count and the mean are computed from the buckets when they are read.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        public record Summary(long count, long mean, long p50, long p90, long p99, long max) {}
+
+        public void record(long value) {
+            if(value < 0)
+                value = 0;
+            buckets.getAndIncrement(bucket(value));
+            // most values are below the maximum, the CAS is only tried for a new maximum
+            if(value > max.get())
+                max.accumulateAndGet(value, Math::max);
+        }
+
+        public long count() {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                n += buckets.get(i);
+            return n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * Returns the upper bound of the bucket that holds the given percentile (0 to 1), or 0 if nothing was recorded.
+         */
+        public long percentile(double percentile) {
+            long[] copy = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                n += copy[i] = buckets.get(i);
+            return percentile(copy, n, percentile);
+        }
+
+        public Summary summary() {
+            long[] copy = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                n += copy[i] = buckets.get(i);
+            // the middle of a bucket stands for all of its values
+            double sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if(copy[i] != 0)
+                    sum += copy[i] * (i == 0 ? 0 : (upperBound(i - 1) + 1 + upperBound(i)) / 2.0);
+            }
+            return new Summary(n, n == 0 ? 0 : Math.min((long) (sum / n), max.get()), percentile(copy, n, 0.5), percentile(copy, n, 0.9), percentile(copy, n, 0.99), max.get());
+        }
+
+        private long percentile(long[] counts, long n, double percentile) {
+            if(n == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile * n);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if(seen >= Math.max(1, rank))
+                    return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        // values below 4 have their own bucket, above that every power of two is split into 4 buckets
+        static int bucket(long value) {
+            if(value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return Math.min(BUCKETS - 1, ((exponent - 1) << 2) + (int) ((value >>> (exponent - 2)) & 3));
+        }
+
+        static long upperBound(int bucket) {
+            if(bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = (bucket >>> 2) + 1;
+            return ((SUB_BUCKETS + (bucket & 3) + 1L) << (exponent - 2)) - 1;
+        }
+    }
+
+    // the rate between the last two reads that were at least a second apart, so polling does not need a timer thread
+    private static final class Rate {
+        private final LongAdder counter;
+        private long lastNanos;
+        private long lastCount;
+        private double perSecond;
+
+        Rate(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        synchronized double get() {
+            long now = System.nanoTime();
+            long count = counter.sum();
+            if(lastNanos == 0) {
+                lastNanos = now;
+                lastCount = count;
+            } else if(now - lastNanos >= TimeUnit.SECONDS.toNanos(1)) {
+                perSecond = (count - lastCount) * 1e9 / (now - lastNanos);
+                lastNanos = now;
+                lastCount = count;
+            }
+            return perSecond;
+        }
+    }
+}
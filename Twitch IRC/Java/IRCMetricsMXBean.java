@@ -0,0 +1,22 @@
+/**
+ * The JMX view of{@code IRCMetrics}.
+ * <li>Rates are measured between two reads that are at least a second apart, the first read returns 0.
+ */
+public interface IRCMetricsMXBean {
+    long getLinesReceived();
+    double getLinesReceivedPerSecond();
+    long getLinesSent();
+    double getLinesSentPerSecond();
+    long getParseNanosP50();
+    long getParseNanosP99();
+    long getDispatchLatencyMicrosP50();
+    long getDispatchLatencyMicrosP99();
+    long getDispatchLatencyMicrosMax();
+    // the time between two lines of the same connection, a large gap means the connection was stalled
+    long getLineGapMillisP99();
+    long getLineGapMillisMax();
+    int getCallbackQueueDepth();
+    int getOutboundQueueDepth();
+    long getDroppedCallbacks();
+    long getReconnects();
+}
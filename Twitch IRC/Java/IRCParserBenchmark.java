@@ -0,0 +1,130 @@
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the old{@code split(" ", 4)}based line handling with{@code IRCMessage}on lines that look like real Twitch traffic.
+ * <li>Both run once on untagged lines and once on the same lines with the tags of the twitch.tv/tags capability, where both read the user-id tag.
+ * <li>Reports ns per line and allocated bytes per line of the calling thread.
+ * <li>Run with:{@code java IRCParserBenchmark [lines] [rounds]}
+ */
+public class IRCParserBenchmark {
+    private static long sink;
+
+    public static void main(String[] args) {
+        int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        // the same seed, so both sets have the same prefixes, channels and texts
+        String[] lines = createLines(lineCount, new Random(42), false);
+        String[] taggedLines = createLines(lineCount, new Random(42), true);
+        System.out.printf("%d lines, average %d chars per line untagged, %d tagged%n", lineCount, averageLength(lines), averageLength(taggedLines));
+
+        // warm up both paths so that the JIT compiled them before measuring
+        for (int i = 0; i < 5; i++) {
+            runSplit(lines, false);
+            runSplit(taggedLines, true);
+            runParser(lines, new IRCMessage(), false);
+            runParser(taggedLines, new IRCMessage(), true);
+        }
+
+        IRCMessage message = new IRCMessage();
+        for (int round = 0; round < rounds; round++) {
+            measure("split", lines, () -> runSplit(lines, false));
+            measure("parser", lines, () -> runParser(lines, message, false));
+            measure("split + tags", taggedLines, () -> runSplit(taggedLines, true));
+            measure("parser + tags", taggedLines, () -> runParser(taggedLines, message, true));
+        }
+        System.out.println(sink == 42 ? "" : " ");
+    }
+
+    private static void measure(String name, String[] lines, Runnable run) {
+        long bytesBefore = allocatedBytes();
+        long start = System.nanoTime();
+        run.run();
+        long nanos = System.nanoTime() - start;
+        long bytes = allocatedBytes() - bytesBefore;
+        System.out.printf("%-20s %7.1f ns/line %7.1f bytes/line%n", name, (double) nanos / lines.length, (double) bytes / lines.length);
+    }
+
+    // the same work MessageHandler did before IRCMessage existed, with the tags split into a map first like it would have to for the user-id
+    private static void runSplit(String[] lines, boolean readTag) {
+        for (String serverMessage : lines) {
+            Map<String, String> tags = null;
+            if(readTag && serverMessage.charAt(0) == '@') {
+                int space = serverMessage.indexOf(' ');
+                tags = new HashMap<>();
+                for (String tag : serverMessage.substring(1, space).split(";")) {
+                    int equals = tag.indexOf('=');
+                    tags.put(equals < 0 ? tag : tag.substring(0, equals), equals < 0 ? "" : tag.substring(equals + 1));
+                }
+                serverMessage = serverMessage.substring(space + 1);
+            }
+
+            String[] sM = serverMessage.split(" ", 4);
+            if(sM[0].equals("PING")) {
+                sink += sM[1].length();
+            } else if(sM[1].equals("PRIVMSG")) {
+                String user = sM[0].substring(1, Math.max(1, sM[0].indexOf("!")));
+                String channel = sM[2].substring(1);
+                String msg = sM[3].substring(1);
+                sink += user.length() + channel.length() + msg.length();
+                if(tags != null)
+                    sink += Long.parseLong(tags.getOrDefault("user-id", "0"));
+            }
+        }
+    }
+
+    // the same work MessageHandler does now, including the Strings passed to onChatMessage
+    private static void runParser(String[] lines, IRCMessage message, boolean readTag) {
+        for (String serverMessage : lines) {
+            if(!message.parse(serverMessage))
+                continue;
+            if(message.isCommand("PING")) {
+                sink += message.trailing().length();
+            } else if(message.isCommand("PRIVMSG")) {
+                sink += message.channel(0).length() + message.nick().length() + message.trailing().length();
+                if(readTag)
+                    sink += message.tagAsLong("user-id", 0);
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static long averageLength(String[] lines) {
+        long totalChars = 0;
+        for (String line : lines)
+            totalChars += line.length();
+        return totalChars / lines.length;
+    }
+
+    // PRIVMSG lines with a PING every 500 lines, tagged like they are sent with the twitch.tv/tags capability or untagged like without it
+    private static String[] createLines(int count, Random random, boolean isTagged) {
+        String[] words = { "Kappa", "PogChamp", "LUL", "gg", "that", "was", "insane", "chat", "is", "this", "real", "monkaS", "KEKW", "no", "way" };
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            if(i % 500 == 0) {
+                lines[i] = "PING :tmi.twitch.tv";
+                continue;
+            }
+
+            String user = "viewer" + random.nextInt(50_000);
+            String channel = "channel" + random.nextInt(200);
+            StringBuilder text = new StringBuilder();
+            int wordCount = 1 + random.nextInt(20);
+            for (int w = 0; w < wordCount; w++)
+                text.append(w == 0 ? "" : " ").append(words[random.nextInt(words.length)]);
+
+            // the tags are always drawn, so the untagged and the tagged set get the same random numbers
+            String tags = "@badge-info=subscriber/" + random.nextInt(60) + ";badges=subscriber/12,premium/1;client-nonce=" + Long.toHexString(random.nextLong())
+                    + ";color=#1E90FF;display-name=" + user + ";emotes=;first-msg=0;flags=;id=" + new java.util.UUID(random.nextLong(), random.nextLong())
+                    + ";mod=0;returning-chatter=0;room-id=" + (10_000 + random.nextInt(200)) + ";subscriber=1;tmi-sent-ts=" + (1_700_000_000_000L + i)
+                    + ";turbo=0;user-id=" + (100_000 + random.nextInt(50_000)) + ";user-type= ";
+            lines[i] = (isTagged ? tags : "") + ":" + user + "!" + user + "@" + user + ".tmi.twitch.tv PRIVMSG #" + channel + " :" + text;
+        }
+        return lines;
+    }
+}
@@ -1,20 +1,26 @@
 public class MyClient extends TwitchIRC{
     public MyClient(String oauthToken, String botName) {
         super(oauthToken, botName);
+        addCommands();
+    }
+
+    public MyClient(String oauthToken, String botName, IRCEngine engine) {
+        super(oauthToken, botName, engine);
+        addCommands();
+    }
+
+    private void addCommands() {
+        // addCommand("!test", (channel, username, arguments) -> sendChatMessage(channel, "Test"));
+        // addCommand("!hug", 30_000, 5_000, (channel, username, arguments) -> sendChatMessage(channel, username + " hugs " + arguments));
+        // addCommand("!quit", (channel, username, arguments) -> {
+        //     if(username.equals("<USERNAME>"))
+        //         close();
+        // });
     }
 
     @Override
     public void onChatMessage(String channel, String username, String message) {
-        String command = getCommand(message);
-        switch (command.toLowerCase()) {
-            // case "!test" : 
-            //     sendChatMessage(channel, "Test");
-            //     break;
-            // case "!quit" :
-            //     if(username.equals("<USERNAME>"))
-            //         close();
-            //     break;
-        }
+        // System.out.println("[" + channel + "] " + username + ": " + message);
     }
 
     @Override
@@ -32,14 +38,6 @@ public class MyClient extends TwitchIRC{
         // System.out.println("[Twitch] " + response);
     }
 
-    public String getCommand(String str) {
-        int spaceIndex = str.indexOf(' ');
-        if(spaceIndex > 0)
-            return str.substring(0, spaceIndex);
-        else
-            return str;
-    }
-
     public static void main(String[] args) {
         // MyClient client = new MyClient("<OAUTH TOKEN>", "<BOT CHANNEL NAME>");
     }
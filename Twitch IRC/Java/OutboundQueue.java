@@ -0,0 +1,250 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues outgoing chat messages and JOINs of one{@code TwitchIRC}instance and sends them within Twitch's rate limits.
+ * <li>Chat messages and JOINs have their own limiter. Twitch counts all chat messages of a user in one window, messages in channels where the bot is a moderator
+ *     only may go up to the higher moderator limit, so both share one limiter that is checked against the limit of the message.
+ * <li>Pending JOINs of the same connection are merged into{@code JOIN #a,#b,...}and all lines that may be sent are written to a connection at once.
+ * <li>Twitch rate limits: https://dev.twitch.tv/docs/irc/#rate-limits
+ */
+final class OutboundQueue {
+    /**
+     * Limits of an account that is not a verified bot.
+     */
+    static final int DEFAULT_CHAT_PER_30_SECONDS = 20;
+    static final int DEFAULT_MODERATOR_PER_30_SECONDS = 100;
+    static final int DEFAULT_JOINS_PER_10_SECONDS = 20;
+
+    // twitch counts lines when it receives them, the margin keeps network jitter from pushing two windows together
+    private static final long SAFETY_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final int MAX_LINE_LENGTH = 500;
+    private static final int MAX_QUEUED = 10_000;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> chat = new ArrayDeque<>();
+    private final ArrayDeque<Pending> moderator = new ArrayDeque<>();
+    private final ArrayDeque<Pending> joins = new ArrayDeque<>();
+    private RateLimiter chatLimiter;
+    private RateLimiter joinLimiter;
+    private int chatLimit;
+    private int moderatorLimit;
+
+    private final IRCMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledFlush;
+    private long scheduledFlushAt;
+
+    private record Pending(TwitchIRC.Connection connection, String line) {}
+
+    OutboundQueue(IRCMetrics metrics) {
+        this.metrics = metrics;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "TwitchIRC-outbound");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        scheduler = executor;
+        setLimits(DEFAULT_CHAT_PER_30_SECONDS, DEFAULT_MODERATOR_PER_30_SECONDS, DEFAULT_JOINS_PER_10_SECONDS);
+    }
+
+    /**
+     * Changes the limits. The lines sent within the last window still count, so raising or lowering a limit never allows a burst.
+     */
+    void setLimits(int chatPer30Seconds, int moderatorPer30Seconds, int joinsPer10Seconds) {
+        if(chatPer30Seconds < 1 || moderatorPer30Seconds < 1 || joinsPer10Seconds < 1)
+            throw new IllegalArgumentException("the limits have to be at least 1");
+        synchronized(lock) {
+            chatLimit = chatPer30Seconds;
+            moderatorLimit = Math.max(chatPer30Seconds, moderatorPer30Seconds);
+            chatLimiter = new RateLimiter(moderatorLimit, TimeUnit.SECONDS.toNanos(30), chatLimiter);
+            joinLimiter = new RateLimiter(joinsPer10Seconds, TimeUnit.SECONDS.toNanos(10), joinLimiter);
+            // a flush that waits for the old limits could be too late or too early now
+            if(!scheduler.isShutdown() && size() > 0)
+                scheduleFlush(0);
+        }
+    }
+
+    /**
+     * Queues a PRIVMSG line. Returns false if the queue is full and the line was dropped.
+     */
+    boolean chat(TwitchIRC.Connection connection, String line, boolean isModerator) {
+        return offer(isModerator ? moderator : chat, new Pending(connection, line));
+    }
+
+    /**
+     * Queues the JOINs of the channels. They are sent merged with other pending JOINs of the same connection.
+     * <li>Returns false if the queue is full and some of the channels were dropped.
+     */
+    boolean join(TwitchIRC.Connection connection, List<String> channels) {
+        synchronized(lock) {
+            for (String channel : channels) {
+                if(!offer(joins, new Pending(connection, channel)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        synchronized(lock) {
+            return chat.size() + moderator.size() + joins.size();
+        }
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+        synchronized(lock) {
+            chat.clear();
+            moderator.clear();
+            joins.clear();
+        }
+    }
+
+    private boolean offer(ArrayDeque<Pending> queue, Pending pending) {
+        synchronized(lock) {
+            if(queue.size() >= MAX_QUEUED || scheduler.isShutdown())
+                return false;
+            queue.add(pending);
+            // many lines queued in a burst are sent by a single flush
+            scheduleFlush(0);
+        }
+        return true;
+    }
+
+    // has to be called while holding the lock
+    private void scheduleFlush(long delayNanos) {
+        long at = System.nanoTime() + delayNanos;
+        if(scheduledFlush != null && !scheduledFlush.isDone() && scheduledFlushAt - at <= 0)
+            return;
+        if(scheduledFlush != null)
+            scheduledFlush.cancel(false);
+        scheduledFlushAt = at;
+        scheduledFlush = scheduler.schedule(this::flush, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void flush() {
+        Map<TwitchIRC.Connection, List<String>> batches = new LinkedHashMap<>();
+        synchronized(lock) {
+            scheduledFlush = null;
+            long now = System.nanoTime();
+
+            Map<TwitchIRC.Connection, StringBuilder> joinLines = new LinkedHashMap<>();
+            while (!joins.isEmpty() && (!joins.peek().connection().isConnected() || joinLimiter.tryAcquire(now, joinLimiter.capacity()))) {
+                Pending pending = joins.poll();
+                if(!pending.connection().isConnected())
+                    continue;
+                StringBuilder sb = joinLines.get(pending.connection());
+                if(sb != null && sb.length() + pending.line().length() + 2 > MAX_LINE_LENGTH) {
+                    batches.computeIfAbsent(pending.connection(), c -> new ArrayList<>()).add(sb.toString());
+                    sb = null;
+                }
+                if(sb == null) {
+                    sb = new StringBuilder("JOIN ");
+                    joinLines.put(pending.connection(), sb);
+                } else {
+                    sb.append(',');
+                }
+                sb.append('#').append(pending.line());
+            }
+            joinLines.forEach((connection, sb) -> batches.computeIfAbsent(connection, c -> new ArrayList<>()).add(sb.toString()));
+
+            // the moderator messages go second, they may still have room after the chat messages used up the normal limit
+            drain(chat, chatLimiter, chatLimit, now, batches);
+            drain(moderator, chatLimiter, moderatorLimit, now, batches);
+
+            long delay = Long.MAX_VALUE;
+            if(!joins.isEmpty())
+                delay = Math.min(delay, joinLimiter.nanosUntilAvailable(now, joinLimiter.capacity()));
+            if(!chat.isEmpty())
+                delay = Math.min(delay, chatLimiter.nanosUntilAvailable(now, chatLimit));
+            if(!moderator.isEmpty())
+                delay = Math.min(delay, chatLimiter.nanosUntilAvailable(now, moderatorLimit));
+            if(delay != Long.MAX_VALUE && !scheduler.isShutdown())
+                scheduleFlush(delay);
+        }
+
+        // the writes happen outside of the lock, so queuing a line never waits on a socket
+        batches.forEach((connection, lines) -> {
+            metrics.linesSent.add(lines.size());
+            connection.sendAll(lines);
+        });
+    }
+
+    private static void drain(ArrayDeque<Pending> queue, RateLimiter limiter, int limit, long now, Map<TwitchIRC.Connection, List<String>> batches) {
+        while (!queue.isEmpty()) {
+            Pending pending = queue.peek();
+            if(pending.connection().isConnected()) {
+                if(!limiter.tryAcquire(now, limit))
+                    return;
+                batches.computeIfAbsent(pending.connection(), c -> new ArrayList<>()).add(pending.line());
+            }
+            queue.poll();
+        }
+    }
+
+    /**
+     * Allows at most{@code limit}acquires in any window of{@code windowNanos}, where the limit of each acquire can be anything up to the capacity.
+     * <li>A token bucket refilled at limit/window would allow up to twice the limit in a sliding window after a burst, which is exactly what gets a bot throttled.
+     *     Keeping the timestamps of the last{@code capacity}sends is exact and still O(1).
+     * <li>An acquire with a lower limit counts the sends of higher limits as well, like Twitch counts every chat message of a user.
+     */
+    static final class RateLimiter {
+        private final long[] sent;
+        private final long windowNanos;
+        private int next;
+        private int count;
+
+        /**
+         * Keeps the most recent sends of the previous limiter, so a new limit does not start with an empty window.
+         */
+        RateLimiter(int capacity, long windowNanos, RateLimiter previous) {
+            if(capacity < 1)
+                throw new IllegalArgumentException("capacity has to be at least 1");
+            this.sent = new long[capacity];
+            this.windowNanos = windowNanos + SAFETY_MARGIN_NANOS;
+            if(previous != null) {
+                for (int i = Math.min(previous.count, capacity); i > 0; i--)
+                    record(previous.sentAgo(i));
+            }
+        }
+
+        int capacity() {
+            return sent.length;
+        }
+
+        boolean tryAcquire(long now, int limit) {
+            if(nanosUntilAvailable(now, limit) > 0)
+                return false;
+            record(now);
+            return true;
+        }
+
+        long nanosUntilAvailable(long now, int limit) {
+            if(count < limit)
+                return 0;
+            // the limit-th most recent send has to leave the window
+            return Math.max(0, sentAgo(limit) + windowNanos - now);
+        }
+
+        private void record(long at) {
+            sent[next] = at;
+            next = (next + 1) % sent.length;
+            if(count < sent.length)
+                count++;
+        }
+
+        // 1 is the most recent send
+        private long sentAgo(int i) {
+            return sent[Math.floorMod(next - i, sent.length)];
+        }
+    }
+}
@@ -1,20 +1,138 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class TwitchIRC {
-    private final String ip = "irc.chat.twitch.tv";
-    private final int port = 6667;
-    private MessageHandler messageHandler;
-    private LinkedList<String> connectedChannels = new LinkedList<>();
-    private boolean isAuthorised = false;
+    private final String ip;
+    private final int port;
+    private final long reconnectBaseDelayMillis = 1_000;
+    private final long reconnectMaxDelayMillis = 60_000;
+    // how long the old connection is kept after a RECONNECT while the channels are joined on the new one
+    private final long reconnectDrainMillis = 30_000;
+    private volatile String oauthToken;
+    private final String botName;
+    private final IRCEngine engine;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final ChannelRegistry channels = new ChannelRegistry();
+    private final IRCMetrics metrics = new IRCMetrics();
+    private final OutboundQueue outboundQueue = new OutboundQueue(metrics);
+    private final ChannelDispatcher dispatcher = new ChannelDispatcher(metrics);
+    private final CommandRouter commandRouter = new CommandRouter();
+    private final ScheduledExecutorService supervisor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TwitchIRC-supervisor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean authorisationNotified = new AtomicBoolean();
+    private final AtomicLong reconnectCount = new AtomicLong();
+    private volatile ChatAnalytics analytics;
+    private volatile ChatLog chatLog;
+    private volatile boolean isClosed = false;
+    private volatile boolean isAuthorised = false;
 
-    private class MessageHandler extends Thread {
+    /**
+     * A single connection to the Twitch IRC server. Either a blocking{@code MessageHandler}or a connection driven by an{@code IRCEngine}.
+     */
+    interface Connection {
+        void send(String message);
+        // sends all messages with as few writes as possible
+        void sendAll(List<String> messages);
+        void close();
+        boolean isConnected();
+    }
+
+    /**
+     * Handles a chat command that was added with{@code addCommand}.
+     * <li>{@code arguments}is the text after the command, or an empty String.
+     */
+    @FunctionalInterface
+    public interface CommandHandler {
+        void onCommand(String channel, String username, String arguments);
+    }
+
+    // the state of one connection, all lines of a session are handled by the same thread
+    private final class Session implements IRCEngine.LineHandler {
+        private final IRCMessage message = new IRCMessage();
+        private final Queue<String> pendingJoins = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger channelCount = new AtomicInteger();
+        private Connection connection;
+        private volatile boolean isAuthorised;
+        // set when this connection is closed on purpose, e.g. by close() or after a RECONNECT
+        private volatile boolean closeRequested;
+        // only touched by the reading thread of this session
+        private long lineCount;
+        private long lastLineAt;
+        // the number of failed connection attempts before this one, used for the backoff
+        private volatile int reconnectAttempt;
+        // set by whoever schedules the reconnect of this session, so a failed connect is retried only once
+        private final AtomicBoolean isReconnectScheduled = new AtomicBoolean();
+        // the session this one replaces after a RECONNECT, it is closed once all channels are joined here
+        private volatile Session replaces;
+
+        Session(int reconnectAttempt) {
+            this.reconnectAttempt = reconnectAttempt;
+        }
+
+        @Override
+        public void onLine(String line) {
+            handleLine(this, line);
+        }
+
+        @Override
+        public void onClose() {
+            sessions.remove(this);
+            if(isClosed || closeRequested)
+                channels.removeAll(connection, channel -> forget(channel.getName()));
+            else if(isReconnectScheduled.compareAndSet(false, true))
+                scheduleReconnect(this, reconnectAttempt);
+            if(sessions.isEmpty())
+                TwitchIRC.this.isAuthorised = false;
+        }
+
+        void send(String message) {
+            metrics.linesSent.increment();
+            connection.send(message);
+        }
+
+        // JOINs are held back until the connection is authorised, whoever sees an authorised connection hands them to the outbound queue
+        void join(String channel) {
+            pendingJoins.offer(channel);
+            if(isAuthorised)
+                flushPendingJoins();
+        }
+
+        void flushPendingJoins() {
+            // all JOINs are queued at once, so that the outbound queue can merge them into as few lines as possible
+            List<String> joins = new ArrayList<>();
+            String channel;
+            while ((channel = pendingJoins.poll()) != null)
+                joins.add(channel);
+            if(!joins.isEmpty())
+                outboundQueue.join(connection, joins);
+        }
+    }
+
+    private class MessageHandler extends Thread implements Connection {
+        private final Session session;
         private SocketConnection socketConnection;
-        private boolean isConnected;
+        private volatile boolean isConnected;
         
         private class SocketConnection {
             private Socket socket;
@@ -25,7 +143,7 @@ public abstract class TwitchIRC {
                 try {
                     socket = new Socket(ip, port);
                     reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    writer = new PrintWriter(socket.getOutputStream(), true);
+                    writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
                 } catch (IOException e) {
                     reader = null;
                     writer = null;
@@ -38,13 +156,26 @@ public abstract class TwitchIRC {
                 if(reader != null)
                     try {
                         return reader.readLine();
-                    } catch (IOException e) { e.printStackTrace(); }
+                    } catch (IOException e) {
+                        // closing the socket from another thread ends readLine with an exception as well
+                        if(isConnected)
+                            e.printStackTrace();
+                    }
                 return null;
             }
 
             public void send(String message) {
-                if(writer != null)
+                if(writer != null) {
                     writer.println(message);
+                    writer.flush();
+                }
+            }
+
+            public void sendAll(List<String> messages) {
+                if(writer != null) {
+                    messages.forEach(writer::println);
+                    writer.flush();
+                }
             }
 
             public void close() {
@@ -59,7 +190,8 @@ public abstract class TwitchIRC {
             }
         }
 
-        public MessageHandler(String ip, int port) {
+        public MessageHandler(Session session, String ip, int port) {
+            this.session = session;
             socketConnection = new SocketConnection(ip, port);
             if(socketConnection.socket != null)
                 isConnected = true;
@@ -74,61 +206,315 @@ public abstract class TwitchIRC {
             while (isConnected) {
                 serverMessage = socketConnection.recive();
                 if(serverMessage != null) {
-                    recivedMessage(serverMessage);
-
-                    String[] sM = serverMessage.split(" ", 4);
-
-                    if(sM[0].equals("PING")) 
-                    {
-                        send("PONG " + sM[1]);
-                    }
-                    else if(sM[1].equals("001"))
-                    {
-                        isAuthorised = true;
-                        onSuccessfulAuthorisation();
-                    }
-                    else if(sM[1].equals("366"))
-                    {
-                        String channel = sM[3].substring(1, sM[3].indexOf(' '));
-                        connectedChannels.add(channel);
-                        onSuccessfulJoin(channel);
-                    }
-                    else if(sM[1].equals("PRIVMSG"))
-                    {
-                        String user = sM[0].substring(1, sM[0].indexOf("!"));
-                        String channel = sM[2].substring(1);
-                        String msg = sM[3].substring(1);
-                        onChatMessage(channel, user, msg);
-                    }
+                    session.onLine(serverMessage);
                 } else {
                     close();
                 }
             }
         }
 
+        @Override
         public synchronized void send(String message) {
             if(isConnected)
                 socketConnection.send(message);
         }
 
-        public synchronized void close() {
-            if(isConnected) {
+        @Override
+        public synchronized void sendAll(List<String> messages) {
+            if(isConnected)
+                socketConnection.sendAll(messages);
+        }
+
+        @Override
+        public void close() {
+            synchronized(this) {
+                if(!isConnected)
+                    return;
                 isConnected = false;
-                isAuthorised = false;
                 socketConnection.close();
             }
+            session.onClose();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return isConnected;
         }
     }
 
     public TwitchIRC(String oauthToken, String botName) {
-        // connect to twitch irc
-        messageHandler = new MessageHandler(ip, port);
+        this(oauthToken, botName, null);
+    }
+
+    /**
+     * Uses the given engine instead of a blocking socket and thread. Channels are spread across as many connections as needed, see{@code IRCEngine}.
+     * <li>If{@code engine}is null, a single blocking connection is used like in{@code TwitchIRC(String, String)}.
+     */
+    public TwitchIRC(String oauthToken, String botName, IRCEngine engine) {
+        this(oauthToken, botName, engine, "irc.chat.twitch.tv", 6667);
+    }
+
+    // the address can point to a local server, e.g. the IRCSimulator
+    TwitchIRC(String oauthToken, String botName, IRCEngine engine, String ip, int port) {
+        this.ip = ip;
+        this.port = port;
+        this.oauthToken = oauthToken;
+        this.botName = botName;
+        this.engine = engine;
+        metrics.setGauges(dispatcher::getQueueDepth, outboundQueue::size, dispatcher::getDroppedCount, reconnectCount::get);
+        metrics.register(botName);
+
+        // connect and authorize to twitch irc
+        openSession(0);
+    }
+
+    // the attempt is known before the connect starts, a connection that fails right away is retried with the next backoff step
+    private Session openSession(int reconnectAttempt) {
+        Session session = new Session(reconnectAttempt);
+        sessions.add(session);
+        try {
+            session.connection = engine == null ? new MessageHandler(session, ip, port) : engine.connect(ip, port, session);
+        } catch (RuntimeException e) {
+            // e.g. the engine was closed, a session without a connection must not stay in the list
+            sessions.remove(session);
+            throw e;
+        }
 
-        // authorize to twitch irc
-        if(isConnected()) {
-            messageHandler.send("PASS oauth:" + oauthToken);
-            messageHandler.send("NICK " + botName);
+        if(session.connection.isConnected()) {
+            // tags and commands are needed to know in which channels the bot is a moderator (USERSTATE)
+            session.send("CAP REQ :twitch.tv/tags twitch.tv/commands");
+            session.send("PASS oauth:" + oauthToken);
+            session.send("NICK " + botName);
+        } else {
+            sessions.remove(session);
         }
+        return session;
+    }
+
+    private void scheduleReconnect(Session lost, int attempt) {
+        // exponential backoff with jitter, so that many bots do not reconnect at the same moment after a twitch restart
+        long delay = Math.min(reconnectMaxDelayMillis, reconnectBaseDelayMillis << Math.min(attempt, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        try {
+            supervisor.schedule(() -> reconnect(lost, attempt), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // close() was called in the meantime
+        }
+    }
+
+    // runs on the supervisor thread, opens a new connection and moves all channels of the lost one to it
+    private void reconnect(Session lost, int attempt) {
+        if(isClosed)
+            return;
+
+        Session session;
+        try {
+            session = openSession(attempt + 1);
+        } catch (IllegalStateException e) {
+            // the engine was closed, there is nothing to reconnect to anymore
+            channels.removeAll(lost.connection, channel -> forget(channel.getName()));
+            return;
+        }
+
+        // the channels go to the new session even if its connect failed already, its reconnect takes them along
+        moveChannels(lost, session);
+        if(session.connection.isConnected())
+            reconnectCount.incrementAndGet();
+        else if(session.isReconnectScheduled.compareAndSet(false, true))
+            scheduleReconnect(session, attempt + 1); // a blocking connection that failed does not call onClose
+    }
+
+    // the JOINs are held until the new connection is authorised and then sent merged and rate limited by the outbound queue
+    private void moveChannels(Session from, Session to) {
+        channels.moveAll(from.connection, to.connection, channel -> {
+            to.channelCount.incrementAndGet();
+            to.join(channel.getName());
+        });
+    }
+
+    // runs on the supervisor thread after the server sent RECONNECT
+    private void replace(Session old) {
+        if(isClosed || old.closeRequested || !old.connection.isConnected())
+            return;
+
+        Session session = openSession(0);
+        if(!session.connection.isConnected())
+            return; // the old connection is lost soon and then reconnected like any other
+
+        old.closeRequested = true;
+        session.replaces = old;
+        moveChannels(old, session);
+        supervisor.schedule(() -> old.connection.close(), reconnectDrainMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // closes the replaced connection once the new connection has joined all of its channels
+    private void finishReplace(Session session) {
+        Session old = session.replaces;
+        if(old != null && !channels.hasJoining(session.connection)) {
+            session.replaces = null;
+            old.connection.close();
+        }
+    }
+
+    // reserves room for one channel on a connection, a new connection is opened once all connections are full
+    private synchronized Session reserveSession() {
+        int channelsPerConnection = engine == null ? Integer.MAX_VALUE : engine.getChannelsPerConnection();
+        Session session = null;
+        for (Session s : sessions) {
+            if(s.channelCount.get() < channelsPerConnection && s.connection.isConnected()) {
+                session = s;
+                break;
+            }
+        }
+        if(session == null)
+            session = openSession(0);
+
+        session.channelCount.incrementAndGet();
+        return session;
+    }
+
+    private Session sessionOf(Connection connection) {
+        for (Session session : sessions) {
+            if(session.connection == connection)
+                return session;
+        }
+        return null;
+    }
+
+    // removes a channel that was left or could not be joined
+    private void release(ChannelRegistry.Channel channel) {
+        if(channels.remove(channel)) {
+            Session session = sessionOf(channel.connection());
+            if(session != null)
+                session.channelCount.decrementAndGet();
+            forget(channel.getName());
+        }
+    }
+
+    private void forget(String channel) {
+        dispatcher.removeLane(channel);
+        ChatAnalytics analytics = this.analytics;
+        if(analytics != null)
+            analytics.remove(channel);
+    }
+
+    // runs on the reading thread: protocol handling happens here, user callbacks are handed to the dispatcher
+    private void handleLine(Session session, String serverMessage) {
+        dispatcher.dispatch(ChannelDispatcher.GLOBAL_LANE, () -> recivedMessage(serverMessage));
+
+        long now = System.nanoTime();
+        metrics.linesReceived.increment();
+        if(session.lastLineAt != 0)
+            metrics.lineGapNanos.record(now - session.lastLineAt);
+        session.lastLineAt = now;
+
+        IRCMessage message = session.message;
+        boolean isParsed = message.parse(serverMessage);
+        if((++session.lineCount & 63) == 0)
+            metrics.parseNanos.record(System.nanoTime() - now);
+        if(!isParsed)
+            return;
+
+        ChatLog chatLog = this.chatLog;
+        if(chatLog != null && message.paramCount() > 0 && message.line().charAt(message.paramStart(0)) == '#')
+            chatLog.append(message.channel(0), serverMessage);
+
+        if(message.isCommand("PING")) 
+        {
+            session.send("PONG :" + message.trailing());
+        }
+        else if(message.isCommand("001"))
+        {
+            session.isAuthorised = true;
+            session.reconnectAttempt = 0;
+            session.flushPendingJoins();
+            finishReplace(session);
+            isAuthorised = true;
+            if(authorisationNotified.compareAndSet(false, true))
+                dispatcher.dispatchLifecycle(ChannelDispatcher.GLOBAL_LANE, this::onSuccessfulAuthorisation);
+        }
+        else if(message.isCommand("366"))
+        {
+            String channel = message.channel(1);
+            // a channel joined with a raw JOIN was not counted yet
+            if(channels.get(channel) == null)
+                session.channelCount.incrementAndGet();
+            sendHeld(channels.joined(channel, session.connection));
+            finishReplace(session);
+            dispatcher.dispatchLifecycle(channel, () -> onSuccessfulJoin(channel));
+        }
+        else if(message.isCommand("PRIVMSG"))
+        {
+            String channel = message.channel(0);
+            if(session.replaces == null && session.closeRequested && !isDeliveredBy(session, channel))
+                return; // while draining after a RECONNECT, the new connection delivers the channels it already joined
+
+            String username = message.nick();
+            dispatchChatMessage(channel, username, message);
+
+            ChatAnalytics analytics = this.analytics;
+            if(analytics != null)
+                analytics.record(channel, username, message);
+        }
+        else if(message.isCommand("RECONNECT"))
+        {
+            // twitch is about to restart the server: the new connection is opened before the old one is drained
+            supervisor.execute(() -> replace(session));
+        }
+        else if(message.isCommand("USERSTATE"))
+        {
+            // moderators and the broadcaster have a higher chat rate limit in their channel
+            ChannelRegistry.Channel channel = channels.get(message.channel(0));
+            if(channel != null) {
+                String badges = message.tag("badges");
+                channel.setModerator(message.tagAsLong("mod", 0) == 1 || (badges != null && badges.contains("broadcaster/")));
+            }
+        }
+        else if(message.isCommand("ROOMSTATE"))
+        {
+            ChannelRegistry.Channel channel = channels.get(message.channel(0));
+            if(channel != null)
+                channel.updateRoomState(message.tags());
+        }
+        else if(message.isCommand("PART"))
+        {
+            // the server confirms our own PART with the bot as prefix
+            ChannelRegistry.Channel channel = channels.get(message.channel(0));
+            if(channel != null && channel.getState() == ChannelRegistry.State.PARTING && botName.equalsIgnoreCase(message.nick()))
+                release(channel);
+        }
+        else if(message.isCommand("NOTICE"))
+        {
+            // a JOIN that failed is not answered with 366 but with a NOTICE
+            ChannelRegistry.Channel channel = channels.get(message.channel(0));
+            String msgId = message.tag("msg-id");
+            if(channel != null && channel.getState() == ChannelRegistry.State.JOINING
+                    && ("msg_channel_suspended".equals(msgId) || "msg_banned".equals(msgId) || "tos_ban".equals(msgId)))
+                release(channel);
+        }
+    }
+
+    // hands onChatMessage and the command the message starts with to the lane of the channel, also used by ChatLog.replay
+    void dispatchChatMessage(String channel, String username, IRCMessage message) {
+        String text = message.trailing();
+        dispatcher.dispatch(channel, () -> onChatMessage(channel, username, text));
+
+        CommandRouter.Command command = commandRouter.match(message);
+        if(command != null) {
+            // without the tags capability there are no ids, the hash of the name is good enough for a cooldown
+            long userKey = message.tagAsLong("user-id", username.hashCode() & 0xFFFFFFFFL);
+            long channelKey = message.tagAsLong("room-id", channel.hashCode() & 0xFFFFFFFFL);
+            if(commandRouter.tryAcquire(command, userKey, channelKey)) {
+                String arguments = CommandRouter.arguments(message, command);
+                dispatcher.dispatch(channel, () -> command.handler.onCommand(channel, username, arguments));
+            }
+        }
+    }
+
+    // true if the channel is still delivered by this session, i.e. it was not joined on a new connection yet
+    private boolean isDeliveredBy(Session session, String channel) {
+        ChannelRegistry.Channel c = channels.get(channel);
+        return c == null || c.connection() == session.connection || c.getState() != ChannelRegistry.State.JOINED;
     }
 
     /**
@@ -136,62 +522,228 @@ public abstract class TwitchIRC {
      */
     public final void close() {
         quitAllChannels();
-        messageHandler.close();
+        isClosed = true;
+        supervisor.shutdownNow();
+        sessions.forEach(session -> session.connection.close());
+        outboundQueue.close();
+        dispatcher.close();
+        metrics.unregister();
     }
 
     /**
      * This method will send the passed String to the server, without adding anything extra. It should not be called by the user, unless they have knowledge about the Twitch IRC.
+     * <li>The message is sent right away and does not count towards the rate limits of{@code sendChatMessage}and{@code joinChannel}.
      */
     public final void send(String message) {
         // System.out.println("[USER] " + message);
-        messageHandler.send(message);
+        Session session = first();
+        if(session != null)
+            session.send(message);
+    }
+
+    // a session can be removed between a size check and get(0), the iterator works on a snapshot of the list
+    private Session first() {
+        for (Session session : sessions)
+            return session;
+        return null;
     }
 
     /**
      * This method should be used to join a channel.
+     * <li>It can be called before the bot is authorised, the JOIN is sent once the connection is authorised.
+     * <li>Joined channels are joined again automatically after the connection was lost.
+     * <li>The name is not case sensitive and may start with '#', see{@code ChannelRegistry.normalize}.
      */
     public final void joinChannel(String channel) {
-        if(isAuthorised && !connectedChannels.contains(channel))
-            send("JOIN #" + channel);
+        if(isClosed)
+            return;
+        channel = ChannelRegistry.normalize(channel);
+        ChannelRegistry.Channel current = channels.get(channel);
+        if(current != null) {
+            if(current.getState() != ChannelRegistry.State.PARTING)
+                return;
+            // joining again before the PART was confirmed
+            release(current);
+        }
+
+        Session session = reserveSession();
+        if(channels.beginJoin(channel, session.connection) != null)
+            session.join(channel);
+        else
+            session.channelCount.decrementAndGet();
     }
 
     /**
      * This method should be used to leave a channel.
      */
     public final void quitChannel(String channel) {
-        if(isAuthorised && connectedChannels.contains(channel)) {
-            connectedChannels.remove(channel);
-            send("PART #" + channel);
+        if(!isAuthorised)
+            return;
+        channel = ChannelRegistry.normalize(channel);
+        ChannelRegistry.Channel c = channels.beginPart(channel);
+        if(c != null) {
+            metrics.linesSent.increment();
+            c.connection().send("PART #" + channel);
         }
     }
 
     public final void quitAllChannels() {
         if(isAuthorised)
-            connectedChannels.forEach(channel -> quitChannel(channel));
+            channels.forEach(ChannelRegistry.State.JOINED, channel -> quitChannel(channel.getName()));
     }
 
     /**
      * This method should be used to send a message to a channel.
+     * <li>While the channel is joining, e.g. right after{@code joinChannel}or while its connection is lost and it is joined again on a new one, the message is held and sent once the channel is joined.
+     * <li>At most the last 100 held messages of a channel are kept. They are dropped if the JOIN fails, messages to channels that are not joined or joining are dropped as well.
      */
     public final void sendChatMessage(String channel, String message) {
-        if(isAuthorised && connectedChannels.contains(channel))
-            send("PRIVMSG #" + channel + " :" + message);
+        channel = ChannelRegistry.normalize(channel);
+        ChannelRegistry.Channel c = channels.get(channel);
+        if(c == null)
+            return;
+        if(isHeld(c)) {
+            c.hold(message);
+            // the channel may have been joined while the message was added
+            if(!isHeld(c) && c.getState() == ChannelRegistry.State.JOINED)
+                sendHeld(c);
+        } else if(isAuthorised && c.getState() == ChannelRegistry.State.JOINED) {
+            outboundQueue.chat(c.connection(), "PRIVMSG #" + channel + " :" + message, c.isModerator());
+        }
     }
 
+    // a joined channel whose connection was lost stays joined until the reconnect moves it to the new connection
+    private static boolean isHeld(ChannelRegistry.Channel c) {
+        ChannelRegistry.State state = c.getState();
+        return state == ChannelRegistry.State.JOINING || (state == ChannelRegistry.State.JOINED && !c.connection().isConnected());
+    }
+
+    private void sendHeld(ChannelRegistry.Channel c) {
+        for (String message : c.releaseHeld())
+            outboundQueue.chat(c.connection(), "PRIVMSG #" + c.getName() + " :" + message, c.isModerator());
+    }
+
+    /**
+     * Sends the message to every joined channel. The messages are queued and spread over time so that the chat rate limit is never exceeded.
+     */
     public final void sendChatMessageToAllChannels(String message) {
         if(isAuthorised)
-            connectedChannels.forEach(channel -> sendChatMessage(channel, message));
+            channels.forEach(ChannelRegistry.State.JOINED, channel -> sendChatMessage(channel.getName(), message));
+    }
+
+    /**
+     * Adds a chat command like{@code "!test"}. The handler is called when a chat message starts with the command, ignoring the case.
+     * <li>The handler runs in the lane of the channel, after{@code onChatMessage}of the same message.
+     * <li>Adding a command with the name of an existing command replaces it.
+     */
+    public final void addCommand(String command, CommandHandler handler) {
+        addCommand(command, 0, 0, handler);
+    }
+
+    /**
+     * Adds a chat command with cooldowns. While a cooldown is active, the command is ignored for that user or in that channel.
+     * <li>A cooldown of 0 disables it.
+     */
+    public final void addCommand(String command, long userCooldownMillis, long channelCooldownMillis, CommandHandler handler) {
+        commandRouter.add(command, handler, userCooldownMillis, channelCooldownMillis);
+    }
+
+    /**
+     * Changes the rate limits used for chat messages and JOINs. The defaults are the limits of a normal account (20, 100 and 20).
+     * <li>Verified bots have higher limits, see https://dev.twitch.tv/docs/irc/#rate-limits
+     * <li>Chat messages of all channels count toward one window, in channels where the bot is a moderator it may be filled up to the moderator limit.
+     * <li>Lines sent before the change still count toward the new limits.
+     */
+    public final void setRateLimits(int chatMessagesPer30Seconds, int moderatorMessagesPer30Seconds, int joinsPer10Seconds) {
+        outboundQueue.setLimits(chatMessagesPer30Seconds, moderatorMessagesPer30Seconds, joinsPer10Seconds);
+    }
+
+    /**
+     * Replaces the token for the following connections, e.g. with a refreshed one before the old token expires.
+     * <li>Open connections stay as they are, the token is only sent on connect. A reconnect after a RECONNECT or a lost connection already uses the new one.
+     */
+    public final void setOauthToken(String oauthToken) {
+        this.oauthToken = oauthToken;
+    }
+
+    /**
+     * Returns the number of chat messages and JOINs that wait for the rate limit.
+     */
+    public final int getQueuedMessageCount() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * Returns the channels of this client with their state, room-id and ROOMSTATE.
+     */
+    public final ChannelRegistry getChannels() {
+        return channels;
+    }
+
+    /**
+     * Returns how often a lost connection was opened again.
+     */
+    public final long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    /**
+     * Starts collecting chat statistics of every channel: messages per second, top chatters, top emotes and distinct chatters.
+     * <li>Statistics are updated while the lines are read and cost a few hundred nanoseconds per message. Calling it again returns the running instance.
+     */
+    public final synchronized ChatAnalytics enableAnalytics(int topK) {
+        if(analytics == null)
+            analytics = new ChatAnalytics(topK);
+        return analytics;
+    }
+
+    public final ChatAnalytics enableAnalytics() {
+        return enableAnalytics(ChatAnalytics.DEFAULT_TOP_K);
+    }
+
+    /**
+     * Returns the chat statistics or null if{@code enableAnalytics}was not called.
+     */
+    public final ChatAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    /**
+     * Archives every line of a channel (chat messages, notices, bans, ...) in the log, or stops archiving with null.
+     * <li>The log is not closed by{@code close()}.
+     */
+    public final void setChatLog(ChatLog chatLog) {
+        this.chatLog = chatLog;
+    }
+
+    /**
+     * Returns the counters and latency histograms of this client. They are also registered as a JMX MBean, see{@code IRCMetrics}.
+     */
+    public final IRCMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the dispatcher that runs the callbacks. Use it to change the executor, queue size or overflow policy and to read the queue depth and drop counters.
+     */
+    public final ChannelDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     /**
      * Returns true if still connected to the server.
      */
     public final boolean isConnected() {
-        return messageHandler.isConnected;
+        for (Session session : sessions) {
+            if(session.connection.isConnected())
+                return true;
+        }
+        return false;
     }
 
     /**
      * This method will be called when a user sends a message to a channel that the bot is connected to.
+     * <li>Callbacks of the same channel are called one after another in order, callbacks of different channels can run at the same time. See{@code getDispatcher()}.
      */
     public abstract void onChatMessage(String channel, String username, String message);
     
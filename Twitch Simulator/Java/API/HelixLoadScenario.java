@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Drives{@code TwitchAPIClient},{@code HelixBatcher},{@code HelixScheduler}and{@code LiveStatusPoller}against the{@code HelixSimulator}with the rate limit of Helix.
+ * <li>User lookups at a fixed rate, one request each and through the batcher. The direct ones run into 429 once the bucket of 800 points is empty, the batched ones do not.
+ * <li>Critical requests while the scheduler holds a backlog of background requests that is larger than the bucket.
+ * <li>Polls of 20,000 channels with changing live channels, without a rate limit.
+ * <li>The latency is from the time a request was due until its future completed, waiting in the batcher or the scheduler included. Every round runs a warmup first.
+ * <li>Compile together with the client:{@code javac -d out "Twitch API/Java"/*.java "Twitch Simulator/Java"/*.java "Twitch Simulator/Java/API"/*.java}
+ * <li>Run with:{@code java -cp out HelixLoadScenario [seconds] [lookups per second] [channels]}
+ */
+public class HelixLoadScenario {
+    private static int tokenCount;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int channels = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        try (HelixSimulator helix = new HelixSimulator()) {
+            helix.setLatency(2);
+            for (int round = 0; round < 2; round++) {
+                boolean isMeasured = round == 1;
+                // every round has a new token and with it a full bucket
+                TwitchAPIClient direct = client(helix);
+                long limited = helix.getRateLimitedCount();
+                lookups(isMeasured ? String.format("helix %,d lookups/s direct", rate) : null, rate, seconds, latencies,
+                        login -> direct.getUsersAsync(List.of(login)).thenApply(HelixResponse::isSuccess));
+                if(isMeasured)
+                    System.out.println("  " + (helix.getRateLimitedCount() - limited) + " answered with 429");
+
+                TwitchAPIClient batched = client(helix);
+                HelixScheduler scheduler = new HelixScheduler(TwitchAPIClient.HTTP_CLIENT);
+                batched.setScheduler(scheduler, HelixScheduler.Priority.BACKGROUND);
+                try (HelixBatcher batcher = new HelixBatcher(batched)) {
+                    limited = helix.getRateLimitedCount();
+                    lookups(isMeasured ? String.format("helix %,d lookups/s batched", rate) : null, rate, seconds, latencies,
+                            login -> batcher.getUser(login).thenApply(user -> user != null));
+                    if(isMeasured)
+                        System.out.println("  " + batcher.getRequestCount() + " requests, " + (helix.getRateLimitedCount() - limited) + " answered with 429");
+                }
+            }
+
+            poll(helix, channels, seconds, latencies);
+            critical(helix, seconds, latencies);
+        }
+        System.exit(0);
+    }
+
+    private static TwitchAPIClient client(HelixSimulator helix) {
+        return new TwitchAPIClient("simulator", "token" + ++tokenCount, null, TwitchAPIClient.HTTP_CLIENT, helix.getHelixUri(), helix.getIdUri());
+    }
+
+    // sends the lookups at the rate without waiting for the answers, a null name is a warmup round that is not reported
+    private static void lookups(String name, int rate, int seconds, LatencyHistogram latencies, Function<String, CompletableFuture<Boolean>> lookup) {
+        int count = rate * seconds;
+        LongAdder succeeded = new LongAdder();
+        List<CompletableFuture<?>> futures = new ArrayList<>(count);
+        LoadReport report = name == null ? null : LoadReport.start(name, latencies);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            long due = start + i * TimeUnit.SECONDS.toNanos(1) / rate;
+            LockSupport.parkNanos(due - System.nanoTime());
+            futures.add(lookup.apply("user" + (i % 5_000)).whenComplete((isSuccess, error) -> {
+                latencies.record(System.nanoTime() - due);
+                if(error == null && isSuccess)
+                    succeeded.increment();
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> null).join();
+        if(report != null)
+            report.stop(succeeded.sum());
+    }
+
+    // polls all channels again and again while other channels go live, one poll is one operation per channel
+    private static void poll(HelixSimulator helix, int channels, int seconds, LatencyHistogram latencies) {
+        helix.setRateLimit(Integer.MAX_VALUE / 2);
+        List<String> logins = new ArrayList<>(channels);
+        for (int i = 0; i < channels; i++)
+            logins.add("user" + (1_000_000 + i));
+        LiveStatusPoller poller = new LiveStatusPoller(client(helix), logins);
+        LongAdder events = new LongAdder();
+        poller.addListener(new LiveStatusPoller.Listener() {
+            @Override
+            public void onLive(TwitchAPIClient.Stream stream) {
+                events.increment();
+            }
+
+            @Override
+            public void onOffline(String login, long userId) {
+                events.increment();
+            }
+        });
+        // the first poll only fills the snapshot
+        poller.pollAll().join();
+
+        for (int round = 0; round < 2; round++) {
+            LoadReport report = round == 0 ? null : LoadReport.start(String.format("helix poll %,d channels", channels), latencies);
+            long eventsBefore = events.sum();
+            long polled = 0;
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            while (System.nanoTime() < end) {
+                helix.shuffleLive();
+                long start = System.nanoTime();
+                poller.pollAll().join();
+                latencies.record(System.nanoTime() - start);
+                polled += channels;
+            }
+            if(report != null) {
+                report.stop(polled);
+                System.out.println("  " + (events.sum() - eventsBefore) + " live and offline events, " + poller.getLiveCount() + " live now");
+            }
+        }
+        poller.close();
+        helix.setRateLimit(HelixSimulator.DEFAULT_RATE_LIMIT);
+    }
+
+    // a backlog of background requests larger than the bucket, critical requests have to pass it
+    private static void critical(HelixSimulator helix, int seconds, LatencyHistogram latencies) {
+        HelixScheduler scheduler = new HelixScheduler(TwitchAPIClient.HTTP_CLIENT);
+        TwitchAPIClient background = client(helix);
+        background.setScheduler(scheduler, HelixScheduler.Priority.BACKGROUND);
+        TwitchAPIClient critical = new TwitchAPIClient("simulator", "token" + tokenCount, null, TwitchAPIClient.HTTP_CLIENT, helix.getHelixUri(), helix.getIdUri());
+        critical.setScheduler(scheduler, HelixScheduler.Priority.CRITICAL);
+
+        long limited = helix.getRateLimitedCount();
+        for (int i = 0; i < 2 * HelixSimulator.DEFAULT_RATE_LIMIT; i++)
+            background.getUsersAsync(List.of("user" + i));
+        lookups(null, 10, 1, latencies, login -> critical.getUsersAsync(List.of(login)).thenApply(HelixResponse::isSuccess));
+        lookups("helix critical past a backlog", 10, seconds, latencies, login -> critical.getUsersAsync(List.of(login)).thenApply(HelixResponse::isSuccess));
+        System.out.printf("  %d background requests still queued, %d answered with 429, %.0f ms average background wait%n", scheduler.getQueuedCount(),
+                helix.getRateLimitedCount() - limited, scheduler.getAverageWaitMillis(HelixScheduler.Priority.BACKGROUND));
+    }
+}
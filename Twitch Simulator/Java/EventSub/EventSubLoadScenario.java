@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives{@code TwitchEventSub}against the{@code EventSubSimulator}and the{@code HelixSimulator}: notification floods at rising rates,
+ * one with fragmented frames and one with a session_reconnect in the middle.
+ * <li>The subscriptions are created on the welcome, like in{@code MyEventSub}. A typed handler for channel.follow is added, so every notification is decoded as well.
+ * <li>The latency is from the time a notification was due at the simulator until{@code onNotificationMessage}runs, so it covers the socket, the frame parser,
+ *     the deduplicator and the dispatcher.
+ * <li>Every rate runs a warmup round first, only the second round is reported.
+ * <li>Compile together with the client:{@code javac -d out "Twitch EventSub/Java"/*.java "Twitch Simulator/Java"/*.java "Twitch Simulator/Java/EventSub"/*.java}
+ * <li>Run with:{@code java -cp out EventSubLoadScenario [broadcasters] [seconds] [notifications per second...]}
+ */
+public class EventSubLoadScenario {
+    public static void main(String[] args) throws Exception {
+        int broadcasters = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int[] rates = { 1_000, 5_000, 20_000 };
+        if(args.length > 2) {
+            rates = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                rates[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder received = new LongAdder();
+        LongAdder decoded = new LongAdder();
+        try (EventSubSimulator simulator = new EventSubSimulator(); HelixSimulator helix = new HelixSimulator()) {
+            SubscriptionClient subscriptions = new SubscriptionClient(SubscriptionClient.HTTP_CLIENT, helix.getSubscriptionsUri());
+            TwitchEventSub eventSub = new TwitchEventSub(simulator.getUri(10), null, null, subscriptions) {
+                @Override
+                public void onWelcomeMessage() {
+                    List<SubscriptionClient.Request> requests = new ArrayList<>();
+                    for (int i = 0; i < broadcasters; i++) {
+                        String broadcaster = Integer.toString(1_000 + i);
+                        requests.add(newSubscription("channel.follow", "2", newCondition().add("broadcaster_user_id", broadcaster).add("moderator_user_id", broadcaster)));
+                    }
+                    subscribeAll(requests, "simulator", "simulator");
+                }
+
+                @Override
+                public void onNotificationMessage(String message) {
+                    long sent = EventSubSimulator.sentNanos(message);
+                    if(sent > 0)
+                        latencies.record(System.nanoTime() - sent);
+                    received.increment();
+                }
+
+                @Override
+                public void event(Event event, String infolog, Throwable error) {
+                    if(error != null || event == Event.WEBSOCKET_ERROR || event == Event.TWITCH_SUBSCRIPTION_FAIL)
+                        super.event(event, infolog, error);
+                }
+            };
+            eventSub.addHandler(SubscriptionType.CHANNEL_FOLLOW, follow -> decoded.increment());
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (helix.getSubscriptionCount() < broadcasters && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            System.out.println(helix.getSubscriptionCount() + " subscriptions on " + simulator.getSessionCount() + " session");
+
+            for (int rate : rates) {
+                round(simulator, null, rate, broadcasters, seconds, latencies, received);
+                round(simulator, String.format("eventsub %,d msg/s", rate), rate, broadcasters, seconds, latencies, received);
+            }
+
+            int rate = rates[rates.length / 2];
+            simulator.setFragmentSize(256);
+            round(simulator, String.format("eventsub %,d msg/s fragmented", rate), rate, broadcasters, seconds, latencies, received);
+            simulator.setFragmentSize(0);
+
+            // the session moves to a new socket while the flood goes on
+            simulator.startFlood(rate, broadcasters);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            long before = received.sum();
+            LoadReport report = LoadReport.start(String.format("eventsub %,d msg/s reconnect", rate), latencies);
+            simulator.reconnect();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            simulator.stopFlood();
+            drain(received);
+            report.stop(received.sum() - before);
+            System.out.println("state " + eventSub.getState() + ", sent " + simulator.getNotificationsSent() + ", received " + received.sum() + ", decoded " + decoded.sum()
+                    + ", duplicates " + eventSub.getMetrics().snapshot().duplicateNotifications());
+            eventSub.close();
+        }
+        System.exit(0);
+    }
+
+    // a null name is a warmup round that is not reported
+    private static void round(EventSubSimulator simulator, String name, int rate, int broadcasters, int seconds, LatencyHistogram latencies, LongAdder received)
+            throws InterruptedException {
+        long before = received.sum();
+        LoadReport report = name == null ? null : LoadReport.start(name, latencies);
+        simulator.startFlood(rate, broadcasters);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        simulator.stopFlood();
+        drain(received);
+        if(report != null)
+            report.stop(received.sum() - before);
+    }
+
+    // waits until no notification arrived for 100 ms, the notifications still in flight belong to the round
+    private static void drain(LongAdder received) throws InterruptedException {
+        long last;
+        do {
+            last = received.sum();
+            Thread.sleep(100);
+        } while (received.sum() != last);
+    }
+}
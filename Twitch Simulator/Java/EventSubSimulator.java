@@ -0,0 +1,450 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for eventsub.wss.twitch.tv that speaks enough of the EventSub WebSocket to drive{@code TwitchEventSub}and{@code EventSubManager}.
+ * <li>Every connection gets a session_welcome with the keepalive_timeout_seconds of its url (10 by default) and a session_keepalive whenever nothing else was sent for that long.
+ * <li>{@code startFlood(rate, broadcasters)}sends channel.follow notifications round robin to all sessions, for the given number of broadcasters, paced every millisecond.
+ *     Every event carries an extra{@code "sim_sent_ns"}with the{@code System.nanoTime()}it was due at, read it with{@code sentNanos(message)}.
+ * <li>{@code reconnect()}sends session_reconnect. The session moves to the socket that connects to its reconnect_url, the old socket delivers until the client closes it.
+ * <li>{@code setFragmentSize(bytes)}splits every message into a text frame and continuation frames, like large notifications arrive from Twitch.
+ * <li>Subscriptions are not created here, the{@code HelixSimulator}answers POST eventsub/subscriptions.
+ */
+public final class EventSubSimulator implements AutoCloseable {
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String SENT_KEY = "\"sim_sent_ns\":";
+    private static final int DEFAULT_KEEPALIVE_SECONDS = 10;
+
+    private final ServerSocket server;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    // the socket that currently delivers each session
+    private final Map<String, Connection> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Simulator-EventSub-flood");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong notificationsSent = new AtomicLong();
+    private final AtomicLong keepalivesSent = new AtomicLong();
+    private final AtomicLong reconnectsSent = new AtomicLong();
+    // only touched by the flood thread
+    private final StringBuilder message = new StringBuilder(1024);
+    private long messageId;
+    private int sessionCursor;
+    private volatile int fragmentSize;
+    private volatile ScheduledFuture<?> flood;
+    private volatile boolean isClosed;
+
+    /**
+     * Listens on a free port of the loopback address.
+     */
+    public EventSubSimulator() throws IOException {
+        this(0);
+    }
+
+    public EventSubSimulator(int port) throws IOException {
+        this.server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "Simulator-EventSub-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        scheduler.scheduleAtFixedRate(this::sendKeepalives, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    public URI getUri() {
+        return URI.create("ws://" + server.getInetAddress().getHostAddress() + ":" + server.getLocalPort() + "/ws");
+    }
+
+    public URI getUri(int keepaliveSeconds) {
+        return URI.create(getUri() + "?keepalive_timeout_seconds=" + keepaliveSeconds);
+    }
+
+    /**
+     * Splits every message into frames of at most this many bytes, 0 sends every message in one frame.
+     */
+    public void setFragmentSize(int bytes) {
+        this.fragmentSize = bytes;
+    }
+
+    /**
+     * Sends{@code notificationsPerSecond}channel.follow notifications spread over all sessions until{@code stopFlood()}.
+     * <li>The broadcaster ids go round robin over{@code broadcasters}, so the client has as many ordered lanes to dispatch to.
+     */
+    public synchronized void startFlood(int notificationsPerSecond, int broadcasters) {
+        stopFlood();
+        long start = System.nanoTime();
+        double nanosPerMessage = 1e9 / notificationsPerSecond;
+        long[] due = { 0 };
+        flood = scheduler.scheduleAtFixedRate(() -> {
+            long count = (long) ((System.nanoTime() - start) / nanosPerMessage);
+            if(count > due[0]) {
+                flood(due[0], count, start, nanosPerMessage, broadcasters);
+                due[0] = count;
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopFlood() {
+        if(flood != null) {
+            flood.cancel(false);
+            flood = null;
+        }
+    }
+
+    /**
+     * Sends session_reconnect to every session, like Twitch before an edge server goes away.
+     */
+    public void reconnect() {
+        for (Map.Entry<String, Connection> entry : sessions.entrySet()) {
+            String url = getUri() + "?reconnect=" + entry.getKey();
+            entry.getValue().send(frame("session_reconnect", session(entry.getKey(), "reconnecting", -1, url)), true);
+            reconnectsSent.incrementAndGet();
+        }
+    }
+
+    /**
+     * Closes all sockets without a close frame, like a lost network. The clients notice it, or their keepalive watchdog does.
+     */
+    public void dropConnections() {
+        for (Connection connection : new ArrayList<>(sessions.values()))
+            connection.close();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getNotificationsSent() {
+        return notificationsSent.get();
+    }
+
+    public long getKeepalivesSent() {
+        return keepalivesSent.get();
+    }
+
+    public long getReconnectsSent() {
+        return reconnectsSent.get();
+    }
+
+    /**
+     * Returns the nanoTime the notification was due at, or -1 if it was not sent by a simulator.
+     */
+    public static long sentNanos(String message) {
+        int index = message.lastIndexOf(SENT_KEY);
+        if(index < 0)
+            return -1;
+        int start = index + SENT_KEY.length();
+        int end = start;
+        while (end < message.length() && Character.isDigit(message.charAt(end)))
+            end++;
+        return end == start ? -1 : Long.parseLong(message, start, end, 10);
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        scheduler.shutdownNow();
+        try {
+            server.close();
+        } catch (IOException e) { e.printStackTrace(); }
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!isClosed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> serve(socket), "Simulator-EventSub-" + threadCount.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if(!isClosed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    // runs on the thread of the socket: the handshake, the welcome and then the frames of the client until it closes
+    private void serve(Socket socket) {
+        Connection connection = null;
+        try {
+            InputStream in = socket.getInputStream();
+            String request = readRequest(in);
+            String path = request.substring(request.indexOf(' ') + 1, request.indexOf(' ', request.indexOf(' ') + 1));
+            String key = header(request, "sec-websocket-key");
+            if(key == null) {
+                socket.close();
+                return;
+            }
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 1 << 16);
+            out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Accept: " + accept(key) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+
+            String reconnectOf = query(path, "reconnect");
+            String keepalive = query(path, "keepalive_timeout_seconds");
+            String id = reconnectOf != null ? reconnectOf : "simulator-session-" + sessionCount.incrementAndGet();
+            int keepaliveSeconds = keepalive != null ? Integer.parseInt(keepalive) : DEFAULT_KEEPALIVE_SECONDS;
+            connection = new Connection(socket, out, id, keepaliveSeconds);
+            // the reconnect url carries the session id, the welcome has the same one
+            connection.send(frame("session_welcome", session(id, "connected", keepaliveSeconds, null)), true);
+            sessions.put(id, connection);
+            connection.read(in);
+        } catch (IOException e) {
+            // closed by the client or by dropConnections()
+        }
+        if(connection != null)
+            connection.close();
+        else {
+            try {
+                socket.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    private void sendKeepalives() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Connection> entry : sessions.entrySet()) {
+            Connection connection = entry.getValue();
+            if(now - connection.lastSentAt >= TimeUnit.SECONDS.toNanos(connection.keepaliveSeconds)) {
+                connection.send(frame("session_keepalive", "{}"), true);
+                keepalivesSent.incrementAndGet();
+            }
+        }
+    }
+
+    // runs on the flood thread: the notifications due from first to last, every socket is flushed once
+    private void flood(long first, long last, long start, double nanosPerMessage, int broadcasters) {
+        List<Connection> targets = new ArrayList<>(sessions.values());
+        if(targets.isEmpty())
+            return;
+        List<Connection> written = new ArrayList<>(targets.size());
+        for (long i = first; i < last; i++) {
+            Connection connection = targets.get(Math.floorMod(sessionCursor++, targets.size()));
+            notification((int) (i % broadcasters), start + (long) (i * nanosPerMessage));
+            if(connection.send(message.toString(), false)) {
+                notificationsSent.incrementAndGet();
+                if(!written.contains(connection))
+                    written.add(connection);
+            }
+        }
+        for (Connection connection : written)
+            connection.flush();
+    }
+
+    // fills message with a channel.follow notification as Twitch sends it
+    private void notification(int broadcaster, long dueNanos) {
+        long id = ++messageId;
+        String broadcasterId = Integer.toString(1_000 + broadcaster);
+        long user = 100_000 + id % 50_000;
+        StringBuilder sb = message;
+        sb.setLength(0);
+        sb.append("{\"metadata\":{\"message_id\":\"simulator-").append(id)
+                .append("\",\"message_type\":\"notification\",\"message_timestamp\":\"").append(Instant.now())
+                .append("\",\"subscription_type\":\"channel.follow\",\"subscription_version\":\"2\"},\"payload\":{\"subscription\":{\"id\":\"simulator-subscription-")
+                .append(broadcasterId).append("\",\"status\":\"enabled\",\"type\":\"channel.follow\",\"version\":\"2\",\"cost\":0,\"condition\":{\"broadcaster_user_id\":\"")
+                .append(broadcasterId).append("\",\"moderator_user_id\":\"").append(broadcasterId)
+                .append("\"},\"transport\":{\"method\":\"websocket\",\"session_id\":\"simulator\"},\"created_at\":\"2024-01-01T00:00:00Z\"},\"event\":{\"user_id\":\"")
+                .append(user).append("\",\"user_login\":\"viewer").append(user).append("\",\"user_name\":\"Viewer").append(user)
+                .append("\",\"broadcaster_user_id\":\"").append(broadcasterId).append("\",\"broadcaster_user_login\":\"streamer").append(broadcasterId)
+                .append("\",\"broadcaster_user_name\":\"Streamer").append(broadcasterId).append("\",\"followed_at\":\"2024-01-01T00:00:00Z\",")
+                .append(SENT_KEY).append(dueNanos).append("}}}");
+    }
+
+    private static String frame(String type, String payload) {
+        return "{\"metadata\":{\"message_id\":\"simulator-" + type + "-" + System.nanoTime() + "\",\"message_type\":\"" + type
+                + "\",\"message_timestamp\":\"" + Instant.now() + "\"},\"payload\":" + payload + "}";
+    }
+
+    private static String session(String id, String status, int keepaliveSeconds, String reconnectUrl) {
+        return "{\"session\":{\"id\":\"" + id + "\",\"status\":\"" + status + "\",\"connected_at\":\"" + Instant.now() + "\",\"keepalive_timeout_seconds\":"
+                + (keepaliveSeconds < 0 ? "null" : Integer.toString(keepaliveSeconds)) + ",\"reconnect_url\":" + (reconnectUrl == null ? "null" : "\"" + reconnectUrl + "\"") + "}}";
+    }
+
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        int b;
+        int matched = 0;
+        // until the empty line that ends the headers
+        while (matched < 4 && (b = in.read()) >= 0) {
+            request.write(b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3)) ? matched + 1 : b == '\r' ? 1 : 0;
+        }
+        if(matched < 4)
+            throw new IOException("The connection was closed during the handshake");
+        return request.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static String header(String request, String name) {
+        for (String line : request.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if(colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name))
+                return line.substring(colon + 1).trim();
+        }
+        return null;
+    }
+
+    private static String query(String path, String name) {
+        int question = path.indexOf('?');
+        if(question < 0)
+            return null;
+        for (String parameter : path.substring(question + 1).split("&")) {
+            if(parameter.startsWith(name + "="))
+                return parameter.substring(name.length() + 1);
+        }
+        return null;
+    }
+
+    private static String accept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // one socket, the frames of the server are written unmasked
+    private final class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final String sessionId;
+        private final int keepaliveSeconds;
+        private volatile long lastSentAt = System.nanoTime();
+        private volatile boolean isClosed;
+
+        Connection(Socket socket, OutputStream out, String sessionId, int keepaliveSeconds) {
+            this.socket = socket;
+            this.out = out;
+            this.sessionId = sessionId;
+            this.keepaliveSeconds = keepaliveSeconds;
+        }
+
+        // reads the masked frames of the client: answers ping and close, everything else is ignored
+        void read(InputStream in) throws IOException {
+            while (true) {
+                int first = in.read();
+                int second = in.read();
+                if(first < 0 || second < 0)
+                    return;
+                long length = second & 0x7F;
+                if(length == 126)
+                    length = (in.read() << 8) | in.read();
+                else if(length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++)
+                        length = (length << 8) | in.read();
+                }
+                byte[] mask = in.readNBytes((second & 0x80) != 0 ? 4 : 0);
+                byte[] payload = in.readNBytes((int) length);
+                for (int i = 0; i < payload.length && mask.length == 4; i++)
+                    payload[i] ^= mask[i & 3];
+
+                int opcode = first & 0x0F;
+                if(opcode == 0x8) {
+                    writeFrame(0x88, payload, true);
+                    return;
+                } else if(opcode == 0x9) {
+                    writeFrame(0x8A, payload, true);
+                }
+            }
+        }
+
+        // false if the socket is closed
+        boolean send(String text, boolean flush) {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            int fragmentSize = EventSubSimulator.this.fragmentSize;
+            synchronized(this) {
+                if(isClosed)
+                    return false;
+                try {
+                    if(fragmentSize <= 0 || payload.length <= fragmentSize) {
+                        writeFrame(0x81, payload, 0, payload.length);
+                    } else {
+                        // a text frame without FIN, continuation frames and the last one with FIN
+                        for (int offset = 0; offset < payload.length; offset += fragmentSize) {
+                            int length = Math.min(fragmentSize, payload.length - offset);
+                            boolean isLast = offset + length == payload.length;
+                            writeFrame((isLast ? 0x80 : 0) | (offset == 0 ? 0x1 : 0x0), payload, offset, length);
+                        }
+                    }
+                    if(flush)
+                        out.flush();
+                    lastSentAt = System.nanoTime();
+                    return true;
+                } catch (IOException e) {
+                    close();
+                    return false;
+                }
+            }
+        }
+
+        synchronized void flush() {
+            if(isClosed)
+                return;
+            try {
+                out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private synchronized void writeFrame(int first, byte[] payload, boolean flush) throws IOException {
+            if(isClosed)
+                return;
+            writeFrame(first, payload, 0, payload.length);
+            if(flush)
+                out.flush();
+        }
+
+        private void writeFrame(int first, byte[] payload, int offset, int length) throws IOException {
+            out.write(first);
+            if(length < 126) {
+                out.write(length);
+            } else if(length <= 0xFFFF) {
+                out.write(126);
+                out.write(length >>> 8);
+                out.write(length & 0xFF);
+            } else {
+                out.write(127);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    out.write((int) ((long) length >>> shift) & 0xFF);
+            }
+            out.write(payload, offset, length);
+        }
+
+        void close() {
+            synchronized(this) {
+                if(isClosed)
+                    return;
+                isClosed = true;
+            }
+            sessions.remove(sessionId, this);
+            try {
+                socket.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for api.twitch.tv/helix and id.twitch.tv/oauth2 that answers enough requests to drive{@code TwitchAPIClient},
+ * the{@code HelixScheduler}, the{@code LiveStatusPoller}, the{@code TokenManager}and the{@code SubscriptionClient}of EventSub.
+ * <li>GET users (login and id), streams (user_login and user_id, first and after), videos (id), POST eventsub/subscriptions and GET oauth2/validate.
+ * <li>Every login exists and has a stable id, except logins that start with "missing". Ids resolve to the login "user" + id.
+ * <li>{@code setLiveRatio}decides which part of the channels is live,{@code shuffleLive()}picks other ones, so a poller sees channels go live and offline.
+ * <li>Every Client-Id and token has a bucket of{@code setRateLimit}points per minute, like Helix. Every response carries Ratelimit-Limit, Ratelimit-Remaining and Ratelimit-Reset,
+ *     an empty bucket is answered with 429.
+ * <li>Users and videos carry an ETag and are answered with 304 to a matching If-None-Match.
+ * <li>Tokens that start with "invalid" are answered with 401 by validate.
+ */
+public final class HelixSimulator implements AutoCloseable {
+    public static final int DEFAULT_RATE_LIMIT = 800;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong rateLimitedCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong subscriptionCount = new AtomicLong();
+    private final AtomicLong validationCount = new AtomicLong();
+    private volatile int rateLimit = DEFAULT_RATE_LIMIT;
+    private volatile long latencyMillis;
+    private volatile double liveRatio = 0.1;
+    private volatile int liveEpoch;
+    private volatile long tokenExpiresInSeconds = TimeUnit.HOURS.toSeconds(4);
+
+    /**
+     * Listens on a free port of the loopback address.
+     */
+    public HelixSimulator() throws IOException {
+        this(0);
+    }
+
+    public HelixSimulator(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 128);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Simulator-Helix-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/helix/", this::helix);
+        server.createContext("/oauth2/validate", this::validate);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * The base uri for{@code TwitchAPIClient}, in place of https://api.twitch.tv/helix/.
+     */
+    public URI getHelixUri() {
+        return URI.create("http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/helix/");
+    }
+
+    /**
+     * The base uri for{@code TwitchAPIClient}, in place of https://id.twitch.tv/oauth2/.
+     */
+    public URI getIdUri() {
+        return URI.create("http://" + server.getAddress().getAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/oauth2/");
+    }
+
+    /**
+     * The uri for the{@code SubscriptionClient}of EventSub.
+     */
+    public URI getSubscriptionsUri() {
+        return getHelixUri().resolve("eventsub/subscriptions");
+    }
+
+    /**
+     * The points per minute of every bucket, Helix gives 800 to a user or app token.
+     */
+    public void setRateLimit(int pointsPerMinute) {
+        this.rateLimit = pointsPerMinute;
+        buckets.clear();
+    }
+
+    /**
+     * How long every Helix request takes on the server.
+     */
+    public void setLatency(long millis) {
+        this.latencyMillis = millis;
+    }
+
+    public void setLiveRatio(double liveRatio) {
+        this.liveRatio = liveRatio;
+    }
+
+    /**
+     * Picks other channels to be live, with the same ratio.
+     */
+    public void shuffleLive() {
+        liveEpoch++;
+    }
+
+    public void setTokenExpiresIn(long seconds) {
+        this.tokenExpiresInSeconds = seconds;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimitedCount.get();
+    }
+
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    public long getSubscriptionCount() {
+        return subscriptionCount.get();
+    }
+
+    public long getValidationCount() {
+        return validationCount.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void helix(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requestCount.incrementAndGet();
+            if(latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            String clientId = exchange.getRequestHeaders().getFirst("Client-Id");
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if(clientId == null || authorization == null) {
+                send(exchange, 401, "{\"error\":\"Unauthorized\",\"status\":401,\"message\":\"OAuth token is missing\"}", null);
+                return;
+            }
+            Bucket bucket = buckets.computeIfAbsent(clientId + ' ' + authorization, key -> new Bucket(rateLimit));
+            boolean isAllowed = bucket.take(exchange);
+            if(!isAllowed) {
+                rateLimitedCount.incrementAndGet();
+                send(exchange, 429, "{\"error\":\"Too Many Requests\",\"status\":429,\"message\":\"Too Many Requests\"}", null);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath().substring("/helix/".length());
+            Map<String, List<String>> query = query(exchange.getRequestURI().getRawQuery());
+            switch (path) {
+                case "users" -> sendCached(exchange, users(query));
+                case "streams" -> send(exchange, 200, streams(query), null);
+                case "videos" -> sendCached(exchange, videos(query));
+                case "eventsub/subscriptions" -> subscribe(exchange);
+                default -> send(exchange, 404, "{\"error\":\"Not Found\",\"status\":404,\"message\":\"\"}", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void validate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            validationCount.incrementAndGet();
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            String token = authorization == null ? "" : authorization.substring(authorization.indexOf(' ') + 1);
+            if(token.isEmpty() || token.startsWith("invalid")) {
+                send(exchange, 401, "{\"status\":401,\"message\":\"invalid access token\"}", null);
+                return;
+            }
+            String login = "user" + id(token);
+            send(exchange, 200, "{\"client_id\":\"simulator\",\"login\":\"" + login + "\",\"scopes\":[\"chat:read\",\"chat:edit\"],\"user_id\":\"" + id(login)
+                    + "\",\"expires_in\":" + tokenExpiresInSeconds + "}", null);
+        }
+    }
+
+    private void subscribe(HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestMethod().equals("POST")) {
+            send(exchange, 200, "{\"data\":[],\"total\":" + subscriptionCount.get() + ",\"total_cost\":0,\"max_total_cost\":10000,\"pagination\":{}}", null);
+            return;
+        }
+        exchange.getRequestBody().readAllBytes();
+        long count = subscriptionCount.incrementAndGet();
+        send(exchange, 202, "{\"data\":[{\"id\":\"simulator-subscription-" + count + "\",\"status\":\"enabled\",\"cost\":0}],\"total\":" + count
+                + ",\"total_cost\":0,\"max_total_cost\":10000}", null);
+    }
+
+    private String users(Map<String, List<String>> query) {
+        StringBuilder sb = new StringBuilder("{\"data\":[");
+        List<String> logins = new ArrayList<>(query.getOrDefault("login", List.of()));
+        for (String id : query.getOrDefault("id", List.of()))
+            logins.add("user" + id);
+        boolean isFirst = true;
+        for (String login : logins) {
+            login = login.toLowerCase();
+            if(login.startsWith("missing"))
+                continue;
+            if(!isFirst)
+                sb.append(',');
+            isFirst = false;
+            sb.append("{\"id\":\"").append(id(login)).append("\",\"login\":\"").append(login).append("\",\"display_name\":\"").append(login)
+                    .append("\",\"type\":\"\",\"broadcaster_type\":\"affiliate\",\"description\":\"A simulated channel\",\"profile_image_url\":\"https://example.com/")
+                    .append(login).append(".png\",\"offline_image_url\":\"\",\"view_count\":0,\"created_at\":\"2016-12-14T20:32:28Z\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    // the live streams of the requested channels, one page of first (20 by default, 100 at most) after the cursor
+    private String streams(Map<String, List<String>> query) {
+        List<String> logins = new ArrayList<>(query.getOrDefault("user_login", List.of()));
+        for (String id : query.getOrDefault("user_id", List.of()))
+            logins.add("user" + id);
+        List<String> live = new ArrayList<>();
+        for (String login : logins) {
+            login = login.toLowerCase();
+            if(isLive(login))
+                live.add(login);
+        }
+        int first = Math.min(100, Integer.parseInt(query.getOrDefault("first", List.of("20")).get(0)));
+        int offset = query.containsKey("after") ? Integer.parseInt(query.get("after").get(0).substring(1)) : 0;
+        int end = Math.min(live.size(), offset + first);
+
+        StringBuilder sb = new StringBuilder("{\"data\":[");
+        for (int i = offset; i < end; i++) {
+            String login = live.get(i);
+            long id = id(login);
+            if(i > offset)
+                sb.append(',');
+            sb.append("{\"id\":\"").append(id * 31 + liveEpoch).append("\",\"user_id\":\"").append(id).append("\",\"user_login\":\"").append(login)
+                    .append("\",\"user_name\":\"").append(login).append("\",\"game_id\":\"").append(509658 + (id + liveEpoch) % 5).append("\",\"game_name\":\"Just Chatting\",")
+                    .append("\"type\":\"live\",\"title\":\"Simulated stream ").append(liveEpoch).append("\",\"viewer_count\":").append(id % 10_000)
+                    .append(",\"started_at\":\"2024-01-01T00:00:00Z\",\"language\":\"en\",\"thumbnail_url\":\"https://example.com/").append(login)
+                    .append("-{width}x{height}.jpg\",\"tag_ids\":[],\"tags\":[\"English\"],\"is_mature\":false}");
+        }
+        sb.append("],\"pagination\":{");
+        if(end < live.size())
+            sb.append("\"cursor\":\"o").append(end).append('"');
+        return sb.append("}}").toString();
+    }
+
+    private String videos(Map<String, List<String>> query) {
+        StringBuilder sb = new StringBuilder("{\"data\":[");
+        boolean isFirst = true;
+        for (String id : query.getOrDefault("id", List.of())) {
+            if(!isFirst)
+                sb.append(',');
+            isFirst = false;
+            String login = "user" + id;
+            sb.append("{\"id\":\"").append(id).append("\",\"stream_id\":null,\"user_id\":\"").append(id(login)).append("\",\"user_login\":\"").append(login)
+                    .append("\",\"user_name\":\"").append(login).append("\",\"title\":\"Simulated video ").append(id)
+                    .append("\",\"description\":\"\",\"created_at\":\"2024-01-01T00:00:00Z\",\"published_at\":\"2024-01-01T00:00:00Z\",\"url\":\"https://www.twitch.tv/videos/")
+                    .append(id).append("\",\"thumbnail_url\":\"\",\"viewable\":\"public\",\"view_count\":").append(Math.abs(id.hashCode() % 100_000))
+                    .append(",\"language\":\"en\",\"type\":\"archive\",\"duration\":\"3h8m33s\",\"muted_segments\":null}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private boolean isLive(String login) {
+        // a stable pseudo random number per login and epoch
+        long hash = (id(login) + liveEpoch * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        return (hash >>> 11) * 0x1.0p-53 < liveRatio;
+    }
+
+    private static long id(String login) {
+        if(login.startsWith("user")) {
+            try {
+                return Long.parseLong(login.substring(4));
+            } catch (NumberFormatException e) {
+                // a login like userabc
+            }
+        }
+        return 10_000_000L + (login.hashCode() & 0x7FFFFFFFL);
+    }
+
+    private void sendCached(HttpExchange exchange, String body) throws IOException {
+        String etag = "\"" + Integer.toHexString(body.hashCode()) + "\"";
+        if(etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModifiedCount.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", etag);
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        send(exchange, 200, body, etag);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body, String etag) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if(etag != null)
+            exchange.getResponseHeaders().set("ETag", etag);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // repeated parameters like ?login=a&login=b are kept in order
+    private static Map<String, List<String>> query(String rawQuery) {
+        Map<String, List<String>> query = new HashMap<>();
+        if(rawQuery == null)
+            return query;
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if(equals <= 0)
+                continue;
+            String name = URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8);
+            String value = URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+            query.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+        }
+        return query;
+    }
+
+    // the points of one Client-Id and token, refilled continuously at the limit per minute
+    private static final class Bucket {
+        private final int limit;
+        private double points;
+        private long refilledAt = System.nanoTime();
+
+        Bucket(int limit) {
+            this.limit = limit;
+            this.points = limit;
+        }
+
+        // takes a point if there is one and sets the Ratelimit headers either way
+        synchronized boolean take(HttpExchange exchange) {
+            long now = System.nanoTime();
+            points = Math.min(limit, points + (now - refilledAt) * limit / (double) TimeUnit.MINUTES.toNanos(1));
+            refilledAt = now;
+            boolean isAllowed = points >= 1;
+            if(isAllowed)
+                points--;
+            // the time at which the bucket is full again, in epoch seconds
+            long secondsToFull = (long) Math.ceil((limit - points) * 60 / limit);
+            exchange.getResponseHeaders().set("Ratelimit-Limit", Integer.toString(limit));
+            exchange.getResponseHeaders().set("Ratelimit-Remaining", Integer.toString((int) points));
+            exchange.getResponseHeaders().set("Ratelimit-Reset", Long.toString(System.currentTimeMillis() / 1000 + secondsToFull));
+            return isAllowed;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives{@code TwitchIRC}with an{@code IRCEngine}against the{@code IRCSimulator}: PRIVMSG floods at rising rates, one with a RECONNECT in the middle.
+ * <li>The latency is from the time a message was due at the simulator until{@code onChatMessage}runs, so it covers the socket, the parser, the routing and the dispatcher.
+ * <li>Every rate runs a warmup round first, only the second round is reported.
+ * <li>Compile together with the client:{@code javac -d out "Twitch IRC/Java"/*.java "Twitch Simulator/Java"/*.java "Twitch Simulator/Java/IRC"/*.java}
+ * <li>Run with:{@code java -cp out IRCLoadScenario [channels] [seconds] [messages per second...]}
+ */
+public class IRCLoadScenario {
+    public static void main(String[] args) throws Exception {
+        int channels = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int[] rates = { 5_000, 20_000, 50_000 };
+        if(args.length > 2) {
+            rates = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++)
+                rates[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder received = new LongAdder();
+        try (IRCSimulator simulator = new IRCSimulator(); IRCEngine engine = new IRCEngine()) {
+            TwitchIRC irc = new TwitchIRC("simulator", "simbot", engine, simulator.getHost(), simulator.getPort()) {
+                @Override
+                public void onChatMessage(String channel, String username, String message) {
+                    long sent = IRCSimulator.sentNanos(message);
+                    if(sent > 0)
+                        latencies.record(System.nanoTime() - sent);
+                    received.increment();
+                }
+
+                @Override
+                public void onSuccessfulJoin(String channel) {}
+
+                @Override
+                public void onSuccessfulAuthorisation() {}
+
+                @Override
+                public void recivedMessage(String response) {}
+            };
+            // the simulator does not limit JOINs
+            irc.setRateLimits(20, 100, 10_000);
+            for (int i = 0; i < channels; i++)
+                irc.joinChannel("simulated" + i);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (simulator.getJoinedChannelCount() < channels && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            System.out.println(simulator.getJoinedChannelCount() + " channels on " + simulator.getConnectionCount() + " connections");
+
+            for (int rate : rates) {
+                round(simulator, null, rate, seconds, latencies, received);
+                round(simulator, String.format("irc %,d msg/s", rate), rate, seconds, latencies, received);
+            }
+
+            // twitch restarts a server: the client moves its channels to a new connection while the flood goes on
+            int rate = rates[rates.length / 2];
+            simulator.startFlood(rate);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            long before = received.sum();
+            LoadReport report = LoadReport.start(String.format("irc %,d msg/s reconnect", rate), latencies);
+            simulator.sendReconnect();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            simulator.stopFlood();
+            drain(received);
+            report.stop(received.sum() - before);
+            // messages the simulator still sends to a replaced connection for channels that are joined on the new one are dropped by the client
+            System.out.println("connections after the reconnect " + simulator.getConnectionCount() + ", sent " + simulator.getMessagesSent() + ", received " + received.sum());
+            irc.close();
+        }
+        System.exit(0);
+    }
+
+    // a null name is a warmup round that is not reported
+    private static void round(IRCSimulator simulator, String name, int rate, int seconds, LatencyHistogram latencies, LongAdder received) throws InterruptedException {
+        long before = received.sum();
+        LoadReport report = name == null ? null : LoadReport.start(name, latencies);
+        simulator.startFlood(rate);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        simulator.stopFlood();
+        drain(received);
+        if(report != null)
+            report.stop(received.sum() - before);
+    }
+
+    // waits until no message arrived for 100 ms, the messages still in flight belong to the round
+    private static void drain(LongAdder received) throws InterruptedException {
+        long last;
+        do {
+            last = received.sum();
+            Thread.sleep(100);
+        } while (received.sum() != last);
+    }
+}
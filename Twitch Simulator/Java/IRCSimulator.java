@@ -0,0 +1,411 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local stand-in for irc.chat.twitch.tv that speaks enough of the Twitch IRC to drive{@code TwitchIRC}without a network or an account.
+ * <li>Answers CAP REQ, PASS/NICK with 001 (or the "Login authentication failed" NOTICE for a wrong token), JOIN with JOIN, 353, 366, USERSTATE and ROOMSTATE,
+ *     PART, PING and the PRIVMSGs of the client.
+ * <li>{@code startFlood(rate)}sends PRIVMSGs with the IRCv3 tags Twitch sends today to all joined channels, round robin, paced every millisecond.
+ * <li>Every flooded message ends with{@code SIMULATOR_STAMP}and the{@code System.nanoTime()}it was due at, not when it was written. If the simulator falls behind,
+ *     e.g. because the client does not read, the waiting time counts towards the latency instead of being hidden.
+ * <li>{@code ping()},{@code sendReconnect()}and{@code dropConnections()}trigger the keepalive, the reconnect and the lost connection handling of the client.
+ */
+public final class IRCSimulator implements AutoCloseable {
+    public static final String SIMULATOR_STAMP = " sim:";
+    private static final int USER_COUNT = 1_000;
+    private static final String[] COLORS = { "#1E90FF", "#FF0000", "#008000", "#B22222", "#FF7F50", "#9ACD32", "#FF4500", "#2E8B57", "" };
+    private static final String[] TEXTS = { "Kappa", "LUL that was close", "PogChamp PogChamp", "gg", "what game is this?", "hello chat HeyGuys",
+            "KEKW KEKW KEKW", "is this live?", "@streamer you should try the other route", "monkaS" };
+
+    private final ServerSocket server;
+    private final String token;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ScheduledExecutorService flooder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Simulator-IRC-flood");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong linesReceived = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong joinCount = new AtomicLong();
+    private final AtomicLong pongCount = new AtomicLong();
+    // only touched by the flood thread
+    private final StringBuilder line = new StringBuilder(512);
+    private int channelCursor;
+    private long messageId;
+    private volatile ScheduledFuture<?> flood;
+    private volatile boolean isClosed;
+
+    /**
+     * Listens on a free port of the loopback address, accepts any token.
+     */
+    public IRCSimulator() throws IOException {
+        this(0, null);
+    }
+
+    /**
+     * @param port 0 for a free port
+     * @param token the token the clients have to send with PASS, without "oauth:". null accepts any
+     */
+    public IRCSimulator(int port, String token) throws IOException {
+        this.server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.token = token;
+        Thread acceptor = new Thread(this::accept, "Simulator-IRC-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getHost() {
+        return server.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Sends{@code messagesPerSecond}PRIVMSGs spread over all joined channels until{@code stopFlood()}. Channels joined later are included as they arrive.
+     */
+    public synchronized void startFlood(int messagesPerSecond) {
+        stopFlood();
+        long start = System.nanoTime();
+        double nanosPerMessage = 1e9 / messagesPerSecond;
+        long[] due = { 0 };
+        flood = flooder.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            long count = (long) ((now - start) / nanosPerMessage);
+            if(count > due[0]) {
+                flood(due[0], count, start, nanosPerMessage);
+                due[0] = count;
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopFlood() {
+        if(flood != null) {
+            flood.cancel(false);
+            flood = null;
+        }
+    }
+
+    /**
+     * Sends PING to all clients, they have to answer with PONG.
+     */
+    public void ping() {
+        for (Client client : clients)
+            client.write(":tmi.twitch.tv PING :tmi.twitch.tv", true);
+    }
+
+    /**
+     * Sends RECONNECT to all clients, like Twitch before a server restart. The old connections stay open until the clients close them.
+     */
+    public void sendReconnect() {
+        for (Client client : clients)
+            client.write(":tmi.twitch.tv RECONNECT", true);
+    }
+
+    /**
+     * Closes all connections without a word, like a lost network.
+     */
+    public void dropConnections() {
+        for (Client client : clients)
+            client.close();
+    }
+
+    public int getConnectionCount() {
+        return clients.size();
+    }
+
+    public int getJoinedChannelCount() {
+        int count = 0;
+        for (Client client : clients)
+            count += client.channels.size();
+        return count;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent.get();
+    }
+
+    public long getLinesReceived() {
+        return linesReceived.get();
+    }
+
+    public long getJoinCount() {
+        return joinCount.get();
+    }
+
+    public long getPongCount() {
+        return pongCount.get();
+    }
+
+    @Override
+    public void close() {
+        isClosed = true;
+        flooder.shutdownNow();
+        try {
+            server.close();
+        } catch (IOException e) { e.printStackTrace(); }
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!isClosed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                clients.add(client);
+                Thread reader = new Thread(client::read, "Simulator-IRC-" + threadCount.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if(!isClosed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    // runs on the flood thread: the messages due from first to last, every client is flushed once
+    private void flood(long first, long last, long start, double nanosPerMessage) {
+        List<Client> targets = new ArrayList<>();
+        for (Client client : clients) {
+            if(!client.channels.isEmpty())
+                targets.add(client);
+        }
+        if(targets.isEmpty())
+            return;
+
+        List<Client> written = new ArrayList<>(targets.size());
+        for (long i = first; i < last; i++) {
+            // round robin over all channels of all clients
+            int cursor = channelCursor++;
+            Client client = null;
+            String channel = null;
+            for (int attempt = 0; attempt < targets.size() && channel == null; attempt++) {
+                client = targets.get(Math.floorMod(cursor + attempt, targets.size()));
+                List<String> channels = client.channels;
+                int size = channels.size();
+                if(size > 0) {
+                    try {
+                        channel = channels.get(Math.floorMod(cursor / targets.size(), size));
+                    } catch (IndexOutOfBoundsException e) {
+                        // parted in the meantime
+                    }
+                }
+            }
+            if(channel == null)
+                return;
+
+            privmsg(channel, start + (long) (i * nanosPerMessage));
+            if(client.write(line, false)) {
+                messagesSent.incrementAndGet();
+                if(!written.contains(client))
+                    written.add(client);
+            }
+        }
+        for (Client client : written)
+            client.flush();
+    }
+
+    // fills line with a PRIVMSG as Twitch sends it with the tags capability
+    private void privmsg(String channel, long dueNanos) {
+        long id = ++messageId;
+        int user = (int) ((id * 7919) % USER_COUNT);
+        String name = "viewer" + user;
+        StringBuilder sb = line;
+        sb.setLength(0);
+        sb.append("@badge-info=");
+        if(user % 3 == 0)
+            sb.append("subscriber/").append(user % 48 + 1);
+        sb.append(";badges=");
+        if(user % 50 == 0)
+            sb.append("moderator/1,");
+        if(user % 3 == 0)
+            sb.append("subscriber/").append(user % 12 + 1).append(',');
+        sb.append("premium/1;client-nonce=").append(Long.toHexString(id * 0x9E3779B97F4A7C15L))
+                .append(";color=").append(COLORS[user % COLORS.length])
+                .append(";display-name=Viewer").append(user)
+                .append(";emotes=");
+        String text = TEXTS[(int) (id % TEXTS.length)];
+        if(text.startsWith("Kappa"))
+            sb.append("25:0-4");
+        sb.append(";first-msg=0;flags=;id=");
+        appendUuid(sb, id);
+        sb.append(";mod=").append(user % 50 == 0 ? 1 : 0)
+                .append(";returning-chatter=0;room-id=").append(channel.hashCode() & 0x7FFFFFFF)
+                .append(";subscriber=").append(user % 3 == 0 ? 1 : 0)
+                .append(";tmi-sent-ts=").append(System.currentTimeMillis())
+                .append(";turbo=0;user-id=").append(100_000 + user)
+                .append(";user-type= :").append(name).append('!').append(name).append('@').append(name)
+                .append(".tmi.twitch.tv PRIVMSG ").append(channel).append(" :").append(text)
+                .append(SIMULATOR_STAMP).append(dueNanos);
+    }
+
+    // a uuid made from the id, the clients only see that it is unique
+    private static void appendUuid(StringBuilder sb, long id) {
+        long high = id * 0x9E3779B97F4A7C15L;
+        appendHex(sb, high >>> 32, 8).append('-');
+        appendHex(sb, high >>> 16, 4).append('-');
+        appendHex(sb, high, 4).append('-');
+        appendHex(sb, id >>> 48, 4).append('-');
+        appendHex(sb, id, 12);
+    }
+
+    private static StringBuilder appendHex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            sb.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        return sb;
+    }
+
+    /**
+     * Returns the nanoTime the flooded message was due at, or -1 if it was not sent by a simulator.
+     */
+    public static long sentNanos(String message) {
+        int index = message.lastIndexOf(SIMULATOR_STAMP);
+        if(index < 0)
+            return -1;
+        try {
+            return Long.parseLong(message, index + SIMULATOR_STAMP.length(), message.length(), 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // one connection of a client, its lines are read on its own thread
+    private final class Client {
+        private final Socket socket;
+        private final Writer writer;
+        // the joined channels with #, written by the reading thread
+        final List<String> channels = new CopyOnWriteArrayList<>();
+        private String pass;
+        private String nick = "justinfan";
+        private volatile boolean isClosed;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        void read() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                String received;
+                while ((received = reader.readLine()) != null) {
+                    linesReceived.incrementAndGet();
+                    handle(received);
+                }
+            } catch (IOException e) {
+                // closed by the client or by dropConnections()
+            }
+            close();
+        }
+
+        private void handle(String received) {
+            String host = ":tmi.twitch.tv ";
+            if(received.startsWith("CAP REQ ")) {
+                write(host + "CAP * ACK " + received.substring(8), true);
+            } else if(received.startsWith("PASS ")) {
+                pass = received.substring(5);
+            } else if(received.startsWith("NICK ")) {
+                nick = received.substring(5).trim().toLowerCase();
+                if(token != null && !("oauth:" + token).equals(pass)) {
+                    write(host + "NOTICE * :Login authentication failed", true);
+                    close();
+                    return;
+                }
+                write(host + "001 " + nick + " :Welcome, GLHF!", false);
+                write(host + "002 " + nick + " :Your host is tmi.twitch.tv", false);
+                write(host + "003 " + nick + " :This server is rather new", false);
+                write(host + "004 " + nick + " :-", false);
+                write(host + "375 " + nick + " :-", false);
+                write(host + "372 " + nick + " :You are in a maze of twisty passages, all alike.", false);
+                write(host + "376 " + nick + " :>", true);
+            } else if(received.startsWith("JOIN ")) {
+                for (String channel : received.substring(5).trim().split(",")) {
+                    channel = channel.toLowerCase();
+                    if(!channels.contains(channel))
+                        channels.add(channel);
+                    joinCount.incrementAndGet();
+                    String user = nick + "!" + nick + "@" + nick + ".tmi.twitch.tv";
+                    write(":" + user + " JOIN " + channel, false);
+                    write(":" + nick + ".tmi.twitch.tv 353 " + nick + " = " + channel + " :" + nick, false);
+                    write(":" + nick + ".tmi.twitch.tv 366 " + nick + " " + channel + " :End of /NAMES list", false);
+                    write("@badge-info=;badges=;color=;display-name=" + nick + ";emote-sets=0;mod=0;subscriber=0;user-type= " + host + "USERSTATE " + channel, false);
+                    write("@emote-only=0;followers-only=-1;r9k=0;room-id=" + (channel.hashCode() & 0x7FFFFFFF) + ";slow=0;subs-only=0 " + host + "ROOMSTATE " + channel, false);
+                }
+                flush();
+            } else if(received.startsWith("PART ")) {
+                for (String channel : received.substring(5).trim().split(",")) {
+                    channel = channel.toLowerCase();
+                    channels.remove(channel);
+                    write(":" + nick + "!" + nick + "@" + nick + ".tmi.twitch.tv PART " + channel, false);
+                }
+                flush();
+            } else if(received.startsWith("PING")) {
+                write(host + "PONG tmi.twitch.tv " + received.substring(4).trim(), true);
+            } else if(received.startsWith("PONG")) {
+                pongCount.incrementAndGet();
+            } else if(received.startsWith("PRIVMSG ")) {
+                // twitch confirms a chat message of the bot with USERSTATE
+                int space = received.indexOf(' ', 8);
+                if(space > 0)
+                    write("@badge-info=;badges=;color=;display-name=" + nick + ";emote-sets=0;mod=0;subscriber=0;user-type= " + host + "USERSTATE " + received.substring(8, space), true);
+            }
+        }
+
+        // false if the connection is closed
+        synchronized boolean write(CharSequence line, boolean flush) {
+            if(isClosed)
+                return false;
+            try {
+                writer.append(line).append("\r\n");
+                if(flush)
+                    writer.flush();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        synchronized void flush() {
+            if(isClosed)
+                return;
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            synchronized(this) {
+                if(isClosed)
+                    return;
+                isClosed = true;
+            }
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+}
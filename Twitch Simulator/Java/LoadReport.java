@@ -0,0 +1,61 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one round of a load scenario: throughput, latency percentiles and the allocation rate of the client.
+ * <li>The simulators run in the same JVM, their threads are named "Simulator-..." and are not counted as allocations of the client.
+ * <li>The percentiles are taken from the histogram the scenario records into, it is reset by{@code start}.
+ * <li>Usage: {@code LoadReport report = LoadReport.start("irc 20k msg/s", histogram); ... report.stop(received)}
+ */
+public final class LoadReport {
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final String name;
+    private final LatencyHistogram latencies;
+    private final long start;
+    private final long allocatedBefore;
+
+    private LoadReport(String name, LatencyHistogram latencies) {
+        this.name = name;
+        this.latencies = latencies;
+        latencies.reset();
+        this.allocatedBefore = clientAllocatedBytes();
+        this.start = System.nanoTime();
+    }
+
+    public static LoadReport start(String name, LatencyHistogram latencies) {
+        return new LoadReport(name, latencies);
+    }
+
+    /**
+     * Prints and returns one line with the results, {@code operations}is what the client handled in this round.
+     */
+    public String stop(long operations) {
+        long nanos = System.nanoTime() - start;
+        long allocated = clientAllocatedBytes() - allocatedBefore;
+        double seconds = nanos / 1e9;
+        String line = String.format("%-34s %9.0f ops/s  p50 %8.1f us  p99 %8.1f us  p999 %8.1f us  max %8.1f us  %7.1f MB/s alloc  %6.0f bytes/op",
+                name, operations / seconds, micros(latencies.getPercentile(50)), micros(latencies.getPercentile(99)), micros(latencies.getPercentile(99.9)),
+                micros(latencies.getMax()), allocated / seconds / (1 << 20), operations == 0 ? 0 : (double) allocated / operations);
+        System.out.println(line);
+        return line;
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    // the bytes allocated by all threads that are alive and not part of a simulator. Threads that ended during the round are missing
+    static long clientAllocatedBytes() {
+        long bytes = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            // the dispatcher thread of the HttpServer of the HelixSimulator
+            if(thread.getName().startsWith("Simulator-") || thread.getName().equals("HTTP-Dispatcher"))
+                continue;
+            long allocated = THREADS.getThreadAllocatedBytes(thread.getId());
+            if(allocated > 0)
+                bytes += allocated;
+        }
+        return bytes;
+    }
+}